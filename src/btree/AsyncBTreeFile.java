@@ -0,0 +1,202 @@
+package btree;
+
+import java.util.concurrent.*;
+
+import global.*;
+
+/**
+ * AsyncBTreeFile runs the operations of a BTreeFile on an executor and
+ * returns CompletableFutures, so that the calling thread does not block
+ * while the pages are read. A future fails with the exception the
+ * BTreeFile operation threw.
+ *
+ * An operation runs under the locking rule of BTreeFile, and its future is
+ * completed after the monitor is released. So the operations run one at a
+ * time, but the callers can go on with other work meanwhile.
+ *
+ * new_scan() returns a Flow.Publisher whose subscribers get the entries of
+ * the range as they request them (see AsyncBTreeFileScan).
+ */
+public class AsyncBTreeFile {
+
+	private final BTreeFile file;
+	private final Executor executor;
+	private final ExecutorService ownExecutor; // null if given by the caller
+
+	/**
+	 * Run the operations of a file on the given executor.
+	 *
+	 * @param file
+	 *            the file. Input parameter.
+	 * @param executor
+	 *            the executor that runs the operations. Input parameter.
+	 */
+	public AsyncBTreeFile(BTreeFile file, Executor executor) {
+		this.file = file;
+		this.executor = executor;
+		this.ownExecutor = null;
+	}
+
+	/**
+	 * Run the operations of a file on a pool of the given number of daemon
+	 * threads, which close() stops.
+	 *
+	 * @param file
+	 *            the file. Input parameter.
+	 * @param threads
+	 *            the number of threads of the pool. Input parameter.
+	 */
+	public AsyncBTreeFile(BTreeFile file, int threads) {
+		this.file = file;
+		this.ownExecutor = Executors.newFixedThreadPool(Math.max(threads, 1),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "btree-io");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.executor = ownExecutor;
+	}
+
+	/**
+	 * @return the file whose operations are run
+	 */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	Executor getExecutor() {
+		return executor;
+	}
+
+	/*
+	 * Run a task on the executor, holding the buffer manager, and complete
+	 * the future with its result once it is released.
+	 */
+	<T> CompletableFuture<T> submit(final Callable<T> task) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					T result;
+					try {
+						synchronized (SystemDefs.JavabaseBM) {
+							result = task.call();
+						}
+					} catch (Throwable e) {
+						future.completeExceptionally(e);
+						return;
+					}
+					future.complete(result);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * insert record with the given key and rid
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @return a future that completes once the record is inserted
+	 */
+	public CompletableFuture<Void> insertAsync(final KeyClass key,
+			final RID rid) {
+		return submit(new Callable<Void>() {
+			public Void call() throws Exception {
+				file.insert(key, rid);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * delete leaf entry given its (key, rid) pair.
+	 *
+	 * @param key
+	 *            the key in pair (key, rid). Input Parameter.
+	 * @param rid
+	 *            the rid in pair (key, rid). Input Parameter.
+	 * @return a future of true if deleted, false if no such record
+	 */
+	public CompletableFuture<Boolean> deleteAsync(final KeyClass key,
+			final RID rid) {
+		return submit(new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				return file.Delete(key, rid);
+			}
+		});
+	}
+
+	/**
+	 * Look up a key.
+	 *
+	 * @param key
+	 *            the key to look up. Input parameter.
+	 * @return a future of the rids of all entries with the key (an empty
+	 *         array if there is none)
+	 */
+	public CompletableFuture<RID[]> lookupAsync(final KeyClass key) {
+		return submit(new Callable<RID[]>() {
+			public RID[] call() throws Exception {
+				return file.multiGet(new KeyClass[] { key })[0];
+			}
+		});
+	}
+
+	/**
+	 * Look up many keys at once (see BTreeFile.multiGet()).
+	 *
+	 * @param keys
+	 *            the keys to look up. Input parameter.
+	 * @return a future of the rids of all entries with every key, in input
+	 *         order
+	 */
+	public CompletableFuture<RID[][]> multiGetAsync(final KeyClass[] keys) {
+		return submit(new Callable<RID[][]>() {
+			public RID[][] call() throws Exception {
+				return file.multiGet(keys);
+			}
+		});
+	}
+
+	/**
+	 * create a scan with given keys that publishes its entries to every
+	 * subscriber. Every subscription scans the range on its own, and reads
+	 * the entries on the executor, as they are requested. No page stays
+	 * pinned between requests, so the file may be modified while a
+	 * subscription is active: an entry inserted or deleted meanwhile may or
+	 * may not be sent, and no entry is sent twice.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @return the publisher of the entries of the range, in key order
+	 */
+	public Flow.Publisher<KeyDataEntry> new_scan(final KeyClass lo_key,
+			final KeyClass hi_key) {
+		return new Flow.Publisher<KeyDataEntry>() {
+			public void subscribe(Flow.Subscriber<? super KeyDataEntry> subscriber) {
+				AsyncBTreeFileScan scan = new AsyncBTreeFileScan(
+						AsyncBTreeFile.this, lo_key, hi_key, subscriber);
+				subscriber.onSubscribe(scan);
+			}
+		};
+	}
+
+	/**
+	 * Stop the threads of the pool if the file was given a number of threads,
+	 * once the operations submitted so far are done. The file is not closed.
+	 */
+	public void close() {
+		if (ownExecutor != null)
+			ownExecutor.shutdown();
+	}
+}
@@ -0,0 +1,197 @@
+package btree;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import global.*;
+
+/**
+ * AsyncBTreeFileScan is the subscription of a subscriber to a scan of an
+ * AsyncBTreeFile. The entries are read on the executor of the file, BATCH
+ * at a time whatever the demand, under the locking rule of BTreeFile; the
+ * subscriber gets them, as requested, after the monitor is released. Every
+ * read opens a scan, copies the entries out and closes the scan again, so no
+ * page stays pinned between reads and the file may be modified meanwhile.
+ * If it was not, the next read picks up at the leaf slot of the last entry
+ * read. Else it opens the scan at the key of that entry and skips the
+ * entries read before with that key, so no entry is sent twice.
+ *
+ * The subscription ends when the range is done, on cancel() and on an
+ * error.
+ *
+ * Only one task of a subscription runs at a time, so the signals to the
+ * subscriber never overlap.
+ *
+ * Created by AsyncBTreeFile.new_scan().
+ */
+class AsyncBTreeFileScan implements Flow.Subscription {
+
+	static final int BATCH = 256;
+
+	private final AsyncBTreeFile async;
+	private final KeyClass lo_key;
+	private final KeyClass hi_key;
+	private final Flow.Subscriber<? super KeyDataEntry> subscriber;
+
+	private final AtomicLong requested = new AtomicLong(); // not yet sent
+	private final AtomicInteger wip = new AtomicInteger(); // drain() calls to serve
+	private volatile boolean cancelled;
+	private volatile Throwable badRequest;
+
+	// read and written by the tasks only
+	private KeyClass resume; // key of the last entry read, null before the first
+	private final List<RID> resumeRids = new ArrayList<RID>(); // read with that key
+	private RID position; // leaf slot of the last entry read
+	private long positionAt; // the change count of the file then
+	private boolean end; // the range is read
+	private boolean done; // a terminal signal was sent, or cancelled
+	private final Deque<KeyDataEntry> batch = new ArrayDeque<KeyDataEntry>();
+
+	AsyncBTreeFileScan(AsyncBTreeFile async, KeyClass lo_key, KeyClass hi_key,
+			Flow.Subscriber<? super KeyDataEntry> subscriber) {
+		this.async = async;
+		this.lo_key = lo_key;
+		this.hi_key = hi_key;
+		this.subscriber = subscriber;
+	}
+
+	public void request(long n) {
+		if (n <= 0)
+			badRequest = new IllegalArgumentException(
+					"request of a non-positive number of entries");
+		else {
+			long r;
+			do {
+				r = requested.get();
+			} while (r != Long.MAX_VALUE
+					&& !requested.compareAndSet(r, (r + n < 0) ? Long.MAX_VALUE
+							: r + n));
+		}
+		drain();
+	}
+
+	public void cancel() {
+		cancelled = true;
+		drain();
+	}
+
+	/* start a task, unless one is running: then it serves this call too */
+	private void drain() {
+		if (wip.getAndIncrement() != 0)
+			return;
+		try {
+			async.getExecutor().execute(new Runnable() {
+				public void run() {
+					serve();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			cancelled = true;
+			subscriber.onError(e);
+		}
+	}
+
+	private void serve() {
+		int missed = 1;
+		while (true) {
+			if (!done) {
+				try {
+					if (cancelled) {
+						close();
+					} else if (badRequest != null) {
+						close();
+						subscriber.onError(badRequest);
+					} else
+						send();
+				} catch (Exception e) {
+					close();
+					subscriber.onError(e);
+				}
+			}
+			missed = wip.addAndGet(-missed);
+			if (missed == 0)
+				return;
+		}
+	}
+
+	/* send the requested entries that are there, reading them as needed */
+	private void send() throws Exception {
+		long wanted = requested.get();
+		long sent = 0;
+		while (sent < wanted && !cancelled) {
+			if (batch.isEmpty() && !end)
+				fetch(BATCH);
+			if (batch.isEmpty())
+				break;
+			subscriber.onNext(batch.poll());
+			sent++;
+		}
+		if (wanted != Long.MAX_VALUE)
+			requested.addAndGet(-sent);
+		if (end && batch.isEmpty() && !cancelled) {
+			done = true;
+			subscriber.onComplete();
+		}
+	}
+
+	/*
+	 * read up to n entries of the range, on from where the last read
+	 * stopped: from its leaf position if the file did not change since,
+	 * else from the key of the last entry read
+	 */
+	private void fetch(int n) throws Exception {
+		List<RID> skip = new ArrayList<RID>(resumeRids);
+		synchronized (SystemDefs.JavabaseBM) {
+			BTreeFile file = async.getFile();
+			BTFileScan scan = (position == null) ? null : file.resume_scan(
+					position, positionAt, hi_key);
+			if (scan != null)
+				skip.clear();
+			else
+				scan = file.new_scan((resume == null) ? lo_key : resume,
+						hi_key);
+			try {
+				while (n > 0) {
+					KeyDataEntry entry = scan.get_next();
+					if (entry == null) {
+						end = true;
+						return;
+					}
+					RID rid = ((LeafData) entry.data).getData();
+					if (resume != null && BT.keyCompare(entry.key, resume) == 0) {
+						if (remove(skip, rid))
+							continue;
+					} else {
+						resume = entry.key;
+						resumeRids.clear();
+					}
+					resumeRids.add(rid);
+					batch.add(entry);
+					n--;
+				}
+				if (!file.compressedLeaves()) {
+					position = new RID(new PageId(scan.curRid.pageNo.pid),
+							scan.curRid.slotNo);
+					positionAt = file.changes();
+				}
+			} finally {
+				scan.DestroyBTreeFileScan();
+			}
+		}
+	}
+
+	private static boolean remove(List<RID> rids, RID rid) {
+		for (Iterator<RID> it = rids.iterator(); it.hasNext();)
+			if (it.next().equals(rid)) {
+				it.remove();
+				return true;
+			}
+		return false;
+	}
+
+	private void close() {
+		done = true;
+		batch.clear();
+	}
+}
@@ -0,0 +1,100 @@
+package btree;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTAdaptiveHash maps hot keys of a BTreeFile straight to the leaf page and
+ * slot of their first entry, so findRunStart() needs no descent for them.
+ *
+ * Every probe of a key is counted; once a key was probed HOT times the next
+ * descent for it is remembered, if the key is in the index. The counts are
+ * dropped when too many keys are being counted, which ages out keys that
+ * are only probed now and then. A change of a leaf (insert, split or
+ * delete) drops the entries that point into it; the index being rebuilt or
+ * destroyed drops all of them.
+ */
+class BTAdaptiveHash {
+
+	static final int HOT = 16; // probes before a key is hashed
+	private static final int MAX_COUNTED = 4096;
+	private static final int MAX_ENTRIES = 8192;
+
+	private final Map<Object, Integer> probes = new HashMap<Object, Integer>();
+	private final Map<Object, RID> entries = new HashMap<Object, RID>();
+	private final Map<Integer, List<Object>> byLeaf = new HashMap<Integer, List<Object>>();
+
+	/**
+	 * Look a key up.
+	 *
+	 * @return whether it is hashed; if so the rid of its first entry is
+	 *         copied into startrid
+	 */
+	synchronized boolean lookup(KeyClass key, RID startrid) {
+		RID rid = entries.get(hashKey(key));
+		if (rid == null)
+			return false;
+		startrid.pageNo = new PageId(rid.pageNo.pid);
+		startrid.slotNo = rid.slotNo;
+		return true;
+	}
+
+	/**
+	 * Count a probe of a key that is not hashed.
+	 *
+	 * @return whether the key is hot
+	 */
+	synchronized boolean probe(KeyClass key) {
+		if (probes.size() >= MAX_COUNTED)
+			probes.clear();
+		Object k = hashKey(key);
+		Integer count = probes.get(k);
+		count = (count == null) ? 1 : count + 1;
+		probes.put(k, count);
+		return count >= HOT;
+	}
+
+	/**
+	 * Hash a key with the rid of its first entry.
+	 */
+	synchronized void put(KeyClass key, RID rid) {
+		if (entries.size() >= MAX_ENTRIES)
+			clear();
+		Object k = hashKey(key);
+		probes.remove(k);
+		entries.put(k, new RID(new PageId(rid.pageNo.pid), rid.slotNo));
+		List<Object> keys = byLeaf.get(rid.pageNo.pid);
+		if (keys == null) {
+			keys = new ArrayList<Object>();
+			byLeaf.put(rid.pageNo.pid, keys);
+		}
+		keys.add(k);
+	}
+
+	/**
+	 * The leaf changed: drop the keys hashed into it.
+	 */
+	synchronized void invalidate(int leaf) {
+		List<Object> keys = byLeaf.remove(leaf);
+		if (keys != null)
+			for (Object k : keys)
+				entries.remove(k);
+	}
+
+	synchronized void clear() {
+		entries.clear();
+		byLeaf.clear();
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/* IntegerKey and StringKey do not define equals() and hashCode() */
+	private static Object hashKey(KeyClass key) {
+		if (key instanceof IntegerKey)
+			return ((IntegerKey) key).getKey();
+		return ((StringKey) key).getKey();
+	}
+}
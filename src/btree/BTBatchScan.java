@@ -0,0 +1,154 @@
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTBatchScan is a range scan over a BTreeFile with integer keys that
+ * returns its entries in batches, column by column: get_next_batch() fills
+ * caller-provided arrays of keys, rid page numbers and rid slot numbers,
+ * decoding the leaf records in place. No object is created per entry, and
+ * the arrays can be reused from batch to batch.
+ *
+ * A plain leaf stays pinned between calls, as with BTFileScan; a compressed
+ * leaf is decoded once and its columns are copied out.
+ *
+ * Created by BTreeFile.new_batch_scan().
+ */
+public class BTBatchScan implements GlobalConst {
+
+	BTreeFile bfile;
+	long hi; // hi_key, Long.MAX_VALUE for no upper bound
+	BTLeafPage leafPage; // pinned plain leaf, null when done or compressed
+	int slot; // next slot of leafPage
+
+	KeyClass startkey; // lo_key of a compressed scan
+	PageId nextPage; // next compressed leaf, INVALID_PAGE at the end
+	private BTCompressedLeaf leaf;
+	private int pos;
+	private boolean done;
+
+	/**
+	 * Fill the arrays with the next entries of the range, as many as fit.
+	 *
+	 * @param keys
+	 *            receives the keys. Output parameter.
+	 * @param pageIds
+	 *            receives the page numbers of the rids. Output parameter.
+	 * @param slots
+	 *            receives the slot numbers of the rids. Output parameter.
+	 * @return the number of entries filled in, 0 if the scan is done
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public int get_next_batch(int[] keys, int[] pageIds, int[] slots)
+			throws ScanIteratorException {
+		int max = Math.min(keys.length, Math.min(pageIds.length, slots.length));
+		try {
+			return (nextPage != null) ? compressedBatch(keys, pageIds, slots,
+					max) : leafBatch(keys, pageIds, slots, max);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	private int leafBatch(int[] keys, int[] pageIds, int[] slots, int max)
+			throws Exception {
+		int n = 0;
+		while (n < max && leafPage != null) {
+			byte[] data = leafPage.getpage();
+			int slotCnt = leafPage.getSlotCnt();
+			for (; slot < slotCnt && n < max; slot++, n++) {
+				int off = leafPage.getSlotOffset(slot);
+				int key = intAt(data, off);
+				if (key > hi) {
+					finish();
+					return n;
+				}
+				// the record is the key followed by the rid, slot number first
+				int rid = off + leafPage.getSlotLength(slot) - 8;
+				keys[n] = key;
+				slots[n] = intAt(data, rid);
+				pageIds[n] = intAt(data, rid + 4);
+			}
+
+			if (slot == slotCnt) {
+				// have to go right
+				PageId nextpage = leafPage.getNextPage();
+				SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+				leafPage = (nextpage.pid == INVALID_PAGE) ? null
+						: new BTLeafPage(nextpage, bfile.getHeaderPage()
+								.get_keyType());
+				slot = 0;
+			}
+		}
+		return n;
+	}
+
+	private int compressedBatch(int[] keys, int[] pageIds, int[] slots,
+			int max) throws Exception {
+		int n = 0;
+		while (n < max && !done) {
+			if (leaf == null || pos == leaf.count) {
+				if (nextPage.pid == INVALID_PAGE) {
+					done = true;
+					break;
+				}
+				leaf = bfile.readCompressedLeaf(nextPage);
+				nextPage = leaf.next;
+				pos = (startkey == null) ? 0 : leaf
+						.lowerBound(((IntegerKey) startkey).getKey());
+				continue;
+			}
+
+			int end = Math.min(leaf.count, pos + max - n);
+			if (leaf.keys[end - 1] > hi) {
+				end = Math.max(pos, leaf.upperBound((int) hi));
+				done = true;
+			}
+			System.arraycopy(leaf.keys, pos, keys, n, end - pos);
+			System.arraycopy(leaf.pids, pos, pageIds, n, end - pos);
+			System.arraycopy(leaf.slots, pos, slots, n, end - pos);
+			n += end - pos;
+			pos = end;
+		}
+		return n;
+	}
+
+	private void finish() throws Exception {
+		SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+		leafPage = null;
+	}
+
+	private static int intAt(byte[] data, int off) {
+		return ((data[off] & 0xFF) << 24) | ((data[off + 1] & 0xFF) << 16)
+				| ((data[off + 2] & 0xFF) << 8) | (data[off + 3] & 0xFF);
+	}
+
+	/**
+	 * destructor. unpin the current leaf if it is not unpinned already.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (leafPage != null)
+			SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+		leafPage = null;
+		leaf = null;
+		done = true;
+	}
+}
@@ -0,0 +1,162 @@
+package btree;
+
+import java.io.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTBloomFilter is the optional Bloom filter of a BTreeFile, over the keys
+ * of its entries. A key the filter does not contain is definitely not in
+ * the index, so point lookups and deletes of it return without reading a
+ * tree page; about 1% of the keys that are not in the index still pass.
+ *
+ * The filter is blocked: all the bits of a key are in one 512 bit block,
+ * so adding a key changes a single page. It lives in a run of pages, a
+ * meta page followed by the bit pages, whose first page is referenced from
+ * the header page of the index. BTreeFile keeps a copy of the bits in
+ * memory and writes every changed block through to its page.
+ *
+ * Deleted keys stay in the filter until it is rebuilt; a filter filled
+ * beyond the number of keys it was sized for lets more misses through.
+ */
+class BTBloomFilter implements GlobalConst {
+
+	private static final int MAGIC = 0x424c4f4d;
+	static final int BITS_PER_KEY = 10;
+	static final int HASHES = 7;
+	private static final int BLOCK_BITS = 512;
+	private static final int BLOCK_WORDS = BLOCK_BITS / 64;
+	private static final int PAGE_WORDS = MINIBASE_PAGESIZE / 8;
+
+	PageId first; // the meta page, the bit pages follow it
+	final int blocks;
+	final int hashes;
+	private final long[] words;
+
+	BTBloomFilter(int expectedKeys) {
+		this(null, Math.max(1, (int) (((long) expectedKeys * BITS_PER_KEY
+				+ BLOCK_BITS - 1) / BLOCK_BITS)), HASHES);
+	}
+
+	private BTBloomFilter(PageId first, int blocks, int hashes) {
+		this.first = first;
+		this.blocks = blocks;
+		this.hashes = hashes;
+		this.words = new long[blocks * BLOCK_WORDS];
+	}
+
+	/**
+	 * @return the number of pages of the filter, with the meta page
+	 */
+	int pages() {
+		return 1 + (words.length + PAGE_WORDS - 1) / PAGE_WORDS;
+	}
+
+	/**
+	 * @return whether the key may be in the index
+	 */
+	boolean mightContain(KeyClass key) {
+		long h = hash(key);
+		int base = block(h) * BLOCK_WORDS;
+		long g = mix(h ^ 0x9e3779b97f4a7c15L);
+		for (int i = 0; i < hashes; i++) {
+			int bit = bit(g, i);
+			if ((words[base + (bit >>> 6)] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Add a key.
+	 *
+	 * @return the number of the bit page that changed, -1 if none did
+	 */
+	int add(KeyClass key) {
+		long h = hash(key);
+		int base = block(h) * BLOCK_WORDS;
+		long g = mix(h ^ 0x9e3779b97f4a7c15L);
+		boolean changed = false;
+		for (int i = 0; i < hashes; i++) {
+			int bit = bit(g, i);
+			long old = words[base + (bit >>> 6)];
+			words[base + (bit >>> 6)] = old | (1L << bit);
+			changed |= (old & (1L << bit)) == 0;
+		}
+		return changed ? base / PAGE_WORDS : -1;
+	}
+
+	/**
+	 * @return the page id of a bit page
+	 */
+	PageId page(int n) {
+		return new PageId(first.pid + 1 + n);
+	}
+
+	void writeMeta(Page page) throws IOException {
+		Convert.setIntValue(MAGIC, 0, page.getpage());
+		Convert.setIntValue(blocks, 4, page.getpage());
+		Convert.setIntValue(hashes, 8, page.getpage());
+	}
+
+	/**
+	 * @return the filter the meta page describes, with no bits read yet;
+	 *         null if it is not a filter meta page
+	 */
+	static BTBloomFilter readMeta(PageId first, Page page) throws IOException {
+		if (Convert.getIntValue(0, page.getpage()) != MAGIC)
+			return null;
+		return new BTBloomFilter(new PageId(first.pid), Convert.getIntValue(
+				4, page.getpage()), Convert.getIntValue(8, page.getpage()));
+	}
+
+	void writePage(int n, Page page) {
+		byte[] data = page.getpage();
+		int end = Math.min(words.length, (n + 1) * PAGE_WORDS);
+		for (int w = n * PAGE_WORDS, at = 0; w < end; w++)
+			for (int shift = 56; shift >= 0; shift -= 8)
+				data[at++] = (byte) (words[w] >>> shift);
+	}
+
+	void readPage(int n, Page page) {
+		byte[] data = page.getpage();
+		int end = Math.min(words.length, (n + 1) * PAGE_WORDS);
+		for (int w = n * PAGE_WORDS, at = 0; w < end; w++) {
+			long value = 0;
+			for (int i = 0; i < 8; i++)
+				value = (value << 8) | (data[at++] & 0xff);
+			words[w] = value;
+		}
+	}
+
+	private int block(long h) {
+		return (int) Long.remainderUnsigned(h, blocks);
+	}
+
+	/* double hashing inside the block */
+	private static int bit(long g, int i) {
+		return ((int) g + i * (int) (g >>> 32)) & (BLOCK_BITS - 1);
+	}
+
+	private static long hash(KeyClass key) {
+		if (key instanceof IntegerKey)
+			return mix(((IntegerKey) key).getKey().intValue());
+		// FNV-1a over the characters of a string key
+		String s = ((StringKey) key).getKey();
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++)
+			h = (h ^ s.charAt(i)) * 0x100000001b3L;
+		return mix(h);
+	}
+
+	/* the finalizer of MurmurHash3 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,704 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTBwTree is an experimental in-memory index after the Bw-tree design, for
+ * measuring latch-free updates against BTreeFile. It has the insert, Delete
+ * and new_scan semantics of a BTreeFile with naive deletes.
+ *
+ * Nodes are addressed by logical page ids through a mapping table, whose
+ * slots hold the current state of a node: a chain of delta records ending
+ * in a base node. An insert or delete prepends a delta record to the chain
+ * of its leaf and installs it with one compare-and-swap on the slot; no
+ * thread ever waits for a latch. Once a chain holds MAX_CHAIN deltas it is
+ * consolidated into a new base node, by the thread that made it that long.
+ * Leaf base nodes are pages in the BTLeafPage format; inner base nodes are
+ * arrays of separators and logical page ids.
+ *
+ * A node too big for a page is split without latches either: the upper
+ * half is installed as a new node, a split delta is posted on the old node
+ * (so the keys above the separator are looked up in the new node, through
+ * the right link), and then an index delta is posted on the parent. Since
+ * every node has a right link, a thread that finds a node split before the
+ * parent knows it simply goes right, as in a B-link tree.
+ *
+ * Entries are ordered by key and rid, so duplicates of a key can be split
+ * over nodes like any other entries. Nodes are never merged, and unlinked
+ * states are reclaimed by the garbage collector, which takes the place of
+ * the epochs of the original design. A node installed for a split or a new
+ * root that loses its race was never reachable, so its logical page id goes
+ * back on a free list for the next allocation.
+ */
+public class BTBwTree extends IndexFile implements GlobalConst {
+
+	static final int MAX_CHAIN = 8; // deltas before a node is consolidated
+	static final int INNER_FANOUT = 64; // children of an inner base node
+
+	/* a node state: a delta record or a base node */
+	abstract static class Node {
+		final Node next; // the state the delta applies to, null for a base
+		final int depth; // deltas in the chain
+		final int level; // 0 for leaves
+
+		Node(Node next, int level) {
+			this.next = next;
+			this.depth = (next == null) ? 0 : next.depth + 1;
+			this.level = level;
+		}
+	}
+
+	/* a leaf: a page in the BTLeafPage format */
+	static final class LeafBase extends Node {
+		final Page page;
+		final BTWriteBuffer.Entry high; // upper bound (exclusive), null for none
+		final int right; // right sibling, -1 for none
+
+		LeafBase(Page page, BTWriteBuffer.Entry high, int right) {
+			super(null, 0);
+			this.page = page;
+			this.high = high;
+			this.right = right;
+		}
+	}
+
+	/* an inner node: child i holds the entries from seps[i - 1] on */
+	static final class InnerBase extends Node {
+		final BTWriteBuffer.Entry[] seps;
+		final int[] children;
+		final BTWriteBuffer.Entry high;
+		final int right;
+
+		InnerBase(int level, BTWriteBuffer.Entry[] seps, int[] children,
+				BTWriteBuffer.Entry high, int right) {
+			super(null, level);
+			this.seps = seps;
+			this.children = children;
+			this.high = high;
+			this.right = right;
+		}
+	}
+
+	static final class InsertDelta extends Node {
+		final BTWriteBuffer.Entry entry;
+
+		InsertDelta(BTWriteBuffer.Entry entry, Node next) {
+			super(next, next.level);
+			this.entry = entry;
+		}
+	}
+
+	static final class DeleteDelta extends Node {
+		final BTWriteBuffer.Entry entry;
+
+		DeleteDelta(BTWriteBuffer.Entry entry, Node next) {
+			super(next, next.level);
+			this.entry = entry;
+		}
+	}
+
+	/* the entries from sep on moved to the node right */
+	static final class SplitDelta extends Node {
+		final BTWriteBuffer.Entry sep;
+		final int right;
+
+		SplitDelta(BTWriteBuffer.Entry sep, int right, Node next) {
+			super(next, next.level);
+			this.sep = sep;
+			this.right = right;
+		}
+	}
+
+	/* the entries from sep up to high are in child */
+	static final class IndexDelta extends Node {
+		final BTWriteBuffer.Entry sep;
+		final BTWriteBuffer.Entry high;
+		final int child;
+
+		IndexDelta(BTWriteBuffer.Entry sep, BTWriteBuffer.Entry high,
+				int child, Node next) {
+			super(next, next.level);
+			this.sep = sep;
+			this.high = high;
+			this.child = child;
+		}
+	}
+
+	private final int keyType;
+	private final int keySize;
+	private final AtomicReferenceArray<Node> table; // the mapping table
+	private final AtomicInteger nextPid = new AtomicInteger();
+	private final ConcurrentLinkedQueue<Integer> freePids = new ConcurrentLinkedQueue<Integer>();
+	private final AtomicInteger root;
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * Create an empty index.
+	 *
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param tableSize
+	 *            the number of slots of the mapping table, which bounds the
+	 *            number of nodes. Input parameter.
+	 * @exception ConstructPageException
+	 *                error when creating the root leaf
+	 */
+	public BTBwTree(int keytype, int keysize, int tableSize)
+			throws ConstructPageException {
+		this.keyType = keytype;
+		this.keySize = keysize;
+		table = new AtomicReferenceArray<Node>(tableSize);
+		int pid = allocate();
+		table.set(pid, leafBase(pid, new ArrayList<BTWriteBuffer.Entry>(), 0,
+				0, null, -1));
+		root = new AtomicInteger(pid);
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * @return the maximum size of a key
+	 */
+	public int keySize() {
+		return keySize;
+	}
+
+	/**
+	 * @return the number of nodes
+	 */
+	public int nodes() {
+		return nextPid.get() - freePids.size();
+	}
+
+	/**
+	 * insert record with the given key and rid
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key does not match the key type of the index
+	 * @exception ConstructPageException
+	 *                error when consolidating a node
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void insert(KeyClass key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, ConstructPageException, IOException {
+		key = pageKey(key);
+		if (BT.getKeyLength(key) > keySize)
+			throw new KeyTooLongException(null, "");
+		BTWriteBuffer.Entry entry = new BTWriteBuffer.Entry(key,
+				rid.pageNo.pid, rid.slotNo);
+
+		int pid = descend(entry, 0);
+		while (true) {
+			Node state = table.get(pid);
+			if (beyond(state, entry)) {
+				pid = rightOf(state);
+				continue;
+			}
+			Node delta = new InsertDelta(entry, state);
+			if (table.compareAndSet(pid, state, delta)) {
+				size.incrementAndGet();
+				if (delta.depth >= MAX_CHAIN)
+					consolidate(pid);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * delete leaf entry given its (key, rid) pair.
+	 *
+	 * @param key
+	 *            the key in pair (key, rid). Input Parameter.
+	 * @param rid
+	 *            the rid in pair (key, rid). Input Parameter.
+	 * @return true if deleted. false if no such record.
+	 * @exception KeyNotMatchException
+	 *                key does not match the key type of the index
+	 * @exception IteratorException
+	 *                error when reading a leaf
+	 * @exception ConstructPageException
+	 *                error when consolidating a node
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public boolean Delete(KeyClass key, RID rid) throws KeyNotMatchException,
+			IteratorException, ConstructPageException, IOException {
+		BTWriteBuffer.Entry entry = new BTWriteBuffer.Entry(pageKey(key),
+				rid.pageNo.pid, rid.slotNo);
+
+		int pid = descend(entry, 0);
+		while (true) {
+			Node state = table.get(pid);
+			if (beyond(state, entry)) {
+				pid = rightOf(state);
+				continue;
+			}
+			if (count(state, entry) == 0)
+				return false;
+			Node delta = new DeleteDelta(entry, state);
+			if (table.compareAndSet(pid, state, delta)) {
+				size.decrementAndGet();
+				if (delta.depth >= MAX_CHAIN)
+					consolidate(pid);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * create a scan with given keys
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception KeyNotMatchException
+	 *                key does not match the key type of the index
+	 * @exception IteratorException
+	 *                error when reading a leaf
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public BTBwTreeScan new_scan(KeyClass lo_key, KeyClass hi_key)
+			throws KeyNotMatchException, IteratorException, IOException {
+		BTBwTreeScan scan = new BTBwTreeScan();
+		scan.tree = this;
+		scan.hi = pageKey(hi_key);
+
+		lo_key = pageKey(lo_key);
+		int pid;
+		if (lo_key == null) {
+			pid = root.get();
+			for (Node state = table.get(pid); state.level > 0; state = table
+					.get(pid))
+				pid = leftmostChild(state);
+		} else {
+			pid = descend(new BTWriteBuffer.Entry(lo_key, Integer.MIN_VALUE,
+					Integer.MIN_VALUE), 0);
+		}
+		scan.load(pid);
+		if (lo_key != null)
+			while (scan.pos < scan.entries.size()
+					&& BT.keyCompare(scan.entries.get(scan.pos).key, lo_key) < 0)
+				scan.pos++;
+		return scan;
+	}
+
+	/*
+	 * The entries of a leaf, sorted, with its upper bound and right link.
+	 */
+	List<BTWriteBuffer.Entry> entries(int pid, int[] right)
+			throws IteratorException, IOException {
+		Node state = table.get(pid);
+		right[0] = rightOf(state);
+		return entries(state);
+	}
+
+	private List<BTWriteBuffer.Entry> entries(Node state)
+			throws IteratorException, IOException {
+		List<Node> chain = new ArrayList<Node>();
+		for (Node n = state; n.next != null; n = n.next)
+			chain.add(n);
+		LeafBase base = (LeafBase) ((chain.isEmpty()) ? state
+				: chain.get(chain.size() - 1).next);
+
+		// entry -> number of copies
+		TreeMap<BTWriteBuffer.Entry, Integer> counts = new TreeMap<BTWriteBuffer.Entry, Integer>(
+				BTWriteBuffer.entryOrder);
+		try {
+			BTLeafPage leaf = new BTLeafPage(base.page, keyType);
+			RID rid = new RID();
+			for (KeyDataEntry e = leaf.getFirst(rid); e != null; e = leaf
+					.getNext(rid)) {
+				RID r = ((LeafData) e.data).getData();
+				add(counts, new BTWriteBuffer.Entry(e.key, r.pageNo.pid,
+						r.slotNo), 1);
+			}
+		} catch (ConstructPageException e) {
+			throw new IteratorException(e, "");
+		}
+
+		for (int i = chain.size() - 1; i >= 0; i--) {
+			Node n = chain.get(i);
+			if (n instanceof InsertDelta)
+				add(counts, ((InsertDelta) n).entry, 1);
+			else if (n instanceof DeleteDelta)
+				add(counts, ((DeleteDelta) n).entry, -1);
+			else
+				counts.tailMap(((SplitDelta) n).sep, true).clear();
+		}
+
+		List<BTWriteBuffer.Entry> entries = new ArrayList<BTWriteBuffer.Entry>();
+		for (Map.Entry<BTWriteBuffer.Entry, Integer> e : counts.entrySet())
+			for (int n = e.getValue(); n > 0; n--)
+				entries.add(e.getKey());
+		return entries;
+	}
+
+	private static void add(TreeMap<BTWriteBuffer.Entry, Integer> counts,
+			BTWriteBuffer.Entry entry, int change) {
+		Integer n = counts.get(entry);
+		int count = ((n == null) ? 0 : n) + change;
+		if (count <= 0)
+			counts.remove(entry);
+		else
+			counts.put(entry, count);
+	}
+
+	/*
+	 * The number of copies of an entry in a leaf.
+	 */
+	private int count(Node state, BTWriteBuffer.Entry entry)
+			throws KeyNotMatchException, IteratorException, IOException {
+		int count = 0;
+		for (Node n = state;; n = n.next) {
+			if (n instanceof InsertDelta) {
+				if (same(((InsertDelta) n).entry, entry))
+					count++;
+			} else if (n instanceof DeleteDelta) {
+				if (same(((DeleteDelta) n).entry, entry))
+					count--;
+			} else if (n instanceof LeafBase) {
+				return count + countInPage(((LeafBase) n).page, entry);
+			}
+		}
+	}
+
+	private int countInPage(Page page, BTWriteBuffer.Entry entry)
+			throws KeyNotMatchException, IteratorException, IOException {
+		BTLeafPage leaf;
+		try {
+			leaf = new BTLeafPage(page, keyType);
+		} catch (ConstructPageException e) {
+			throw new IteratorException(e, "");
+		}
+		NormalizedKey probe = NormalizedKey.of(entry.key);
+		int slot = (probe == null) ? 0 : probe.lowerBound(leaf);
+		int count = 0;
+		for (; slot < leaf.getSlotCnt(); slot++) {
+			KeyDataEntry e = leaf.getCurrent(new RID(leaf.getCurPage(), slot));
+			int c = BT.keyCompare(e.key, entry.key);
+			if (c > 0)
+				break;
+			RID r = ((LeafData) e.data).getData();
+			if (c == 0 && r.pageNo.pid == entry.pid && r.slotNo == entry.slot)
+				count++;
+		}
+		return count;
+	}
+
+	private static boolean same(BTWriteBuffer.Entry a, BTWriteBuffer.Entry b) {
+		return BTWriteBuffer.entryOrder.compare(a, b) == 0;
+	}
+
+	/*
+	 * The node at the level whose range holds the entry.
+	 */
+	private int descend(BTWriteBuffer.Entry entry, int level) {
+		int pid = root.get();
+		while (true) {
+			Node state = table.get(pid);
+			if (beyond(state, entry))
+				pid = rightOf(state);
+			else if (state.level == level)
+				return pid;
+			else
+				pid = route(state, entry);
+		}
+	}
+
+	/*
+	 * The child of an inner node for an entry below its upper bound.
+	 */
+	private static int route(Node state, BTWriteBuffer.Entry entry) {
+		for (Node n = state;; n = n.next) {
+			if (n instanceof IndexDelta) {
+				IndexDelta d = (IndexDelta) n;
+				if (BTWriteBuffer.entryOrder.compare(entry, d.sep) >= 0
+						&& (d.high == null || BTWriteBuffer.entryOrder.compare(
+								entry, d.high) < 0))
+					return d.child;
+			} else if (n instanceof InnerBase) {
+				InnerBase base = (InnerBase) n;
+				int lo = 0;
+				int hi = base.seps.length;
+				while (lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					if (BTWriteBuffer.entryOrder.compare(base.seps[mid], entry) <= 0)
+						lo = mid + 1;
+					else
+						hi = mid;
+				}
+				return base.children[lo];
+			}
+		}
+	}
+
+	private static int leftmostChild(Node state) {
+		while (state.next != null)
+			state = state.next;
+		return ((InnerBase) state).children[0];
+	}
+
+	/*
+	 * Whether the entry is at or above the upper bound of the node, i.e. in
+	 * a node right of it.
+	 */
+	private static boolean beyond(Node state, BTWriteBuffer.Entry entry) {
+		BTWriteBuffer.Entry high = highOf(state);
+		return high != null && BTWriteBuffer.entryOrder.compare(entry, high) >= 0;
+	}
+
+	/* the newest split delta has the lowest bound */
+	private static BTWriteBuffer.Entry highOf(Node state) {
+		for (Node n = state;; n = n.next) {
+			if (n instanceof SplitDelta)
+				return ((SplitDelta) n).sep;
+			if (n instanceof LeafBase)
+				return ((LeafBase) n).high;
+			if (n instanceof InnerBase)
+				return ((InnerBase) n).high;
+		}
+	}
+
+	private static int rightOf(Node state) {
+		for (Node n = state;; n = n.next) {
+			if (n instanceof SplitDelta)
+				return ((SplitDelta) n).right;
+			if (n instanceof LeafBase)
+				return ((LeafBase) n).right;
+			if (n instanceof InnerBase)
+				return ((InnerBase) n).right;
+		}
+	}
+
+	/*
+	 * Replace the chain of a node by a base node, splitting it if it does
+	 * not fit. Losing a race to another update is fine: the chain is left
+	 * to the thread that makes it long again.
+	 */
+	private void consolidate(int pid) throws ConstructPageException {
+		Node state = table.get(pid);
+		if (state.depth < MAX_CHAIN)
+			return;
+		try {
+			if (state.level == 0)
+				consolidateLeaf(pid, state);
+			else
+				consolidateInner(pid, state);
+		} catch (ConstructPageException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "consolidation failed");
+		}
+	}
+
+	private void consolidateLeaf(int pid, Node state) throws Exception {
+		List<BTWriteBuffer.Entry> entries = entries(state);
+		BTWriteBuffer.Entry high = highOf(state);
+		int right = rightOf(state);
+		LeafBase base = leafBase(pid, entries, 0, entries.size(), high, right);
+		if (base != null) {
+			table.compareAndSet(pid, state, base);
+			return;
+		}
+
+		// split between different entries
+		int mid = entries.size() / 2;
+		while (mid > 0 && same(entries.get(mid - 1), entries.get(mid)))
+			mid--;
+		if (mid == 0)
+			return; // copies of one entry only: leave the chain
+		int rightPid = allocate();
+		table.set(rightPid, leafBase(rightPid, entries, mid, entries.size(),
+				high, right));
+		split(pid, state, entries.get(mid), rightPid, high);
+	}
+
+	private void consolidateInner(int pid, Node state) throws Exception {
+		List<Node> chain = new ArrayList<Node>();
+		for (Node n = state; n.next != null; n = n.next)
+			chain.add(n);
+		InnerBase base = (InnerBase) ((chain.isEmpty()) ? state : chain.get(
+				chain.size() - 1).next);
+
+		TreeMap<BTWriteBuffer.Entry, Integer> seps = new TreeMap<BTWriteBuffer.Entry, Integer>(
+				BTWriteBuffer.entryOrder);
+		for (int i = 0; i < base.seps.length; i++)
+			seps.put(base.seps[i], base.children[i + 1]);
+		for (int i = chain.size() - 1; i >= 0; i--) {
+			Node n = chain.get(i);
+			if (n instanceof IndexDelta)
+				seps.put(((IndexDelta) n).sep, ((IndexDelta) n).child);
+			else
+				seps.tailMap(((SplitDelta) n).sep, true).clear();
+		}
+
+		BTWriteBuffer.Entry[] keys = seps.keySet().toArray(
+				new BTWriteBuffer.Entry[seps.size()]);
+		int[] children = new int[keys.length + 1];
+		children[0] = base.children[0];
+		for (int i = 0; i < keys.length; i++)
+			children[i + 1] = seps.get(keys[i]);
+		BTWriteBuffer.Entry high = highOf(state);
+		int right = rightOf(state);
+
+		if (children.length <= INNER_FANOUT) {
+			table.compareAndSet(pid, state, new InnerBase(state.level, keys,
+					children, high, right));
+			return;
+		}
+
+		// seps[mid] goes up; the new node starts with its child
+		int mid = keys.length / 2;
+		int rightPid = allocate();
+		table.set(rightPid, new InnerBase(state.level, Arrays.copyOfRange(
+				keys, mid + 1, keys.length), Arrays.copyOfRange(children,
+				mid + 1, children.length), high, right));
+		split(pid, state, keys[mid], rightPid, high);
+	}
+
+	/*
+	 * Post the split of a node whose upper part was installed as rightPid,
+	 * then the index entry for it on the level above, and consolidate the
+	 * lower part.
+	 */
+	private void split(int pid, Node state, BTWriteBuffer.Entry sep,
+			int rightPid, BTWriteBuffer.Entry high)
+			throws ConstructPageException {
+		if (!table.compareAndSet(pid, state, new SplitDelta(sep, rightPid,
+				state))) {
+			release(rightPid); // lost the race: the new node is unreachable
+			return;
+		}
+
+		int level = state.level + 1;
+		while (true) {
+			int rootPid = root.get();
+			Node top = table.get(rootPid);
+			if (top.level < level) {
+				// the root split: a new root over all nodes of its level
+				List<BTWriteBuffer.Entry> keys = new ArrayList<BTWriteBuffer.Entry>();
+				List<Integer> children = new ArrayList<Integer>();
+				children.add(rootPid);
+				for (Node n = top; rightOf(n) != -1; n = table.get(rightOf(n))) {
+					keys.add(highOf(n));
+					children.add(rightOf(n));
+				}
+				int[] ids = new int[children.size()];
+				for (int i = 0; i < ids.length; i++)
+					ids[i] = children.get(i);
+				int newRoot = allocate();
+				table.set(newRoot, new InnerBase(level, keys
+						.toArray(new BTWriteBuffer.Entry[keys.size()]), ids,
+						null, -1));
+				if (root.compareAndSet(rootPid, newRoot))
+					break;
+				release(newRoot);
+				continue;
+			}
+
+			int parent = descend(sep, level);
+			Node parentState = table.get(parent);
+			if (beyond(parentState, sep))
+				continue;
+			if (route(parentState, sep) == rightPid)
+				break; // already there
+			Node delta = new IndexDelta(sep, high, rightPid, parentState);
+			if (table.compareAndSet(parent, parentState, delta)) {
+				if (delta.depth >= MAX_CHAIN)
+					consolidate(parent);
+				break;
+			}
+		}
+		consolidate(pid);
+	}
+
+	/*
+	 * A leaf base page with entries from to to, or null if they do not fit.
+	 * The entries are sorted, so the records and slots are written in
+	 * order, not inserted one by one.
+	 */
+	private LeafBase leafBase(int pid, List<BTWriteBuffer.Entry> entries,
+			int from, int to, BTWriteBuffer.Entry high, int right)
+			throws ConstructPageException {
+		try {
+			Page page = new Page(new byte[MINIBASE_PAGESIZE]);
+			BTLeafPage leaf = new BTLeafPage(page, keyType);
+			leaf.init(new PageId(pid), page);
+			leaf.setType(NodeType.LEAF);
+
+			byte[] data = page.getpage();
+			int used = MINIBASE_PAGESIZE;
+			int free = leaf.available_space() + HFPage.SIZE_OF_SLOT;
+			for (int i = from; i < to; i++) {
+				BTWriteBuffer.Entry e = entries.get(i);
+				byte[] record = BT.getBytesFromEntry(new KeyDataEntry(e.key,
+						e.rid()));
+				free -= record.length + HFPage.SIZE_OF_SLOT;
+				if (free < 0)
+					return null;
+				used -= record.length;
+				System.arraycopy(record, 0, data, used, record.length);
+				leaf.setSlot(i - from, record.length, used);
+			}
+			Convert.setShortValue((short) (to - from), HFPage.SLOT_CNT, data);
+			Convert.setShortValue((short) used, HFPage.USED_PTR, data);
+			Convert.setShortValue((short) free, HFPage.FREE_SPACE, data);
+			return new LeafBase(page, high, right);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "");
+		}
+	}
+
+	private int allocate() throws ConstructPageException {
+		Integer free = freePids.poll();
+		if (free != null)
+			return free;
+		int pid = nextPid.getAndIncrement();
+		if (pid >= table.length()) {
+			nextPid.decrementAndGet();
+			throw new ConstructPageException(null, "mapping table is full");
+		}
+		return pid;
+	}
+
+	/* give back the page id of a node that was never linked */
+	private void release(int pid) {
+		table.set(pid, null);
+		freePids.add(pid);
+	}
+
+	private KeyClass pageKey(KeyClass key) throws KeyNotMatchException {
+		if (key instanceof CompositeKey)
+			key = ((CompositeKey) key).toStringKey();
+		if (key == null
+				|| (key instanceof IntegerKey && keyType == AttrType.attrInteger)
+				|| (key instanceof StringKey && keyType == AttrType.attrString))
+			return key;
+		throw new KeyNotMatchException(null, "key types do not match");
+	}
+}
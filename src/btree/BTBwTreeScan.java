@@ -0,0 +1,85 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTBwTreeScan is a range scan over a BTBwTree. It reads the entries of one
+ * leaf at a time, as of when it gets to the leaf, and goes on through the
+ * right links of the leaves.
+ *
+ * Created by BTBwTree.new_scan().
+ */
+public class BTBwTreeScan extends IndexFileScan {
+
+	BTBwTree tree;
+	KeyClass hi; // hi_key, null for no upper bound
+	List<BTWriteBuffer.Entry> entries; // of the current leaf
+	int pos; // next entry of the current leaf
+	private int right = -1; // the next leaf, -1 at the end
+	private KeyDataEntry current; // returned last, null if none or deleted
+
+	void load(int pid) throws IteratorException, IOException {
+		int[] link = new int[1];
+		entries = tree.entries(pid, link);
+		right = link[0];
+		pos = 0;
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return the next entry, or null if the scan is done
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			while (pos == entries.size()) {
+				if (right == -1)
+					return current = null;
+				load(right);
+			}
+			BTWriteBuffer.Entry e = entries.get(pos);
+			if (hi != null && BT.keyCompare(e.key, hi) > 0) {
+				pos = entries.size();
+				right = -1;
+				return current = null;
+			}
+			pos++;
+			return current = new KeyDataEntry(e.key, e.rid());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/**
+	 * Delete the entry get_next() returned last.
+	 *
+	 * @exception ScanDeleteException
+	 *                there is no current entry, or the delete failed
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (current == null)
+			throw new ScanDeleteException(null, "no current entry");
+		try {
+			tree.Delete(current.key, ((LeafData) current.data).getData());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException(e, "");
+		}
+		current = null;
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key
+	 */
+	public int keysize() {
+		return tree.keySize();
+	}
+}
@@ -0,0 +1,85 @@
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTCompressedFileScan is the range scan of a BTreeFile with compressed
+ * leaves. It decodes one leaf at a time when it pins it and unpins it right
+ * away, so no page stays pinned between calls.
+ *
+ * Created by BTreeFile.new_scan() for a file with compressed leaves.
+ */
+public class BTCompressedFileScan extends BTFileScan {
+
+	KeyClass startkey; // lo_key, null for no lower bound
+	PageId nextPage; // next leaf to decode, INVALID_PAGE at the end
+	private BTCompressedLeaf leaf;
+	private int pos;
+	private KeyDataEntry current; // last entry returned, for delete_current
+	private boolean done;
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return the next entry, or null if the scan is done
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		current = null;
+		try {
+			while (leaf == null || pos == leaf.count) {
+				if (done || nextPage == null || nextPage.pid == INVALID_PAGE)
+					return null;
+				leaf = bfile.readCompressedLeaf(nextPage);
+				nextPage = leaf.next;
+				pos = (startkey == null) ? 0 : leaf
+						.lowerBound(((IntegerKey) startkey).getKey());
+			}
+
+			if (endkey != null
+					&& leaf.keys[pos] > ((IntegerKey) endkey).getKey()) {
+				done = true;
+				return null;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			done = true;
+			throw new ScanIteratorException(e, "");
+		}
+		current = leaf.entry(pos++);
+		return current;
+	}
+
+	/**
+	 * Delete the entry get_next() returned last.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error, or there is no current entry
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (current == null)
+			throw new ScanDeleteException(null, "no current entry");
+		try {
+			bfile.Delete(current.key, ((LeafData) current.data).getData());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException(e, "");
+		}
+		current = null;
+	}
+
+	/**
+	 * destructor. The scan holds no pinned page, so there is nothing to
+	 * unpin.
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		done = true;
+		leaf = null;
+	}
+}
@@ -0,0 +1,326 @@
+package btree;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTCompressedLeaf is the decoded form of a compressed leaf page, used by
+ * BTreeFile files created with compressed leaves (integer keys only).
+ *
+ * A compressed leaf is a BTLeafPage whose slot directory is empty: the prev
+ * and next links stay in the page header, and the entries are packed in
+ * one block right behind it. The keys, page numbers and slot numbers of the
+ * rids are stored column by column with frame-of-reference encoding, every
+ * value as its distance to the smallest value of its column, bit-packed in
+ * as many bits as the largest distance needs. Sequential keys and rids of
+ * one heap file take a few bits each instead of 12 bytes plus a slot.
+ *
+ * <pre>
+ * count (short) | key base (int) | pid base (int) | slot base (int)
+ *   | key bits | pid bits | slot bits (one byte each)
+ *   | count packed keys | count packed pids | count packed slots
+ * </pre>
+ *
+ * Since every column is encoded against its own minimum, any subset of the
+ * entries of a page fits in a page: deletes and splits never overflow.
+ *
+ * A PAX leaf (an aligned block) has the same layout with every base 0 and
+ * every width 32 bits: the keys form one contiguous array of ints, the page
+ * numbers and the slot numbers two parallel ones. It holds fewer entries
+ * than a bit-packed leaf, but it is decoded and encoded by plain copies,
+ * and the search over its key array runs without branches.
+ *
+ * A page is decoded in one go when it is pinned, changed in its decoded
+ * form and encoded again before it is unpinned.
+ */
+class BTCompressedLeaf implements GlobalConst {
+
+	private static final int START = HFPage.DPFIXED;
+	private static final int HEADER = 2 + 4 + 4 + 4 + 3;
+	private static final int CAPACITY = MINIBASE_PAGESIZE - START;
+
+	private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(
+			int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	boolean aligned; // written as a PAX leaf
+	int count;
+	int[] keys;
+	int[] pids;
+	int[] slots;
+	PageId next; // next leaf, as read from the page
+
+	BTCompressedLeaf(int capacity) {
+		keys = new int[Math.max(capacity, 8)];
+		pids = new int[keys.length];
+		slots = new int[keys.length];
+	}
+
+	/**
+	 * Make a new leaf page an empty compressed leaf.
+	 */
+	static void init(Page page) throws IOException {
+		Convert.setShortValue((short) 0, START, page.getpage());
+	}
+
+	/**
+	 * Decode the entries of a compressed leaf page.
+	 */
+	static BTCompressedLeaf read(Page page) throws IOException {
+		byte[] data = page.getpage();
+		int n = Convert.getShortValue(START, data) & 0xffff;
+		BTCompressedLeaf leaf = new BTCompressedLeaf(n);
+		leaf.count = n;
+		leaf.next = new PageId(new HFPage(page).getNextPage().pid);
+		if (n == 0)
+			return leaf;
+
+		long keyBase = Convert.getIntValue(START + 2, data);
+		long pidBase = Convert.getIntValue(START + 6, data);
+		long slotBase = Convert.getIntValue(START + 10, data);
+		int keyBits = data[START + 14];
+		int pidBits = data[START + 15];
+		int slotBits = data[START + 16];
+
+		int base = START + HEADER;
+		if ((keyBase | pidBase | slotBase) == 0 && keyBits == 32
+				&& pidBits == 32 && slotBits == 32) {
+			// aligned columns, the bits of a value are its little endian bytes
+			for (int i = 0; i < n; i++, base += 4) {
+				leaf.keys[i] = (int) INT.get(data, base);
+				leaf.pids[i] = (int) INT.get(data, base + 4 * n);
+				leaf.slots[i] = (int) INT.get(data, base + 8 * n);
+			}
+			return leaf;
+		}
+		int bit = 0;
+		for (int i = 0; i < n; i++, bit += keyBits)
+			leaf.keys[i] = (int) (keyBase + getBits(data, base, bit, keyBits));
+		for (int i = 0; i < n; i++, bit += pidBits)
+			leaf.pids[i] = (int) (pidBase + getBits(data, base, bit, pidBits));
+		for (int i = 0; i < n; i++, bit += slotBits)
+			leaf.slots[i] = (int) (slotBase + getBits(data, base, bit,
+					slotBits));
+		return leaf;
+	}
+
+	/**
+	 * Encode the entries into the page.
+	 *
+	 * @return false, leaving the page unchanged, if they do not fit
+	 */
+	boolean write(Page page) throws IOException {
+		if (!fits())
+			return false;
+		byte[] data = page.getpage();
+		if (count == 0) {
+			init(page);
+			return true;
+		}
+
+		long keyBase = 0, pidBase = 0, slotBase = 0;
+		int keyBits = 32, pidBits = 32, slotBits = 32;
+		if (!aligned) {
+			keyBase = min(keys);
+			pidBase = min(pids);
+			slotBase = min(slots);
+			keyBits = width(max(keys) - keyBase);
+			pidBits = width(max(pids) - pidBase);
+			slotBits = width(max(slots) - slotBase);
+		}
+
+		Convert.setShortValue((short) count, START, data);
+		Convert.setIntValue((int) keyBase, START + 2, data);
+		Convert.setIntValue((int) pidBase, START + 6, data);
+		Convert.setIntValue((int) slotBase, START + 10, data);
+		data[START + 14] = (byte) keyBits;
+		data[START + 15] = (byte) pidBits;
+		data[START + 16] = (byte) slotBits;
+
+		int base = START + HEADER;
+		if (aligned) {
+			for (int i = 0; i < count; i++, base += 4) {
+				INT.set(data, base, keys[i]);
+				INT.set(data, base + 4 * count, pids[i]);
+				INT.set(data, base + 8 * count, slots[i]);
+			}
+			return true;
+		}
+		int bit = 0;
+		for (int i = 0; i < count; i++, bit += keyBits)
+			putBits(data, base, bit, keys[i] - keyBase, keyBits);
+		for (int i = 0; i < count; i++, bit += pidBits)
+			putBits(data, base, bit, pids[i] - pidBase, pidBits);
+		for (int i = 0; i < count; i++, bit += slotBits)
+			putBits(data, base, bit, slots[i] - slotBase, slotBits);
+		return true;
+	}
+
+	/**
+	 * @return whether the entries fit in one page
+	 */
+	boolean fits() {
+		if (count == 0)
+			return true;
+		if (count > Short.MAX_VALUE)
+			return false;
+		if (aligned)
+			return HEADER + 12L * count <= CAPACITY;
+		long bits = (long) count
+				* (width(max(keys) - min(keys)) + width(max(pids) - min(pids)) + width(max(slots)
+						- min(slots)));
+		return HEADER + (bits + 7) / 8 <= CAPACITY;
+	}
+
+	/**
+	 * @return the position of the first entry with a key >= key
+	 */
+	int lowerBound(int key) {
+		if (aligned)
+			return countBelow(key);
+		int lo = 0, hi = count;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid] < key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the position of the first entry with a key > key
+	 */
+	int upperBound(int key) {
+		if (aligned)
+			return (key == Integer.MAX_VALUE) ? count : countBelow(key + 1);
+		int lo = 0, hi = count;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid] <= key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/*
+	 * The number of keys < key, which for sorted keys is the position of
+	 * the first key >= key: a count over the whole key array, without a
+	 * branch on the keys, that the JIT can compile to vector compares.
+	 */
+	private int countBelow(int key) {
+		int n = 0;
+		for (int i = 0; i < count; i++)
+			n += (int) (((long) keys[i] - key) >>> 63);
+		return n;
+	}
+
+	/**
+	 * Insert an entry behind the entries with the same key.
+	 */
+	void insert(int key, RID rid) {
+		if (count == keys.length) {
+			keys = Arrays.copyOf(keys, 2 * count);
+			pids = Arrays.copyOf(pids, 2 * count);
+			slots = Arrays.copyOf(slots, 2 * count);
+		}
+		int pos = upperBound(key);
+		System.arraycopy(keys, pos, keys, pos + 1, count - pos);
+		System.arraycopy(pids, pos, pids, pos + 1, count - pos);
+		System.arraycopy(slots, pos, slots, pos + 1, count - pos);
+		keys[pos] = key;
+		pids[pos] = rid.pageNo.pid;
+		slots[pos] = rid.slotNo;
+		count++;
+	}
+
+	/**
+	 * Remove the entry (key, rid).
+	 *
+	 * @return false if there is no such entry
+	 */
+	boolean remove(int key, RID rid) {
+		for (int i = lowerBound(key); i < count && keys[i] == key; i++) {
+			if (pids[i] == rid.pageNo.pid && slots[i] == rid.slotNo) {
+				System.arraycopy(keys, i + 1, keys, i, count - i - 1);
+				System.arraycopy(pids, i + 1, pids, i, count - i - 1);
+				System.arraycopy(slots, i + 1, slots, i, count - i - 1);
+				count--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Move the entries from position `from' on into a new leaf.
+	 */
+	BTCompressedLeaf split(int from) {
+		BTCompressedLeaf right = new BTCompressedLeaf(count - from);
+		right.aligned = aligned;
+		right.count = count - from;
+		System.arraycopy(keys, from, right.keys, 0, right.count);
+		System.arraycopy(pids, from, right.pids, 0, right.count);
+		System.arraycopy(slots, from, right.slots, 0, right.count);
+		count = from;
+		return right;
+	}
+
+	KeyDataEntry entry(int i) {
+		return new KeyDataEntry(new IntegerKey(keys[i]), new RID(new PageId(
+				pids[i]), slots[i]));
+	}
+
+	private long min(int[] values) {
+		int m = values[0];
+		for (int i = 1; i < count; i++)
+			m = Math.min(m, values[i]);
+		return m;
+	}
+
+	private long max(int[] values) {
+		int m = values[0];
+		for (int i = 1; i < count; i++)
+			m = Math.max(m, values[i]);
+		return m;
+	}
+
+	private static int width(long range) {
+		return 64 - Long.numberOfLeadingZeros(range);
+	}
+
+	private static void putBits(byte[] data, int base, int bit, long value,
+			int width) {
+		while (width > 0) {
+			int at = base + (bit >>> 3);
+			int shift = bit & 7;
+			int n = Math.min(8 - shift, width);
+			int mask = ((1 << n) - 1) << shift;
+			data[at] = (byte) ((data[at] & ~mask) | (((int) value << shift) & mask));
+			value >>>= n;
+			bit += n;
+			width -= n;
+		}
+	}
+
+	private static long getBits(byte[] data, int base, int bit, int width) {
+		long value = 0;
+		for (int done = 0; done < width;) {
+			int at = base + (bit >>> 3);
+			int shift = bit & 7;
+			int n = Math.min(8 - shift, width - done);
+			value |= (long) (((data[at] & 0xff) >>> shift) & ((1 << n) - 1)) << done;
+			done += n;
+			bit += n;
+		}
+		return value;
+	}
+}
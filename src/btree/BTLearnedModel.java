@@ -0,0 +1,172 @@
+package btree;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTLearnedModel is a learned index over the leaves of a BTreeFile with
+ * integer keys: a piecewise-linear model that predicts, for a key, the
+ * position of its first entry among all entries of the index (its rank),
+ * within a bounded error. The ranks where the leaves start map the
+ * predicted window to a leaf page and a slot range, so findRunStart() can
+ * go straight to the leaf and search a few slots instead of descending the
+ * index pages.
+ *
+ * The segments are fitted greedily: a segment grows while one line still
+ * passes within maxError of the ranks of all its keys (the cone of the
+ * slopes that do is narrowed with every key). A key between two trained
+ * keys is predicted between their ranks, so besides maxError the window
+ * covers the longest run of duplicates.
+ *
+ * The model describes the leaves at the time it was trained; BTreeFile
+ * only uses it while no entry was inserted or deleted since.
+ */
+class BTLearnedModel {
+
+	final long trainedAt; // the change count of the index when trained
+	private final int total; // entries in the index
+	private final int slack; // max error + longest duplicate run + rounding
+
+	// the segments, in key order
+	private final int[] segKey;
+	private final int[] segRank;
+	private final double[] segSlope;
+
+	// the non empty leaves, in key order, and the rank of their first entry
+	private final int[] leafIds;
+	private final int[] firstRank;
+	private final int leaves;
+
+	/**
+	 * Fit the model to the keys of all entries, in index order.
+	 */
+	BTLearnedModel(long trainedAt, int[] keys, int total, int[] leafIds,
+			int[] firstRank, int leaves, int maxError) {
+		this.trainedAt = trainedAt;
+		this.total = total;
+		this.leafIds = leafIds;
+		this.firstRank = firstRank;
+		this.leaves = leaves;
+
+		List<int[]> starts = new ArrayList<int[]>();
+		List<Double> slopes = new ArrayList<Double>();
+		int maxDup = 0;
+		long x0 = 0;
+		int y0 = 0;
+		double lo = 0, hi = Double.POSITIVE_INFINITY;
+
+		for (int i = 0; i < total;) {
+			int run = 1;
+			while (i + run < total && keys[i + run] == keys[i])
+				run++;
+			maxDup = Math.max(maxDup, run);
+
+			long x = keys[i];
+			if (starts.isEmpty()) {
+				starts.add(new int[] { keys[i], i });
+				x0 = x;
+				y0 = i;
+			} else {
+				double dx = x - x0;
+				double newLo = Math.max(lo, (i - maxError - y0) / dx);
+				double newHi = Math.min(hi, (i + maxError - y0) / dx);
+				if (newLo > newHi) {
+					// the key does not fit: close the segment, start another
+					slopes.add(slope(lo, hi));
+					starts.add(new int[] { keys[i], i });
+					x0 = x;
+					y0 = i;
+					lo = 0;
+					hi = Double.POSITIVE_INFINITY;
+				} else {
+					lo = newLo;
+					hi = newHi;
+				}
+			}
+			i += run;
+		}
+		if (!starts.isEmpty())
+			slopes.add(slope(lo, hi));
+
+		segKey = new int[starts.size()];
+		segRank = new int[starts.size()];
+		segSlope = new double[starts.size()];
+		for (int s = 0; s < segKey.length; s++) {
+			segKey[s] = starts.get(s)[0];
+			segRank[s] = starts.get(s)[1];
+			segSlope[s] = slopes.get(s);
+		}
+		slack = maxError + maxDup + 1;
+	}
+
+	private static double slope(double lo, double hi) {
+		return (hi == Double.POSITIVE_INFINITY) ? lo : (lo + hi) / 2;
+	}
+
+	int segments() {
+		return segKey.length;
+	}
+
+	/**
+	 * @return the rank of the first entry >= key as predicted, clamped to
+	 *         the ranks its segment covers
+	 */
+	int predict(int key) {
+		int s = upperBound(segKey, segKey.length, key) - 1;
+		if (s < 0)
+			return 0;
+		int next = (s + 1 < segKey.length) ? segRank[s + 1] : total;
+		double rank = segRank[s] + segSlope[s] * ((long) key - segKey[s]);
+		return (int) Math.max(segRank[s], Math.min(next, Math.round(rank)));
+	}
+
+	/**
+	 * @return the first rank of the window the first entry >= key is in
+	 */
+	int windowStart(int key) {
+		return Math.max(0, predict(key) - slack);
+	}
+
+	/**
+	 * @return the last rank of the window (total if there may be no entry
+	 *         >= key)
+	 */
+	int windowEnd(int key) {
+		return Math.min(total, predict(key) + slack);
+	}
+
+	/**
+	 * @return the index of the leaf that holds the entry of a rank, leaves()
+	 *         if the rank is past the last entry
+	 */
+	int leafOf(int rank) {
+		if (rank >= total)
+			return leaves;
+		return upperBound(firstRank, leaves, rank) - 1;
+	}
+
+	int leaves() {
+		return leaves;
+	}
+
+	PageId leafId(int leaf) {
+		return new PageId(leafIds[leaf]);
+	}
+
+	int firstRank(int leaf) {
+		return (leaf < leaves) ? firstRank[leaf] : total;
+	}
+
+	private static int upperBound(int[] values, int n, int value) {
+		int lo = 0, hi = n;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (values[mid] <= value)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+}
@@ -0,0 +1,483 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTLog is a write-ahead log for the B+ tree files of one database. Every
+ * insert or delete of a BTreeFile that uses the log appends one redo record
+ * with the after-images of all pages the operation changed, so a crash in
+ * the middle of a split can never leave sibling links, parent separators and
+ * the root pointer of the header page out of step: after a restart either
+ * the whole operation is redone or none of it is on disk.
+ *
+ * Log file layout (the LSN of a record is its offset in the log since it was
+ * created; the head of the log is cut off at checkpoints):
+ *
+ * <pre>
+ * long base LSN | record*
+ * record: int length | long lsn | int type | payload | long crc32
+ * PAGES payload:      int count | count * (int pid, page image)
+ * CHECKPOINT payload: int count | count * (int pid, long recLSN)
+ * </pre>
+ *
+ * WAL before data: the pages of a logged operation stay pinned in the
+ * buffer pool, so they can not be written back, until the record is on disk.
+ * Pages have no room for an LSN in the HFPage header, so the LSN of the last
+ * record of every page is kept in the log's page table instead.
+ *
+ * Group commit: records are buffered and written with a single sync once
+ * groupSize operations are pending, or when force() is called. An operation
+ * is durable once force() returned. Since the pending operations hold their
+ * pages pinned, a group is also written early once less than a quarter of
+ * the frames of the buffer pool are left unpinned.
+ *
+ * Fuzzy checkpoints: checkpoint() writes back only the pages that have been
+ * dirty since before the previous checkpoint, then logs the dirty page table
+ * (page id and the LSN that first dirtied it) and records its LSN in the
+ * master file. Restart redo starts at the oldest recLSN of that table, so
+ * restart time follows the recent write volume, not the index size. The
+ * header pages are logged like any other page, so the root pointers need
+ * no record of their own.
+ *
+ * After an unclean shutdown, open the database (SystemDefs with num_pgs = 0)
+ * and call recover() before opening any BTreeFile.
+ */
+public class BTLog implements GlobalConst {
+
+	private final static int PAGES = 1;
+	private final static int CHECKPOINT = 2;
+
+	private final static int FILE_HEADER = 8;
+	private final static int RECORD_HEADER = 4 + 8 + 4;
+
+	private final String logName;
+	private final String masterName;
+	private final int groupSize;
+	private RandomAccessFile file;
+	private long baseLSN; // LSN of the first record in the file
+	private long endLSN; // LSN of the next record
+
+	private ByteArrayOutputStream group = new ByteArrayOutputStream();
+	private int groupOps;
+	private List<PageId> groupPins = new ArrayList<PageId>();
+	private final static int FREE_FRAMES = 4; // force below 1/FREE_FRAMES of the pool unpinned
+
+	private Map<Integer, Long> pageLSN = new HashMap<Integer, Long>();
+	private Map<Integer, Long> dirtyPages = new HashMap<Integer, Long>(); // pid -> recLSN
+
+	private long checkpointLSN = -1;
+	private long checkpointInterval; // bytes of log between checkpoints, 0 = manual
+
+	/**
+	 * Open the log, creating it if it does not exist.
+	 *
+	 * A group that does not fill up is only written by force(), or early
+	 * when the pool runs short of unpinned frames: until then its
+	 * operations are not durable and their pages stay pinned. Call force()
+	 * at commit points and before the database goes idle.
+	 *
+	 * @param logName
+	 *            the log file name. The master file (LSN of the last
+	 *            checkpoint) is logName + ".master". Input parameter.
+	 * @param groupSize
+	 *            number of operations written with one sync. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public BTLog(String logName, int groupSize) throws IOException {
+		this.logName = logName;
+		this.masterName = logName + ".master";
+		this.groupSize = Math.max(1, groupSize);
+
+		file = new RandomAccessFile(logName, "rw");
+		if (file.length() < FILE_HEADER) {
+			file.setLength(0);
+			file.writeLong(0);
+		}
+		file.seek(0);
+		baseLSN = file.readLong();
+		endLSN = baseLSN + file.length() - FILE_HEADER;
+
+		File master = new File(masterName);
+		if (master.exists()) {
+			DataInputStream in = new DataInputStream(new FileInputStream(
+					master));
+			try {
+				checkpointLSN = in.readLong();
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Take a checkpoint automatically whenever the log has grown by the given
+	 * number of bytes since the last one.
+	 *
+	 * @param bytes
+	 *            checkpoint interval, 0 for checkpoints only on request
+	 */
+	public synchronized void setCheckpointInterval(long bytes) {
+		checkpointInterval = bytes;
+	}
+
+	/**
+	 * Append the redo record of one operation. The caller has the pages
+	 * pinned; the log takes over one pin for every entry of pins and releases
+	 * it, dirty, once the record is on disk.
+	 *
+	 * @param pages
+	 *            pinned pages changed by the operation, with their ids
+	 * @param pins
+	 *            pins handed over to the log
+	 * @return the LSN of the record
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	synchronized long append(Map<Integer, Page> pages, List<PageId> pins)
+			throws IOException {
+		long lsn = endLSN + group.size();
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(body);
+		out.writeLong(lsn);
+		out.writeInt(PAGES);
+		out.writeInt(pages.size());
+		for (Map.Entry<Integer, Page> page : pages.entrySet()) {
+			out.writeInt(page.getKey());
+			out.write(page.getValue().getpage(), 0, MINIBASE_PAGESIZE);
+			pageLSN.put(page.getKey(), lsn);
+			if (!dirtyPages.containsKey(page.getKey()))
+				dirtyPages.put(page.getKey(), lsn);
+		}
+		out.flush();
+		appendRecord(body);
+
+		groupPins.addAll(pins);
+		int frames = SystemDefs.JavabaseBM.getNumBuffers();
+		if (++groupOps >= groupSize
+				|| SystemDefs.JavabaseBM.getNumUnpinnedBuffers() < frames / FREE_FRAMES)
+			force();
+		return lsn;
+	}
+
+	private void appendRecord(ByteArrayOutputStream body) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(body.toByteArray());
+		DataOutputStream rec = new DataOutputStream(group);
+		rec.writeInt(body.size());
+		body.writeTo(rec);
+		rec.writeLong(crc.getValue());
+		rec.flush();
+	}
+
+	/**
+	 * Write all pending records with one sync and release the pages they
+	 * hold pinned.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public synchronized void force() throws IOException {
+		flushGroup();
+		releasePins();
+
+		if (checkpointInterval > 0
+				&& endLSN - Math.max(checkpointLSN, baseLSN) >= checkpointInterval)
+			checkpoint();
+	}
+
+	private void flushGroup() throws IOException {
+		if (group.size() > 0) {
+			file.seek(FILE_HEADER + endLSN - baseLSN);
+			file.write(group.toByteArray());
+			file.getFD().sync();
+			endLSN += group.size();
+			group.reset();
+		}
+		groupOps = 0;
+	}
+
+	private void releasePins() throws IOException {
+		List<PageId> pins = groupPins;
+		groupPins = new ArrayList<PageId>();
+		try {
+			for (PageId pid : pins)
+				SystemDefs.JavabaseBM.unpinPage(pid, true);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Take a fuzzy checkpoint. Must not be called while an operation of a
+	 * BTreeFile using this log is running.
+	 *
+	 * Pages that have been dirty since before the previous checkpoint are
+	 * written back first (the log is forced, so that is WAL safe); the rest
+	 * stay in the dirty page table. The checkpoint record and the master
+	 * file are synced, and the log before the new redo point is cut off.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public synchronized void checkpoint() throws IOException {
+		flushGroup();
+		releasePins();
+
+		Iterator<Map.Entry<Integer, Long>> it = dirtyPages.entrySet()
+				.iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, Long> dirty = it.next();
+			if (dirty.getValue() < checkpointLSN) {
+				writePage(new PageId(dirty.getKey()));
+				it.remove();
+			}
+		}
+
+		long lsn = endLSN;
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(body);
+		out.writeLong(lsn);
+		out.writeInt(CHECKPOINT);
+		out.writeInt(dirtyPages.size());
+		for (Map.Entry<Integer, Long> dirty : dirtyPages.entrySet()) {
+			out.writeInt(dirty.getKey());
+			out.writeLong(dirty.getValue());
+		}
+		out.flush();
+		appendRecord(body);
+
+		flushGroup();
+
+		writeMaster(lsn);
+		checkpointLSN = lsn;
+		truncate(redoLSN(lsn, dirtyPages));
+	}
+
+	/*
+	 * Write a page back in place, without disturbing its pins: the frame
+	 * keeps its dirty bit and is written once more when it is replaced.
+	 */
+	void writePage(PageId pid) throws IOException {
+		Page page = new Page();
+		try {
+			SystemDefs.JavabaseBM.pinPage(pid, page, false);
+			SystemDefs.JavabaseDB.write_page(pid, page);
+			SystemDefs.JavabaseBM.unpinPage(pid, false);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IOException(e);
+		}
+	}
+
+	private void writeMaster(long lsn) throws IOException {
+		File tmp = new File(masterName + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(fos);
+		out.writeLong(lsn);
+		out.flush();
+		fos.getFD().sync();
+		out.close();
+		if (!tmp.renameTo(new File(masterName)))
+			throw new IOException("can not write " + masterName);
+	}
+
+	private static long redoLSN(long checkpoint, Map<Integer, Long> dirty) {
+		long lsn = checkpoint;
+		for (Long recLSN : dirty.values())
+			lsn = Math.min(lsn, recLSN);
+		return lsn;
+	}
+
+	/*
+	 * Cut off the log before the given LSN: the tail is copied to a new file
+	 * that replaces the log. The master file already points into the tail,
+	 * so a crash before or after the rename leaves a usable log.
+	 */
+	private void truncate(long lsn) throws IOException {
+		if (lsn <= baseLSN)
+			return;
+
+		File tmp = new File(logName + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		out.setLength(0);
+		out.writeLong(lsn);
+		byte[] buf = new byte[64 * MINIBASE_PAGESIZE];
+		file.seek(FILE_HEADER + lsn - baseLSN);
+		for (int n = file.read(buf); n > 0; n = file.read(buf))
+			out.write(buf, 0, n);
+		out.getFD().sync();
+		out.close();
+
+		file.close();
+		if (!tmp.renameTo(new File(logName)))
+			throw new IOException("can not replace " + logName);
+		file = new RandomAccessFile(logName, "rw");
+		baseLSN = lsn;
+	}
+
+	/**
+	 * @return the LSN of the last record that changed the page, -1 if none
+	 */
+	public synchronized long getPageLSN(PageId pid) {
+		Long lsn = pageLSN.get(pid.pid);
+		return (lsn == null) ? -1 : lsn.longValue();
+	}
+
+	/**
+	 * @return the LSN the next record will get
+	 */
+	public synchronized long getEndLSN() {
+		return endLSN + group.size();
+	}
+
+	/**
+	 * Restart recovery. Reads the last checkpoint named by the master file
+	 * and redoes the log from the oldest recLSN of its dirty page table; records before the checkpoint
+	 * are only redone for pages that were dirty at the checkpoint. A torn
+	 * record at the end of the log (a crash during its write) ends the redo;
+	 * it was never forced, so none of its pages reached the database. At the
+	 * end the buffer pool is flushed and a new checkpoint is taken.
+	 *
+	 * @return the number of page records redone
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public synchronized int recover() throws IOException {
+		Map<Integer, Long> dirty = null; // null: redo every page
+		long start = baseLSN;
+
+		if (checkpointLSN >= baseLSN) {
+			DataInputStream in = openAt(checkpointLSN);
+			try {
+				byte[] body = readRecord(in, checkpointLSN);
+				if (body != null) {
+					dirty = new HashMap<Integer, Long>();
+					readDirtyPages(body, dirty);
+					start = redoLSN(checkpointLSN, dirty);
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		int records = 0;
+		long pos = start;
+		DataInputStream in = openAt(start);
+		try {
+			for (byte[] body = readRecord(in, pos); body != null; body = readRecord(
+					in, pos)) {
+				if (redo(body, pos < checkpointLSN ? dirty : null))
+					records++;
+				pos += 4 + body.length + 8;
+			}
+		} finally {
+			in.close();
+		}
+
+		try {
+			SystemDefs.JavabaseBM.flushAllPages();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IOException(e);
+		}
+
+		// everything redone is on disk now; cut the torn tail, if any
+		file.setLength(FILE_HEADER + pos - baseLSN);
+		endLSN = pos;
+		pageLSN.clear();
+		dirtyPages.clear();
+		checkpoint();
+		return records;
+	}
+
+	private DataInputStream openAt(long lsn) throws IOException {
+		FileInputStream fis = new FileInputStream(logName);
+		fis.getChannel().position(FILE_HEADER + lsn - baseLSN);
+		return new DataInputStream(new BufferedInputStream(fis));
+	}
+
+	/*
+	 * the body of the complete record at lsn, null at the end of the log or
+	 * at a torn record.
+	 */
+	private byte[] readRecord(DataInputStream in, long lsn) throws IOException {
+		if (lsn + RECORD_HEADER > endLSN)
+			return null;
+		int length = in.readInt();
+		if (length < 12 || lsn + 4 + length + 8 > endLSN)
+			return null;
+		byte[] body = new byte[length];
+		in.readFully(body);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		if (in.readLong() != crc.getValue())
+			return null;
+		return body;
+	}
+
+	private void readDirtyPages(byte[] body, Map<Integer, Long> dirty)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				body));
+		in.readLong();
+		in.readInt();
+		for (int i = in.readInt(); i > 0; i--)
+			dirty.put(in.readInt(), in.readLong());
+	}
+
+	/*
+	 * Redo a PAGES record. With a dirty page table, a page image is only
+	 * redone if the page was dirty at the checkpoint and the record is not
+	 * older than the LSN that dirtied it.
+	 */
+	private boolean redo(byte[] body, Map<Integer, Long> dirty)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				body));
+		long lsn = in.readLong();
+		if (in.readInt() != PAGES)
+			return false;
+
+		byte[] image = new byte[MINIBASE_PAGESIZE];
+		for (int count = in.readInt(); count > 0; count--) {
+			PageId pid = new PageId(in.readInt());
+			in.readFully(image);
+			if (dirty != null
+					&& (!dirty.containsKey(pid.pid) || lsn < dirty.get(pid.pid)))
+				continue;
+
+			Page page = new Page();
+			try {
+				SystemDefs.JavabaseBM.pinPage(pid, page, false);
+				System.arraycopy(image, 0, page.getpage(), 0, MINIBASE_PAGESIZE);
+				SystemDefs.JavabaseBM.unpinPage(pid, true);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new IOException(e);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Force the pending records and close the log file.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public synchronized void close() throws IOException {
+		force();
+		file.close();
+	}
+}
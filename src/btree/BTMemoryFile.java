@@ -0,0 +1,443 @@
+package btree;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTMemoryFile is an index with integer keys kept entirely in memory, for
+ * small, hot indexes that need not go through the buffer manager. It has
+ * the insert, Delete and new_scan semantics of a BTreeFile with naive
+ * deletes: duplicate keys are allowed, and deletes never merge leaves.
+ *
+ * The nodes are not objects but fixed stripes of a few int arrays, sized to
+ * cache lines. An inner node is INNER ints (its key count, FANOUT - 1 keys,
+ * FANOUT children); a leaf is LEAF keys, with the page and slot numbers of
+ * their rids in two parallel arrays. A search reads one or two cache lines
+ * per level and follows no object references. A child reference >= 0 is an
+ * inner node, ~leaf a leaf.
+ *
+ * checkpoint() writes the entries to a BTreeFile, and load() reads one back,
+ * building the leaves and the inner nodes bottom-up.
+ */
+public class BTMemoryFile extends IndexFile {
+
+	static final int FANOUT = 16; // children of an inner node
+	static final int INNER = 2 * FANOUT; // ints per inner node
+	static final int LEAF = 32; // entries per leaf
+	private static final int LOAD_FILL = LEAF * 3 / 4; // entries per loaded leaf
+
+	// inner node n: count at n * INNER, keys from n * INNER + 1, children
+	// from n * INNER + FANOUT
+	private int[] inner = new int[16 * INNER];
+	private int inners;
+
+	// leaf l: entries from l * LEAF
+	int[] keys = new int[16 * LEAF];
+	int[] pids = new int[16 * LEAF];
+	int[] slots = new int[16 * LEAF];
+	int[] leafCount = new int[16];
+	int[] leafNext = new int[16]; // -1 for the last leaf
+	private int leaves;
+
+	private int root; // reference of the root node
+	private int size;
+
+	// the split of the node insert() returned true for
+	private int splitKey;
+	private int splitRef;
+
+	/**
+	 * Create an empty index.
+	 */
+	public BTMemoryFile() {
+		root = ~newLeaf();
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * insert record with the given key and rid
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @exception KeyNotMatchException
+	 *                key is not an integer key
+	 */
+	public void insert(KeyClass key, RID rid) throws KeyNotMatchException {
+		if (insert(root, intKey(key), rid.pageNo.pid, rid.slotNo)) {
+			int node = newInner();
+			int base = node * INNER;
+			inner[base] = 1;
+			inner[base + 1] = splitKey;
+			inner[base + FANOUT] = root;
+			inner[base + FANOUT + 1] = splitRef;
+			root = node;
+		}
+		size++;
+	}
+
+	/*
+	 * Insert into the subtree of a node, behind the entries with the same
+	 * key. If the node splits, the separator key and the new right node are
+	 * left in splitKey and splitRef and true is returned.
+	 */
+	private boolean insert(int ref, int key, int pid, int slot) {
+		if (ref < 0)
+			return insertLeaf(~ref, key, pid, slot);
+
+		int base = ref * INNER;
+		int n = inner[base];
+		int child = upperBound(inner, base + 1, n, key);
+		if (!insert(inner[base + FANOUT + child], key, pid, slot))
+			return false;
+
+		if (n < FANOUT - 1) {
+			System.arraycopy(inner, base + 1 + child, inner, base + 2 + child,
+					n - child);
+			System.arraycopy(inner, base + FANOUT + child + 1, inner, base
+					+ FANOUT + child + 2, n - child);
+			inner[base + 1 + child] = splitKey;
+			inner[base + FANOUT + child + 1] = splitRef;
+			inner[base]++;
+			return false;
+		}
+
+		// full: split the n + 1 keys around the middle one
+		int[] k = new int[n + 1];
+		int[] c = new int[n + 2];
+		System.arraycopy(inner, base + 1, k, 0, child);
+		k[child] = splitKey;
+		System.arraycopy(inner, base + 1 + child, k, child + 1, n - child);
+		System.arraycopy(inner, base + FANOUT, c, 0, child + 1);
+		c[child + 1] = splitRef;
+		System.arraycopy(inner, base + FANOUT + child + 1, c, child + 2, n
+				- child);
+
+		int mid = (n + 1) / 2;
+		int right = newInner();
+		base = ref * INNER; // newInner() may have grown the array
+		int rbase = right * INNER;
+		inner[base] = mid;
+		System.arraycopy(k, 0, inner, base + 1, mid);
+		System.arraycopy(c, 0, inner, base + FANOUT, mid + 1);
+		inner[rbase] = n - mid;
+		System.arraycopy(k, mid + 1, inner, rbase + 1, n - mid);
+		System.arraycopy(c, mid + 1, inner, rbase + FANOUT, n - mid + 1);
+		splitKey = k[mid];
+		splitRef = right;
+		return true;
+	}
+
+	private boolean insertLeaf(int leaf, int key, int pid, int slot) {
+		int n = leafCount[leaf];
+		if (n == LEAF) {
+			// full: move the upper half into a new leaf
+			int right = newLeaf();
+			int half = LEAF / 2;
+			System.arraycopy(keys, leaf * LEAF + half, keys, right * LEAF, half);
+			System.arraycopy(pids, leaf * LEAF + half, pids, right * LEAF, half);
+			System.arraycopy(slots, leaf * LEAF + half, slots, right * LEAF,
+					half);
+			leafCount[leaf] = half;
+			leafCount[right] = half;
+			leafNext[right] = leafNext[leaf];
+			leafNext[leaf] = right;
+
+			splitKey = keys[right * LEAF];
+			splitRef = ~right;
+			insertLeaf((key < splitKey) ? leaf : right, key, pid, slot);
+			return true;
+		}
+
+		int base = leaf * LEAF;
+		int pos = upperBound(keys, base, n, key);
+		System.arraycopy(keys, base + pos, keys, base + pos + 1, n - pos);
+		System.arraycopy(pids, base + pos, pids, base + pos + 1, n - pos);
+		System.arraycopy(slots, base + pos, slots, base + pos + 1, n - pos);
+		keys[base + pos] = key;
+		pids[base + pos] = pid;
+		slots[base + pos] = slot;
+		leafCount[leaf]++;
+		return false;
+	}
+
+	/**
+	 * delete leaf entry given its <key, rid> pair.
+	 *
+	 * @param key
+	 *            the key in pair <key, rid>. Input Parameter.
+	 * @param rid
+	 *            the rid in pair <key, rid>. Input Parameter.
+	 * @return true if deleted. false if no such record.
+	 * @exception KeyNotMatchException
+	 *                key is not an integer key
+	 */
+	public boolean Delete(KeyClass key, RID rid) throws KeyNotMatchException {
+		int k = intKey(key);
+		for (int leaf = findLeaf(k); leaf != -1; leaf = leafNext[leaf]) {
+			int base = leaf * LEAF;
+			int n = leafCount[leaf];
+			for (int i = lowerBound(keys, base, n, k); i < n
+					&& keys[base + i] == k; i++) {
+				if (pids[base + i] == rid.pageNo.pid
+						&& slots[base + i] == rid.slotNo) {
+					remove(leaf, i);
+					return true;
+				}
+			}
+			if (n > 0 && keys[base + n - 1] > k)
+				return false;
+		}
+		return false;
+	}
+
+	void remove(int leaf, int i) {
+		int base = leaf * LEAF;
+		int n = leafCount[leaf];
+		System.arraycopy(keys, base + i + 1, keys, base + i, n - i - 1);
+		System.arraycopy(pids, base + i + 1, pids, base + i, n - i - 1);
+		System.arraycopy(slots, base + i + 1, slots, base + i, n - i - 1);
+		leafCount[leaf]--;
+		size--;
+	}
+
+	/**
+	 * Find the rids of the entries with a key.
+	 *
+	 * @param key
+	 *            the key. Input parameter.
+	 * @return the rids, in index order
+	 * @exception KeyNotMatchException
+	 *                key is not an integer key
+	 */
+	public RID[] lookup(KeyClass key) throws KeyNotMatchException {
+		int k = intKey(key);
+		List<RID> rids = new ArrayList<RID>();
+		for (int leaf = findLeaf(k); leaf != -1; leaf = leafNext[leaf]) {
+			int base = leaf * LEAF;
+			int n = leafCount[leaf];
+			int i = lowerBound(keys, base, n, k);
+			for (; i < n && keys[base + i] == k; i++)
+				rids.add(new RID(new PageId(pids[base + i]), slots[base + i]));
+			if (i < n)
+				break;
+		}
+		return rids.toArray(new RID[rids.size()]);
+	}
+
+	/**
+	 * create a scan with given keys. The cases for lo_key and hi_key are the
+	 * same as for BTreeFile.new_scan(). The index must not be changed while
+	 * the scan is open, except through its delete_current().
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception KeyNotMatchException
+	 *                key is not an integer key
+	 */
+	public BTMemoryFileScan new_scan(KeyClass lo_key, KeyClass hi_key)
+			throws KeyNotMatchException {
+		BTMemoryFileScan scan = new BTMemoryFileScan();
+		scan.file = this;
+		scan.hi = (hi_key == null) ? Long.MAX_VALUE : intKey(hi_key);
+		if (lo_key == null) {
+			scan.leaf = ~leftmost();
+			scan.pos = 0;
+		} else {
+			int k = intKey(lo_key);
+			scan.leaf = findLeaf(k);
+			scan.pos = lowerBound(keys, scan.leaf * LEAF, leafCount[scan.leaf], k);
+		}
+		return scan;
+	}
+
+	/**
+	 * Write the entries to a new BTreeFile, replacing the file of that name
+	 * if there is one. The entries are inserted in key order.
+	 *
+	 * @param filename
+	 *            the name of the file. Input parameter.
+	 * @param leafFormat
+	 *            the leaf format of the file, see LeafFormat. Input
+	 *            parameter.
+	 * @return the file, open
+	 * @exception InsertException
+	 *                error when creating the file or inserting an entry
+	 */
+	public BTreeFile checkpoint(String filename, int leafFormat)
+			throws InsertException {
+		try {
+			if (SystemDefs.JavabaseDB.get_file_entry(filename) != null)
+				new BTreeFile(filename).destroyFile();
+			BTreeFile file = new BTreeFile(filename, AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE, leafFormat);
+			for (int leaf = ~leftmost(); leaf != -1; leaf = leafNext[leaf])
+				for (int i = leaf * LEAF; i < leaf * LEAF + leafCount[leaf]; i++)
+					file.insert(new IntegerKey(keys[i]), new RID(new PageId(
+							pids[i]), slots[i]));
+			return file;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "");
+		}
+	}
+
+	/**
+	 * Read the entries of a BTreeFile with integer keys into a new memory
+	 * index. The leaves are filled to three quarters, and the inner nodes
+	 * are built over them level by level.
+	 *
+	 * @param file
+	 *            the file to read. Input parameter.
+	 * @return the memory index
+	 * @exception KeyNotMatchException
+	 *                the keys of the file are not integer keys
+	 * @exception IteratorException
+	 *                error when scanning the file
+	 */
+	public static BTMemoryFile load(BTreeFile file)
+			throws KeyNotMatchException, IteratorException {
+		BTMemoryFile memory = new BTMemoryFile();
+		int[] k = new int[LOAD_FILL];
+		int[] p = new int[LOAD_FILL];
+		int[] s = new int[LOAD_FILL];
+		try {
+			BTBatchScan scan = file.new_batch_scan(null, null);
+			int leaf = 0;
+			for (int n; (n = scan.get_next_batch(k, p, s)) > 0;) {
+				if (memory.leafCount[leaf] > 0) {
+					int next = memory.newLeaf();
+					memory.leafNext[leaf] = next;
+					leaf = next;
+				}
+				System.arraycopy(k, 0, memory.keys, leaf * LEAF, n);
+				System.arraycopy(p, 0, memory.pids, leaf * LEAF, n);
+				System.arraycopy(s, 0, memory.slots, leaf * LEAF, n);
+				memory.leafCount[leaf] = n;
+				memory.size += n;
+			}
+			scan.DestroyBTreeFileScan();
+		} catch (KeyNotMatchException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+
+		// the level above holds the references and the smallest keys of
+		// the nodes below, FANOUT * 3 / 4 of them per node
+		int count = memory.leaves;
+		int[] refs = new int[count];
+		int[] lows = new int[count];
+		for (int leaf = 0; leaf < count; leaf++) {
+			refs[leaf] = ~leaf;
+			lows[leaf] = memory.keys[leaf * LEAF];
+		}
+		int fill = FANOUT * 3 / 4;
+		while (count > 1) {
+			int up = 0;
+			for (int from = 0; from < count; from += fill, up++) {
+				int n = Math.min(fill, count - from);
+				if (count - from - n == 1)
+					n++; // no node with a single child
+				int node = memory.newInner();
+				int base = node * INNER;
+				memory.inner[base] = n - 1;
+				for (int i = 0; i < n; i++) {
+					memory.inner[base + FANOUT + i] = refs[from + i];
+					if (i > 0)
+						memory.inner[base + i] = lows[from + i];
+				}
+				refs[up] = node;
+				lows[up] = lows[from];
+				if (n > fill)
+					from++;
+			}
+			count = up;
+		}
+		memory.root = refs[0];
+		return memory;
+	}
+
+	/*
+	 * The leaf where the entries >= key start: left of the first key >= key
+	 * on every level, as BTreeFile.findRunStart() goes.
+	 */
+	private int findLeaf(int key) {
+		int ref = root;
+		while (ref >= 0) {
+			int base = ref * INNER;
+			ref = inner[base + FANOUT + lowerBound(inner, base + 1, inner[base], key)];
+		}
+		return ~ref;
+	}
+
+	private int leftmost() {
+		int ref = root;
+		while (ref >= 0)
+			ref = inner[ref * INNER + FANOUT];
+		return ref;
+	}
+
+	private int newInner() {
+		if ((inners + 1) * INNER > inner.length)
+			inner = Arrays.copyOf(inner, 2 * inner.length);
+		return inners++;
+	}
+
+	private int newLeaf() {
+		if (leaves == leafCount.length) {
+			keys = Arrays.copyOf(keys, 2 * keys.length);
+			pids = Arrays.copyOf(pids, 2 * pids.length);
+			slots = Arrays.copyOf(slots, 2 * slots.length);
+			leafCount = Arrays.copyOf(leafCount, 2 * leaves);
+			leafNext = Arrays.copyOf(leafNext, 2 * leaves);
+		}
+		leafCount[leaves] = 0;
+		leafNext[leaves] = -1;
+		return leaves++;
+	}
+
+	/* the position of the first of n values from base that is >= key */
+	private static int lowerBound(int[] values, int base, int n, int key) {
+		int lo = 0, hi = n;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (values[base + mid] < key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/* the position of the first of n values from base that is > key */
+	private static int upperBound(int[] values, int base, int n, int key) {
+		int lo = 0, hi = n;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (values[base + mid] <= key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	private static int intKey(KeyClass key) throws KeyNotMatchException {
+		if (!(key instanceof IntegerKey))
+			throw new KeyNotMatchException(null,
+					"memory indexes need integer keys");
+		return ((IntegerKey) key).getKey();
+	}
+}
@@ -0,0 +1,65 @@
+package btree;
+
+import global.*;
+
+/**
+ * BTMemoryFileScan is a range scan over a BTMemoryFile, walking its leaf
+ * arrays from the leaf and position where lo_key starts.
+ *
+ * Created by BTMemoryFile.new_scan().
+ */
+public class BTMemoryFileScan extends IndexFileScan {
+
+	BTMemoryFile file;
+	long hi; // hi_key, Long.MAX_VALUE for no upper bound
+	int leaf; // -1 when the scan is done
+	int pos; // position in the leaf of the entry get_next() returns
+	private boolean didfirst; // an entry was returned and not deleted
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return the next entry, or null if the scan is done
+	 */
+	public KeyDataEntry get_next() {
+		while (leaf != -1 && pos >= file.leafCount[leaf]) {
+			leaf = file.leafNext[leaf];
+			pos = 0;
+		}
+		didfirst = false;
+		if (leaf == -1)
+			return null;
+
+		int i = leaf * BTMemoryFile.LEAF + pos;
+		if (file.keys[i] > hi) {
+			leaf = -1;
+			return null;
+		}
+		pos++;
+		didfirst = true;
+		return new KeyDataEntry(new IntegerKey(file.keys[i]), new RID(
+				new PageId(file.pids[i]), file.slots[i]));
+	}
+
+	/**
+	 * Delete the entry get_next() returned last.
+	 *
+	 * @exception ScanDeleteException
+	 *                there is no current entry
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (!didfirst)
+			throw new ScanDeleteException(null, "no current entry");
+		file.remove(leaf, --pos);
+		didfirst = false;
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the size of an integer key
+	 */
+	public int keysize() {
+		return 4;
+	}
+}
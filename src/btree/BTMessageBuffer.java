@@ -0,0 +1,121 @@
+package btree;
+
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTMessageBuffer is the message buffer of an index page of a BTreeFile in
+ * write-optimized mode: the inserts (and some deletes) for the subtree of
+ * the page that were not applied to its leaves yet, oldest first.
+ *
+ * A buffer lives in a run of PAGES pages referenced from the nextPage link
+ * of its index page, which index pages do not use otherwise. The first
+ * int of the first page is the number of messages; every page holds
+ * PER_PAGE messages of 13 bytes: the operation, the key, and the page and
+ * slot numbers of the rid.
+ *
+ * BTreeFile pins the pages; this class reads and writes their contents.
+ */
+class BTMessageBuffer implements GlobalConst {
+
+	static final byte INSERT = 1;
+	static final byte DELETE = 2;
+	static final int PAGES = 8;
+	private static final int SIZE = 13;
+	static final int PER_PAGE = (MINIBASE_PAGESIZE - 4) / SIZE;
+	static final int CAPACITY = PAGES * PER_PAGE;
+
+	int count;
+	byte[] ops = new byte[16];
+	int[] keys = new int[16];
+	int[] pids = new int[16];
+	int[] slots = new int[16];
+
+	void add(byte op, int key, int pid, int slot) {
+		if (count == keys.length) {
+			ops = Arrays.copyOf(ops, 2 * count);
+			keys = Arrays.copyOf(keys, 2 * count);
+			pids = Arrays.copyOf(pids, 2 * count);
+			slots = Arrays.copyOf(slots, 2 * count);
+		}
+		ops[count] = op;
+		keys[count] = key;
+		pids[count] = pid;
+		slots[count++] = slot;
+	}
+
+	/**
+	 * @return the number of pages the messages take, at least one
+	 */
+	int pages() {
+		return Math.max(1, (count + PER_PAGE - 1) / PER_PAGE);
+	}
+
+	/**
+	 * @return the page that holds message i of the buffer starting at first
+	 */
+	static PageId page(PageId first, int i) {
+		return new PageId(first.pid + i / PER_PAGE);
+	}
+
+	/**
+	 * @return the number of messages, from the first page
+	 */
+	static int count(Page first) {
+		return getInt(first.getpage(), 0);
+	}
+
+	static void setCount(Page first, int count) {
+		putInt(first.getpage(), 0, count);
+	}
+
+	/**
+	 * Write message i into the page that holds it.
+	 */
+	static void put(Page page, int i, byte op, int key, int pid, int slot) {
+		byte[] data = page.getpage();
+		int at = 4 + (i % PER_PAGE) * SIZE;
+		data[at] = op;
+		putInt(data, at + 1, key);
+		putInt(data, at + 5, pid);
+		putInt(data, at + 9, slot);
+	}
+
+	/**
+	 * Read the messages of page n, which follow the ones already read.
+	 */
+	void readPage(int n, Page page, int total) {
+		byte[] data = page.getpage();
+		int end = Math.min(total, (n + 1) * PER_PAGE);
+		for (int i = n * PER_PAGE; i < end; i++) {
+			int at = 4 + (i % PER_PAGE) * SIZE;
+			add(data[at], getInt(data, at + 1), getInt(data, at + 5), getInt(
+					data, at + 9));
+		}
+	}
+
+	/**
+	 * Write the messages of page n, and the count if it is the first page.
+	 */
+	void writePage(int n, Page page) {
+		if (n == 0)
+			setCount(page, count);
+		int end = Math.min(count, (n + 1) * PER_PAGE);
+		for (int i = n * PER_PAGE; i < end; i++)
+			put(page, i, ops[i], keys[i], pids[i], slots[i]);
+	}
+
+	private static int getInt(byte[] data, int at) {
+		return ((data[at] & 0xFF) << 24) | ((data[at + 1] & 0xFF) << 16)
+				| ((data[at + 2] & 0xFF) << 8) | (data[at + 3] & 0xFF);
+	}
+
+	private static void putInt(byte[] data, int at, int value) {
+		data[at] = (byte) (value >>> 24);
+		data[at + 1] = (byte) (value >>> 16);
+		data[at + 2] = (byte) (value >>> 8);
+		data[at + 3] = (byte) value;
+	}
+}
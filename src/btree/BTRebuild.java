@@ -0,0 +1,267 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTRebuild builds a compact copy of a BTreeFile for
+ * BTreeFile.rebuildOnline(). The leaf chain of the old tree is read in key
+ * order, a few leaves per step, and appended to new leaves that are filled up
+ * to LEAF_FILL and allocated in runs of EXTENT pages, so logically adjacent
+ * leaves are physically adjacent in the DB file. The index levels are built
+ * bottom up once the last leaf is written.
+ *
+ * Between steps the old tree keeps serving reads and updates. The copy has
+ * seen every key up to the cursor (all duplicates of the cursor key
+ * included); inserts and deletes at or below the cursor are recorded in the
+ * side log and replayed on the new tree when it replaces the old one, the
+ * ones above the cursor are still picked up by the copy.
+ */
+class BTRebuild implements GlobalConst {
+
+	private final static int EXTENT = 64;
+	private final static int LEAF_FILL = MINIBASE_PAGESIZE * 9 / 10;
+
+	/** An insert or delete captured while the copy runs. */
+	static class SideOp {
+		final boolean insert;
+		final KeyClass key;
+		final RID rid;
+
+		SideOp(boolean insert, KeyClass key, RID rid) {
+			this.insert = insert;
+			this.key = key;
+			this.rid = new RID(new PageId(rid.pageNo.pid), rid.slotNo);
+		}
+	}
+
+	private final BTreeFile bfile;
+	private final int keyType;
+
+	private KeyClass cursor; // largest key copied, null before the first
+	private List<SideOp> sideLog = new ArrayList<SideOp>();
+
+	private int nextPage = INVALID_PAGE; // next free page of the extent
+	private int extentLeft;
+	private List<PageId> built = new ArrayList<PageId>();
+
+	private BTLeafPage leaf; // pinned, the leaf being filled
+	private List<KeyClass> firstKeys = new ArrayList<KeyClass>();
+	private List<PageId> children = new ArrayList<PageId>();
+
+	BTRebuild(BTreeFile bfile, int keyType) {
+		this.bfile = bfile;
+		this.keyType = keyType;
+	}
+
+	/**
+	 * Record an insert or delete of the old tree. Only the ones the copy has
+	 * already passed are kept.
+	 */
+	void capture(boolean insert, KeyClass key, RID rid)
+			throws KeyNotMatchException {
+		if (cursor != null && BT.keyCompare(key, cursor) <= 0)
+			sideLog.add(new SideOp(insert, key, rid));
+	}
+
+	List<SideOp> sideLog() {
+		return sideLog;
+	}
+
+	/**
+	 * Copy the entries after the cursor from about the given number of old
+	 * leaves; the step ends at a key boundary, so a run of duplicates is
+	 * never cut.
+	 *
+	 * @return false once the whole old tree has been copied
+	 */
+	boolean copy(int leaves) throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException, LeafInsertRecException, NodeNotMatchException,
+			IndexSearchException {
+		RID rid = new RID();
+		BTLeafPage old = bfile.findRunStart(cursor, rid);
+		if (old == null)
+			return false;
+
+		KeyClass from = cursor;
+		boolean stopping = false;
+		KeyDataEntry entry = old.getCurrent(rid);
+		while (true) {
+			if (entry == null) {
+				PageId next = old.getNextPage();
+				unpin(old.getCurPage(), false);
+				if (next.pid == INVALID_PAGE)
+					return false;
+				if (--leaves <= 0)
+					stopping = true;
+				old = new BTLeafPage(next, keyType);
+				entry = old.getFirst(rid);
+				continue;
+			}
+
+			if (from == null || BT.keyCompare(entry.key, from) > 0) {
+				if (stopping && cursor != null
+						&& BT.keyCompare(entry.key, cursor) > 0) {
+					unpin(old.getCurPage(), false);
+					return true;
+				}
+				append(entry.key, ((LeafData) entry.data).getData());
+				cursor = entry.key;
+			}
+			entry = old.getNext(rid);
+		}
+	}
+
+	private void append(KeyClass key, RID rid) throws IOException,
+			KeyNotMatchException, NodeNotMatchException, ConstructPageException,
+			UnpinPageException, LeafInsertRecException {
+		int length = BT.getKeyDataLength(key, NodeType.LEAF);
+		BTLeafPage full = null;
+		if (leaf != null
+				&& leaf.available_space() - length < MINIBASE_PAGESIZE
+						- LEAF_FILL) {
+			full = leaf;
+			leaf = null;
+		}
+
+		if (leaf == null) {
+			PageId prev = children.isEmpty() ? new PageId(INVALID_PAGE)
+					: children.get(children.size() - 1);
+			leaf = new BTLeafPage(pinNew(), keyType);
+			leaf.setType(NodeType.LEAF);
+			leaf.setPrevPage(prev);
+			leaf.setNextPage(new PageId(INVALID_PAGE));
+			children.add(leaf.getCurPage());
+			firstKeys.add(key);
+			if (full != null) {
+				full.setNextPage(leaf.getCurPage());
+				unpin(full.getCurPage(), true);
+			}
+		}
+
+		if (leaf.insertRecord(key, rid) == null)
+			throw new LeafInsertRecException(null, "leaf page is full");
+	}
+
+	/**
+	 * Close the last leaf and build the index levels.
+	 *
+	 * @return the root of the new tree, INVALID_PAGE if it is empty
+	 */
+	PageId finish() throws IOException, KeyNotMatchException,
+			NodeNotMatchException, ConstructPageException, UnpinPageException,
+			IndexInsertRecException {
+		if (leaf != null) {
+			unpin(leaf.getCurPage(), true);
+			leaf = null;
+		}
+
+		List<KeyClass> keys = firstKeys;
+		List<PageId> level = children;
+		while (level.size() > 1) {
+			List<KeyClass> upperKeys = new ArrayList<KeyClass>();
+			List<PageId> upper = new ArrayList<PageId>();
+			BTIndexPage index = null;
+			for (int i = 0; i < level.size(); i++) {
+				int length = BT.getKeyDataLength(keys.get(i), NodeType.INDEX);
+				if (index != null
+						&& index.available_space() - length < MINIBASE_PAGESIZE
+								- LEAF_FILL) {
+					unpin(index.getCurPage(), true);
+					index = null;
+				}
+				if (index == null) {
+					index = new BTIndexPage(pinNew(), keyType);
+					index.setType(NodeType.INDEX);
+					index.setPrevPage(level.get(i)); // leftmost child
+					upperKeys.add(keys.get(i));
+					upper.add(index.getCurPage());
+				} else if (index.insertKey(keys.get(i), level.get(i)) == null) {
+					throw new IndexInsertRecException(null,
+							"index page is full");
+				}
+			}
+			unpin(index.getCurPage(), true);
+			keys = upperKeys;
+			level = upper;
+		}
+
+		freeExtent();
+		return level.isEmpty() ? new PageId(INVALID_PAGE) : level.get(0);
+	}
+
+	/**
+	 * @return the pages of the new tree
+	 */
+	List<PageId> pages() {
+		return built;
+	}
+
+	/**
+	 * Give back the pages of an unfinished copy.
+	 */
+	void abandon() {
+		try {
+			if (leaf != null)
+				unpin(leaf.getCurPage(), false);
+			leaf = null;
+			freeExtent();
+			for (PageId pid : built)
+				SystemDefs.JavabaseBM.freePage(pid);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		built.clear();
+	}
+
+	/*
+	 * A pinned, initialized page from the current extent.
+	 */
+	private Page pinNew() throws ConstructPageException {
+		try {
+			if (extentLeft == 0) {
+				PageId first = new PageId();
+				SystemDefs.JavabaseDB.allocate_page(first, EXTENT);
+				nextPage = first.pid;
+				extentLeft = EXTENT;
+			}
+			PageId pid = new PageId(nextPage++);
+			extentLeft--;
+
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pid, page, true /* empty */);
+			new BTSortedPage(page, keyType).init(pid, page);
+			built.add(pid);
+			return page;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "extent allocation failed");
+		}
+	}
+
+	private void freeExtent() throws ConstructPageException {
+		if (extentLeft == 0)
+			return;
+		try {
+			SystemDefs.JavabaseDB.deallocate_page(new PageId(nextPage),
+					extentLeft);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "extent deallocation failed");
+		}
+		extentLeft = 0;
+	}
+
+	private void unpin(PageId pid, boolean dirty) throws UnpinPageException {
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pid, dirty);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+}
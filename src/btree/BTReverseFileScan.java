@@ -0,0 +1,138 @@
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTReverseFileScan is a descending range scan over a BTreeFile. It is
+ * positioned on the rightmost entry &lt;= hi_key by BTreeFile.findRunEnd()
+ * and walks the leaf chain backwards through the prevPage links, stopping at
+ * the first entry &lt; lo_key. A top-N-by-key query therefore reads only N
+ * entries.
+ *
+ * Created by BTreeFile.new_descending_scan().
+ */
+public class BTReverseFileScan extends IndexFileScan implements GlobalConst {
+
+	BTreeFile bfile;
+	String treeFilename;
+	BTLeafPage leafPage; // pinned, null when the scan is done
+	RID curRid; // slot of the entry the next get_next() returns
+	boolean didfirst;
+	KeyClass startkey; // lo_key, null for no lower bound
+	NormalizedKey startprobe;
+	int keyType;
+	int maxKeysize;
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return the next (smaller) entry, or null if the scan is done
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		if (leafPage == null)
+			return null;
+
+		try {
+			while (curRid.slotNo < 0) {
+				// have to go left
+				PageId prevpage = leafPage.getPrevPage();
+				SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+				if (prevpage.pid == INVALID_PAGE) {
+					leafPage = null;
+					return null;
+				}
+				leafPage = new BTLeafPage(prevpage, keyType);
+				curRid.pageNo = leafPage.getCurPage();
+				curRid.slotNo = leafPage.getSlotCnt() - 1;
+			}
+
+			if (startkey != null && belowStart()) {
+				SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+				leafPage = null;
+				return null;
+			}
+
+			KeyDataEntry entry = leafPage.getCurrent(curRid);
+			curRid.slotNo--;
+			didfirst = true;
+			return entry;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+
+	private boolean belowStart() throws IOException, IteratorException,
+			KeyNotMatchException {
+		if (startprobe != null)
+			return startprobe.compareSlot(leafPage, curRid.slotNo) < 0;
+		return BT.keyCompare(leafPage.getCurrent(curRid).key, startkey) < 0;
+	}
+
+	/**
+	 * Delete the entry returned by the last get_next(). Deleting shifts only
+	 * the slots to the right of it, so the position of the scan is kept.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (leafPage == null) {
+			System.out.println("No Record to delete!");
+			throw new ScanDeleteException();
+		}
+
+		if (!didfirst)
+			return;
+
+		try {
+			// get_next() only changes pages before it returns an entry, so
+			// the last entry returned is right of the current position
+			KeyDataEntry entry = leafPage.getCurrent(new RID(curRid.pageNo,
+					curRid.slotNo + 1));
+			bfile.Delete(entry.key, ((LeafData) entry.data).getData());
+			didfirst = false; // only once per returned entry
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException();
+		}
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return maxKeysize;
+	}
+
+	/**
+	 * destructor. unpin some pages if they are not unpinned already. and do
+	 * some clearing work.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (leafPage != null) {
+			SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+		}
+		leafPage = null;
+	}
+}
@@ -0,0 +1,141 @@
+package btree;
+
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/**
+ * BTScanIterator adapts a BTFileScan (or BTReverseFileScan) to
+ * java.util.Iterator and java.util.stream.Stream. A scan keeps its current
+ * leaf page pinned until it runs off the end of the range, so a caller that
+ * stops early must release it; this adapter does that in close(), which
+ * try-with-resources (or Stream.close()) calls deterministically.
+ *
+ * limit() and takeWhile() are pushed down into the adapter: as soon as the
+ * limit is reached or the predicate fails, the leaf walk stops and the page
+ * is unpinned right away, before the caller even closes the iterator.
+ *
+ * <pre>
+ * try (BTScanIterator it = file.new_scan_iterator(lo, hi).limit(10)) {
+ * 	while (it.hasNext())
+ * 		use(it.next());
+ * }
+ * </pre>
+ */
+public class BTScanIterator implements Iterator<KeyDataEntry>, AutoCloseable {
+
+	private IndexFileScan scan; // null once released
+	private KeyDataEntry next; // look-ahead entry, null if not fetched
+	private long remaining = Long.MAX_VALUE;
+	private Predicate<KeyDataEntry> condition;
+
+	/**
+	 * @param scan
+	 *            a scan created by BTreeFile.new_scan()
+	 */
+	public BTScanIterator(BTFileScan scan) {
+		this.scan = scan;
+	}
+
+	/**
+	 * @param scan
+	 *            a scan created by BTreeFile.new_descending_scan()
+	 */
+	public BTScanIterator(BTReverseFileScan scan) {
+		this.scan = scan;
+	}
+
+	/**
+	 * Return at most n more entries, then stop the leaf walk and unpin.
+	 *
+	 * @return this iterator
+	 */
+	public BTScanIterator limit(long n) {
+		if (n < 0)
+			throw new IllegalArgumentException("negative limit");
+		remaining = n;
+		return this;
+	}
+
+	/**
+	 * Return entries only while the predicate holds; the first entry that
+	 * fails it stops the leaf walk and unpins.
+	 *
+	 * @return this iterator
+	 */
+	public BTScanIterator takeWhile(Predicate<? super KeyDataEntry> predicate) {
+		Predicate<KeyDataEntry> previous = condition;
+		if (previous == null)
+			condition = e -> predicate.test(e);
+		else
+			condition = e -> previous.test(e) && predicate.test(e);
+		return this;
+	}
+
+	public boolean hasNext() {
+		if (next != null)
+			return true;
+		if (scan == null)
+			return false;
+		if (remaining == 0) {
+			close();
+			return false;
+		}
+
+		KeyDataEntry entry;
+		try {
+			entry = scan.get_next();
+		} catch (Exception e) {
+			close();
+			throw new IllegalStateException(e);
+		}
+
+		if (entry == null || (condition != null && !condition.test(entry))) {
+			close();
+			return false;
+		}
+		next = entry;
+		return true;
+	}
+
+	public KeyDataEntry next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		KeyDataEntry entry = next;
+		next = null;
+		if (--remaining == 0)
+			close(); // entries are copies, the page is not needed anymore
+		return entry;
+	}
+
+	/**
+	 * A sequential, ordered stream of the remaining entries. Closing the
+	 * stream closes this iterator.
+	 */
+	public Stream<KeyDataEntry> stream() {
+		return StreamSupport.stream(
+				Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED
+						| Spliterator.NONNULL), false).onClose(this::close);
+	}
+
+	/**
+	 * Unpin the page held by the scan. Can be called more than once.
+	 */
+	public void close() {
+		if (scan == null)
+			return;
+
+		IndexFileScan s = scan;
+		scan = null;
+		try {
+			if (s instanceof BTFileScan)
+				((BTFileScan) s).DestroyBTreeFileScan();
+			else
+				((BTReverseFileScan) s).DestroyBTreeFileScan();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IllegalStateException(e);
+		}
+	}
+}
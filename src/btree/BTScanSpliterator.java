@@ -0,0 +1,152 @@
+package btree;
+
+import java.util.*;
+import java.util.function.*;
+
+import global.*;
+
+/**
+ * BTScanSpliterator is a range scan over a BTreeFile that can be split into
+ * sub-ranges for a parallel Stream. It covers the keys from lo (inclusive)
+ * up to hi, and carries the separator keys of the upper BTIndexPage levels
+ * that fall inside the range; trySplit() hands the left half of the
+ * separators to a new spliterator, so every split is a balanced sub-range
+ * that starts with its own descent.
+ *
+ * Following the locking rule of BTreeFile, pages are only pinned, copied
+ * and unpinned while holding the SystemDefs.JavabaseBM monitor, one leaf at
+ * a time; the entries are then handed to the consumer without holding any
+ * page, and that part runs in parallel. The index must not be modified
+ * while the scan runs.
+ *
+ * Created by BTreeFile.parallel_scan().
+ */
+class BTScanSpliterator implements Spliterator<KeyDataEntry>, GlobalConst {
+
+	private final BTreeFile bfile;
+	private final int keyType;
+
+	private KeyClass lo; // null for no lower bound
+	private List<KeyClass> separators; // sorted, all inside (lo, hi)
+	private final KeyClass hi; // null for no upper bound
+	private final boolean hiInclusive;
+
+	private boolean started;
+	private boolean done;
+	private PageId nextPage;
+	private List<KeyDataEntry> buffer = new ArrayList<KeyDataEntry>();
+	private int pos;
+
+	BTScanSpliterator(BTreeFile bfile, int keyType, KeyClass lo,
+			List<KeyClass> separators, KeyClass hi, boolean hiInclusive) {
+		this.bfile = bfile;
+		this.keyType = keyType;
+		this.lo = lo;
+		this.separators = separators;
+		this.hi = hi;
+		this.hiInclusive = hiInclusive;
+	}
+
+	public boolean tryAdvance(Consumer<? super KeyDataEntry> action) {
+		while (pos == buffer.size()) {
+			if (done)
+				return false;
+			fill();
+		}
+		action.accept(buffer.get(pos++));
+		return true;
+	}
+
+	public void forEachRemaining(Consumer<? super KeyDataEntry> action) {
+		while (true) {
+			while (pos < buffer.size())
+				action.accept(buffer.get(pos++));
+			if (done)
+				return;
+			fill();
+		}
+	}
+
+	public Spliterator<KeyDataEntry> trySplit() {
+		if (started || separators.isEmpty())
+			return null;
+
+		int mid = separators.size() / 2;
+		BTScanSpliterator left = new BTScanSpliterator(bfile, keyType, lo,
+				new ArrayList<KeyClass>(separators.subList(0, mid)),
+				separators.get(mid), false);
+		lo = separators.get(mid);
+		separators = new ArrayList<KeyClass>(separators.subList(mid + 1,
+				separators.size()));
+		return left;
+	}
+
+	/**
+	 * The size is not known before the leaves are read; the number of
+	 * sub-ranges left is used as a relative measure for the fork-join
+	 * splitting.
+	 */
+	public long estimateSize() {
+		return done ? 0 : separators.size() + 1;
+	}
+
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+
+	/*
+	 * Copy the entries of the next leaf of the range into the buffer.
+	 */
+	private void fill() {
+		buffer = new ArrayList<KeyDataEntry>();
+		pos = 0;
+
+		synchronized (SystemDefs.JavabaseBM) {
+			try {
+				RID rid = new RID();
+				BTLeafPage leafPage;
+				KeyDataEntry entry;
+
+				if (!started) {
+					started = true;
+					leafPage = bfile.findRunStart(lo, rid);
+					if (leafPage == null) {
+						done = true;
+						return;
+					}
+					entry = leafPage.getCurrent(rid);
+				} else {
+					if (nextPage.pid == INVALID_PAGE) {
+						done = true;
+						return;
+					}
+					leafPage = new BTLeafPage(nextPage, keyType);
+					entry = leafPage.getFirst(rid);
+				}
+
+				for (; entry != null; entry = leafPage.getNext(rid)) {
+					if (pastEnd(entry.key)) {
+						done = true;
+						break;
+					}
+					buffer.add(entry);
+				}
+
+				nextPage = leafPage.getNextPage();
+				SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+			} catch (Exception e) {
+				e.printStackTrace();
+				done = true;
+				throw new IllegalStateException(new ScanIteratorException(e,
+						""));
+			}
+		}
+	}
+
+	private boolean pastEnd(KeyClass key) throws KeyNotMatchException {
+		if (hi == null)
+			return false;
+		int cmp = BT.keyCompare(key, hi);
+		return hiInclusive ? cmp > 0 : cmp >= 0;
+	}
+}
@@ -0,0 +1,141 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTSnapshot is a point-in-time view of a BTreeFile. Creating one is O(1):
+ * it only remembers the root. Writers keep updating the tree in place, but
+ * before an insert or delete changes a page that an open snapshot can still
+ * see, BTreeFile copies the page into a shadow page and records it in the
+ * snapshot's page map. A snapshot reads a page through that map, so it sees
+ * every page as it was when the snapshot was taken.
+ *
+ * A shadow page is shared by all snapshots that were open when it was
+ * copied, and freed when the last of them is closed. Snapshots live in the
+ * buffer pool and the DB file only; they do not survive a restart.
+ *
+ * <pre>
+ * try (BTSnapshot snap = file.snapshot()) {
+ * 	BTSnapshotScan scan = snap.new_scan(lo, hi);
+ * 	...
+ * }
+ * </pre>
+ *
+ * Created by BTreeFile.snapshot().
+ */
+public class BTSnapshot implements AutoCloseable, GlobalConst {
+
+	private final BTreeFile bfile;
+	private final PageId root;
+	private final int keyType;
+	private final int maxKeysize;
+	private final Map<Integer, Integer> shadows = new HashMap<Integer, Integer>(); // page -> copy
+	private boolean closed;
+
+	BTSnapshot(BTreeFile bfile, PageId root, int keyType, int maxKeysize) {
+		this.bfile = bfile;
+		this.root = root;
+		this.keyType = keyType;
+		this.maxKeysize = maxKeysize;
+	}
+
+	/**
+	 * create a scan of the snapshot with given keys, like
+	 * BTreeFile.new_scan(). The scan does not hold any page between calls.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning, null for the first key.
+	 *            Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning, null for the last key.
+	 *            Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception ScanIteratorException
+	 *                error when reading a page of the snapshot
+	 */
+	public BTSnapshotScan new_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, ScanIteratorException {
+		if (closed)
+			throw new ScanIteratorException(null, "snapshot is closed");
+
+		BTSnapshotScan scan = new BTSnapshotScan();
+		scan.snapshot = this;
+		scan.startkey = bfile.toPageKey(lo_key);
+		scan.endkey = bfile.toPageKey(hi_key);
+		scan.keyType = keyType;
+		scan.maxKeysize = maxKeysize;
+		scan.compressed = bfile.compressedLeaves();
+		scan.nextPage = findLeaf(scan.startkey);
+		return scan;
+	}
+
+	/*
+	 * The leaf where the entries >= lo_key start, INVALID_PAGE for an empty
+	 * tree.
+	 */
+	private PageId findLeaf(KeyClass lo_key) throws ScanIteratorException {
+		PageId pageno = root;
+		try {
+			while (pageno.pid != INVALID_PAGE) {
+				PageId pid = resolve(pageno);
+				BTSortedPage page = new BTSortedPage(pid, keyType);
+				if (page.getType() != NodeType.INDEX) {
+					SystemDefs.JavabaseBM.unpinPage(pid, false);
+					break;
+				}
+
+				// go left of the first key >= lo_key
+				BTIndexPage index = new BTIndexPage(page, keyType);
+				PageId child = new PageId(index.getPrevPage().pid);
+				RID rid = new RID();
+				for (KeyDataEntry entry = index.getFirst(rid); entry != null
+						&& lo_key != null
+						&& BT.keyCompare(entry.key, lo_key) < 0; entry = index
+						.getNext(rid))
+					child = ((IndexData) entry.data).getData();
+				SystemDefs.JavabaseBM.unpinPage(pid, false);
+				pageno = child;
+			}
+			return pageno;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/**
+	 * @return the page that holds the snapshot's version of the given page
+	 */
+	PageId resolve(PageId pageno) {
+		Integer shadow = shadows.get(pageno.pid);
+		return new PageId(shadow == null ? pageno.pid : shadow.intValue());
+	}
+
+	Map<Integer, Integer> shadows() {
+		return shadows;
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Close the snapshot and free the shadow pages no other snapshot uses.
+	 * Can be called more than once.
+	 *
+	 * @exception FreePageException
+	 *                error when free a shadow page
+	 */
+	public void close() throws FreePageException {
+		if (closed)
+			return;
+		closed = true;
+		bfile.releaseSnapshot(this);
+	}
+}
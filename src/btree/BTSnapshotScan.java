@@ -0,0 +1,104 @@
+package btree;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTSnapshotScan is a range scan over a BTSnapshot. It copies the entries of
+ * one leaf at a time and unpins the page right away; the next leaf is looked
+ * up through the snapshot's page map, so splits and deletes that happen
+ * while the scan runs are not seen.
+ *
+ * Created by BTSnapshot.new_scan().
+ */
+public class BTSnapshotScan extends IndexFileScan implements GlobalConst {
+
+	BTSnapshot snapshot;
+	KeyClass startkey; // lo_key, null for no lower bound
+	KeyClass endkey; // hi_key, null for no upper bound
+	int keyType;
+	int maxKeysize;
+	boolean compressed; // the leaves are BTCompressedLeaf blocks
+	PageId nextPage; // next leaf to read, INVALID_PAGE at the end
+	private List<KeyDataEntry> buffer = new ArrayList<KeyDataEntry>();
+	private int pos;
+	private boolean done;
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return the next entry, or null if the scan is done
+	 * @exception ScanIteratorException
+	 *                iterator error, or the snapshot was closed
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		while (pos == buffer.size()) {
+			if (done || nextPage.pid == INVALID_PAGE)
+				return null;
+			fill();
+		}
+
+		KeyDataEntry entry = buffer.get(pos++);
+		try {
+			if (endkey != null && BT.keyCompare(entry.key, endkey) > 0) {
+				done = true;
+				return null;
+			}
+		} catch (KeyNotMatchException e) {
+			throw new ScanIteratorException(e, "");
+		}
+		return entry;
+	}
+
+	private void fill() throws ScanIteratorException {
+		if (snapshot.isClosed())
+			throw new ScanIteratorException(null, "snapshot is closed");
+
+		buffer = new ArrayList<KeyDataEntry>();
+		pos = 0;
+		try {
+			PageId pid = snapshot.resolve(nextPage);
+			BTLeafPage leaf = new BTLeafPage(pid, keyType);
+			if (compressed) {
+				BTCompressedLeaf entries = BTCompressedLeaf.read(leaf);
+				for (int i = (startkey == null) ? 0 : entries
+						.lowerBound(((IntegerKey) startkey).getKey()); i < entries.count; i++)
+					buffer.add(entries.entry(i));
+			} else {
+				RID rid = new RID();
+				for (KeyDataEntry entry = leaf.getFirst(rid); entry != null; entry = leaf
+						.getNext(rid)) {
+					if (startkey == null
+							|| BT.keyCompare(entry.key, startkey) >= 0)
+						buffer.add(entry);
+				}
+			}
+			nextPage = new PageId(leaf.getNextPage().pid);
+			SystemDefs.JavabaseBM.unpinPage(pid, false);
+		} catch (Exception e) {
+			e.printStackTrace();
+			done = true;
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/**
+	 * A snapshot is read only.
+	 *
+	 * @exception ScanDeleteException
+	 *                always
+	 */
+	public void delete_current() throws ScanDeleteException {
+		throw new ScanDeleteException(null, "snapshot scans are read only");
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return maxKeysize;
+	}
+}
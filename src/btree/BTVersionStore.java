@@ -0,0 +1,180 @@
+package btree;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTVersionStore keeps the recent history of a BTreeFile for readers that
+ * read at a timestamp. The leaves always hold the newest version of the
+ * index; every insert and delete made while a reader is active is recorded
+ * here with its commit timestamp, so the state at an older read timestamp
+ * can be rebuilt: entries inserted after it are hidden and entries deleted
+ * after it are brought back.
+ *
+ * Nothing is recorded while no reader is active, and versions older than
+ * the oldest active reader are purged by vacuum(), which runs whenever a
+ * reader ends.
+ */
+class BTVersionStore {
+
+	/** One insert or delete of a (key, rid) entry. */
+	static class Version {
+		final long ts;
+		final boolean insert;
+		final KeyClass key;
+		final RID rid;
+
+		Version(long ts, boolean insert, KeyClass key, RID rid) {
+			this.ts = ts;
+			this.insert = insert;
+			this.key = key;
+			this.rid = new RID(new PageId(rid.pageNo.pid), rid.slotNo);
+		}
+
+		boolean sameEntry(RID other) {
+			return rid.pageNo.pid == other.pageNo.pid
+					&& rid.slotNo == other.slotNo;
+		}
+	}
+
+	private long clock;
+	private final TreeMap<Long, Integer> readers = new TreeMap<Long, Integer>(); // read ts -> count
+	private final ArrayDeque<Version> history = new ArrayDeque<Version>(); // in ts order
+	private final TreeMap<KeyClass, List<Version>> byKey;
+
+	BTVersionStore(Comparator<KeyClass> keyOrder) {
+		byKey = new TreeMap<KeyClass, List<Version>>(keyOrder);
+	}
+
+	synchronized long beginRead() {
+		Integer count = readers.get(clock);
+		readers.put(clock, (count == null) ? 1 : count + 1);
+		return clock;
+	}
+
+	synchronized void endRead(long ts) {
+		Integer count = readers.get(ts);
+		if (count == null)
+			throw new IllegalArgumentException("no reader at " + ts);
+		if (count == 1)
+			readers.remove(ts);
+		else
+			readers.put(ts, count - 1);
+		vacuum();
+	}
+
+	synchronized boolean hasReaders() {
+		return !readers.isEmpty();
+	}
+
+	/**
+	 * Commit a change: it gets the next timestamp, and is recorded if a
+	 * reader might still need the state before it.
+	 */
+	synchronized void record(boolean insert, KeyClass key, RID rid) {
+		long ts = ++clock;
+		if (readers.isEmpty())
+			return;
+
+		Version version = new Version(ts, insert, key, rid);
+		history.addLast(version);
+		List<Version> versions = byKey.get(key);
+		if (versions == null) {
+			versions = new ArrayList<Version>();
+			byKey.put(key, versions);
+		}
+		versions.add(version);
+	}
+
+	/**
+	 * @return whether the entry, if it is in the leaves now, was there at
+	 *         the read timestamp
+	 */
+	synchronized boolean visible(KeyClass key, RID rid, long readTs) {
+		List<Version> versions = byKey.get(key);
+		if (versions == null)
+			return true;
+		return presentAt(versions, rid, readTs, true);
+	}
+
+	/**
+	 * @return the entries in [lo_key, hi_key] that were deleted after the
+	 *         read timestamp but were there at it, in key order
+	 */
+	synchronized List<KeyDataEntry> ghosts(KeyClass lo_key, KeyClass hi_key,
+			long readTs) {
+		SortedMap<KeyClass, List<Version>> range = byKey;
+		if (lo_key != null && hi_key != null)
+			range = byKey.subMap(lo_key, true, hi_key, true);
+		else if (lo_key != null)
+			range = byKey.tailMap(lo_key, true);
+		else if (hi_key != null)
+			range = byKey.headMap(hi_key, true);
+
+		List<KeyDataEntry> ghosts = new ArrayList<KeyDataEntry>();
+		for (List<Version> versions : range.values()) {
+			List<RID> seen = new ArrayList<RID>();
+			for (int i = versions.size() - 1; i >= 0; i--) {
+				Version last = versions.get(i);
+				if (contains(seen, last.rid))
+					continue;
+				seen.add(last.rid);
+				// the newest version of the entry is a delete: gone now
+				if (!last.insert && presentAt(versions, last.rid, readTs, false))
+					ghosts.add(new KeyDataEntry(last.key, last.rid));
+			}
+		}
+		return ghosts;
+	}
+
+	/*
+	 * The state of the entry at readTs is the one after its last version up
+	 * to readTs; before its first recorded version it was the opposite of
+	 * that version.
+	 */
+	private static boolean presentAt(List<Version> versions, RID rid,
+			long readTs, boolean now) {
+		Version first = null;
+		Version atTs = null;
+		for (Version version : versions) {
+			if (!version.sameEntry(rid))
+				continue;
+			if (first == null)
+				first = version;
+			if (version.ts <= readTs)
+				atTs = version;
+		}
+		if (first == null)
+			return now;
+		if (atTs != null)
+			return atTs.insert;
+		return !first.insert;
+	}
+
+	private static boolean contains(List<RID> rids, RID rid) {
+		for (RID r : rids)
+			if (r.pageNo.pid == rid.pageNo.pid && r.slotNo == rid.slotNo)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Purge the versions no active reader can see past.
+	 *
+	 * @return the number of versions purged
+	 */
+	synchronized int vacuum() {
+		long oldest = readers.isEmpty() ? Long.MAX_VALUE : readers.firstKey();
+		int purged = 0;
+		while (!history.isEmpty() && history.peekFirst().ts <= oldest) {
+			Version version = history.removeFirst();
+			List<Version> versions = byKey.get(version.key);
+			versions.remove(version);
+			if (versions.isEmpty())
+				byKey.remove(version.key);
+			purged++;
+		}
+		return purged;
+	}
+}
@@ -0,0 +1,97 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import bufmgr.*;
+
+/**
+ * BTVersionedScan is a range scan as of a read timestamp. It runs a
+ * BTFileScan over the leaves, skips the entries inserted after the read
+ * timestamp and merges in, in key order, the entries deleted after it. The
+ * scan never waits for writers and writers never wait for it.
+ *
+ * Created by BTreeFile.new_scan(lo_key, hi_key, readTs).
+ */
+public class BTVersionedScan extends IndexFileScan {
+
+	BTFileScan scan;
+	BTVersionStore versions;
+	long readTs;
+	List<KeyDataEntry> ghosts; // deleted after readTs, in key order
+	private int ghost;
+	private KeyDataEntry live; // look-ahead entry of the leaf scan
+	private boolean liveDone;
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return the next entry visible at the read timestamp, or null if the
+	 *         scan is done
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			while (live == null && !liveDone) {
+				KeyDataEntry entry = scan.get_next();
+				if (entry == null)
+					liveDone = true;
+				else if (versions.visible(entry.key, ((LeafData) entry.data)
+						.getData(), readTs))
+					live = entry;
+			}
+
+			if (ghost < ghosts.size()
+					&& (live == null || BT.keyCompare(ghosts.get(ghost).key,
+							live.key) < 0))
+				return ghosts.get(ghost++);
+
+			KeyDataEntry entry = live;
+			live = null;
+			return entry;
+		} catch (KeyNotMatchException e) {
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/**
+	 * A scan at a read timestamp is read only.
+	 *
+	 * @exception ScanDeleteException
+	 *                always
+	 */
+	public void delete_current() throws ScanDeleteException {
+		throw new ScanDeleteException(null, "versioned scans are read only");
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return scan.keysize();
+	}
+
+	/**
+	 * destructor. unpin the page of the leaf scan if it is not unpinned
+	 * already.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		scan.DestroyBTreeFileScan();
+	}
+}
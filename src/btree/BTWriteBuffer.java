@@ -0,0 +1,248 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTWriteBuffer puts a sorted in-memory delta in front of a BTreeFile.
+ * insert() and Delete() only change the delta, which counts for every
+ * (key, rid) how many entries are inserted (a put) or deleted (a
+ * tombstone) since the last merge. new_scan() merges the delta with a scan
+ * of the file.
+ *
+ * Once the delta holds threshold (key, rid) pairs it is merged into the
+ * file in key order. merge() does this on demand; call it before the file
+ * is closed. Inserts run at memory speed, and the file is updated in
+ * batches. The merge is not a single pass over the leaves: every pair goes
+ * through BTreeFile.insert() or Delete(), with a descent from the root
+ * each. In key order, though, consecutive pairs mostly land on the leaf
+ * the previous one used, which is still in the buffer pool.
+ *
+ * A merge changes the file, so no scan may be open when an insert() fills
+ * the delta, as for inserts into the file itself.
+ */
+public class BTWriteBuffer extends IndexFile {
+
+	/* a (key, rid) pair of the delta */
+	static class Entry {
+		final KeyClass key;
+		final int pid;
+		final int slot;
+
+		Entry(KeyClass key, int pid, int slot) {
+			this.key = key;
+			this.pid = pid;
+			this.slot = slot;
+		}
+
+		RID rid() {
+			return new RID(new PageId(pid), slot);
+		}
+	}
+
+	static final Comparator<Entry> entryOrder = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			try {
+				int c = BT.keyCompare(a.key, b.key);
+				if (c != 0)
+					return c;
+			} catch (KeyNotMatchException e) {
+				throw new IllegalStateException(e);
+			}
+			if (a.pid != b.pid)
+				return Integer.compare(a.pid, b.pid);
+			return Integer.compare(a.slot, b.slot);
+		}
+	};
+
+	private final BTreeFile file;
+	private final int threshold;
+
+	// (key, rid) -> entries inserted (> 0) or deleted (< 0) since the last
+	// merge
+	private final TreeMap<Entry, Integer> delta = new TreeMap<Entry, Integer>(
+			entryOrder);
+
+	/**
+	 * Buffer the inserts and deletes of a file.
+	 *
+	 * @param file
+	 *            the file behind the buffer. Input parameter.
+	 * @param threshold
+	 *            the number of (key, rid) pairs in the delta that triggers
+	 *            a merge. Input parameter.
+	 */
+	public BTWriteBuffer(BTreeFile file, int threshold) {
+		this.file = file;
+		this.threshold = Math.max(threshold, 1);
+	}
+
+	/**
+	 * @return the file behind the buffer
+	 */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the number of (key, rid) pairs in the delta
+	 */
+	public int size() {
+		return delta.size();
+	}
+
+	/**
+	 * insert record with the given key and rid
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key does not match the key type of the file
+	 * @exception InsertException
+	 *                error when merging the delta into the file
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void insert(KeyClass key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, InsertException, IOException {
+		key = file.toPageKey(key);
+		if (BT.getKeyLength(key) > file.getHeaderPage().get_maxKeySize())
+			throw new KeyTooLongException(null, "");
+		add(new Entry(key, rid.pageNo.pid, rid.slotNo), 1);
+		if (delta.size() >= threshold)
+			merge();
+	}
+
+	/**
+	 * delete leaf entry given its (key, rid) pair. A tombstone is only
+	 * added if the file has the entry, so the file is read, not changed.
+	 *
+	 * @param key
+	 *            the key in pair (key, rid). Input Parameter.
+	 * @param rid
+	 *            the rid in pair (key, rid). Input Parameter.
+	 * @return true if deleted. false if no such record.
+	 * @exception KeyNotMatchException
+	 *                key does not match the key type of the file
+	 * @exception IteratorException
+	 *                error when looking the key up in the file
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public boolean Delete(KeyClass key, RID rid) throws KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException, IOException {
+		key = file.toPageKey(key);
+		Entry entry = new Entry(key, rid.pageNo.pid, rid.slotNo);
+		Integer net = delta.get(entry);
+		int count = (net == null) ? 0 : net;
+		if (count <= 0) {
+			for (RID r : file.multiGet(new KeyClass[] { key })[0])
+				if (r.pageNo.pid == rid.pageNo.pid && r.slotNo == rid.slotNo)
+					count++;
+			if (count <= 0)
+				return false;
+		}
+		add(entry, -1);
+		return true;
+	}
+
+	private void add(Entry entry, int change) {
+		Integer net = delta.get(entry);
+		int count = ((net == null) ? 0 : net) + change;
+		if (count == 0)
+			delta.remove(entry);
+		else
+			delta.put(entry, count);
+	}
+
+	/**
+	 * Merge the delta into the file, in key order, and empty it. Every
+	 * insert or delete leaves the delta once it is applied, so after an
+	 * error the delta holds exactly what is left to merge.
+	 *
+	 * @exception InsertException
+	 *                error when inserting or deleting an entry of the file
+	 */
+	public void merge() throws InsertException {
+		try {
+			Iterator<Map.Entry<Entry, Integer>> it = delta.entrySet()
+					.iterator();
+			while (it.hasNext()) {
+				Map.Entry<Entry, Integer> e = it.next();
+				Entry entry = e.getKey();
+				for (; e.getValue() > 0; e.setValue(e.getValue() - 1))
+					file.insert(entry.key, entry.rid());
+				for (; e.getValue() < 0; e.setValue(e.getValue() + 1))
+					file.remove(entry.key, entry.rid());
+				it.remove();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "");
+		}
+	}
+
+	/**
+	 * create a scan of the file and the delta with given keys: the entries
+	 * of the file in the range, without those deleted by a tombstone, and
+	 * the ones put into the delta. The scan sees the delta as it is now.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key does not match the key type of the file
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTWriteBufferScan new_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		lo_key = file.toPageKey(lo_key);
+		hi_key = file.toPageKey(hi_key);
+
+		NavigableMap<Entry, Integer> range = delta;
+		if (lo_key != null && hi_key != null
+				&& BT.keyCompare(lo_key, hi_key) > 0)
+			range = new TreeMap<Entry, Integer>(); // empty, as the scan of the file
+		else {
+			if (lo_key != null)
+				range = range.tailMap(new Entry(lo_key, Integer.MIN_VALUE,
+						Integer.MIN_VALUE), true);
+			if (hi_key != null)
+				range = range.headMap(new Entry(hi_key, Integer.MAX_VALUE,
+						Integer.MAX_VALUE), true);
+		}
+
+		BTWriteBufferScan scan = new BTWriteBufferScan();
+		scan.buffer = this;
+		scan.deltaEntries = new ArrayList<Map.Entry<Entry, Integer>>();
+		for (Map.Entry<Entry, Integer> e : range.entrySet())
+			scan.deltaEntries.add(new AbstractMap.SimpleImmutableEntry<Entry, Integer>(
+					e));
+		scan.fileScan = file.new_scan(lo_key, hi_key);
+		return scan;
+	}
+}
@@ -0,0 +1,146 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTWriteBufferScan is a range scan over a BTWriteBuffer: it merges a scan
+ * of the file with the delta entries of the range, in key order. Before the
+ * entries of the file with a key, the delta entries with that key are read:
+ * the puts are returned first, and the tombstones skip entries of the file.
+ *
+ * Created by BTWriteBuffer.new_scan().
+ */
+public class BTWriteBufferScan extends IndexFileScan {
+
+	BTWriteBuffer buffer;
+	BTFileScan fileScan;
+	List<Map.Entry<BTWriteBuffer.Entry, Integer>> deltaEntries; // of the range, in order
+
+	private int next; // next delta entry
+	private KeyDataEntry fileNext; // next entry of fileScan, read ahead
+	private boolean started;
+	private KeyClass groupKey; // key of the delta entries read last
+	private final Map<Long, Integer> tombstones = new HashMap<Long, Integer>(); // rid -> deletes, for groupKey
+	private final Deque<KeyDataEntry> puts = new ArrayDeque<KeyDataEntry>(); // to return, for groupKey
+	private KeyDataEntry current; // returned last, null if none or deleted
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return the next entry, or null if the scan is done
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			if (!started) {
+				fileNext = fileScan.get_next();
+				started = true;
+			}
+			while (true) {
+				if (!puts.isEmpty())
+					return current = puts.poll();
+
+				if (next < deltaEntries.size()
+						&& (fileNext == null || BT.keyCompare(deltaEntries
+								.get(next).getKey().key, fileNext.key) <= 0)) {
+					readGroup();
+					continue;
+				}
+				if (fileNext == null)
+					return current = null;
+
+				KeyDataEntry entry = fileNext;
+				fileNext = fileScan.get_next();
+				if (groupKey != null && BT.keyCompare(entry.key, groupKey) == 0) {
+					Long rid = ridOf(((LeafData) entry.data).getData());
+					Integer deletes = tombstones.get(rid);
+					if (deletes != null) {
+						if (deletes == 1)
+							tombstones.remove(rid);
+						else
+							tombstones.put(rid, deletes - 1);
+						continue;
+					}
+				}
+				return current = entry;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/* read the delta entries with the key of the next one */
+	private void readGroup() throws KeyNotMatchException {
+		groupKey = deltaEntries.get(next).getKey().key;
+		tombstones.clear();
+		for (; next < deltaEntries.size()
+				&& BT.keyCompare(deltaEntries.get(next).getKey().key, groupKey) == 0; next++) {
+			BTWriteBuffer.Entry entry = deltaEntries.get(next).getKey();
+			int count = deltaEntries.get(next).getValue();
+			for (int n = count; n > 0; n--)
+				puts.add(new KeyDataEntry(entry.key, entry.rid()));
+			if (count < 0)
+				tombstones.put(ridOf(entry.rid()), -count);
+		}
+	}
+
+	private static Long ridOf(RID rid) {
+		return ((long) rid.pageNo.pid << 32) | (rid.slotNo & 0xffffffffL);
+	}
+
+	/**
+	 * Delete the entry get_next() returned last, through the buffer.
+	 *
+	 * @exception ScanDeleteException
+	 *                there is no current entry, or the delete failed
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (current == null)
+			throw new ScanDeleteException(null, "no current entry");
+		try {
+			buffer.Delete(current.key, ((LeafData) current.data).getData());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException(e, "");
+		}
+		current = null;
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return fileScan.keysize();
+	}
+
+	/**
+	 * destructor. unpin the leaf page of the file scan if it is pinned.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		fileScan.DestroyBTreeFileScan();
+		puts.clear();
+		next = deltaEntries.size();
+		fileNext = null;
+	}
+}
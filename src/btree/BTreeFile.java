@@ -15,6 +15,9 @@
 package btree;
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
 
 import diskmgr.*;
 import bufmgr.*;
@@ -24,6 +27,14 @@ import btree.*;
 /**
  * btfile.java This is the main definition of class BTreeFile, which derives
  * from abstract base class IndexFile. It provides an insert/delete interface.
+ *
+ * Locking rule: the buffer manager of SystemDefs is not thread-safe, and
+ * neither is a BTreeFile. Code that uses the database from more than one
+ * thread holds the SystemDefs.JavabaseBM monitor while it calls a method of
+ * a BTreeFile or of one of its scans, or pins a page. A scan keeps its leaf
+ * pinned between calls, so a page read for another thread is copied out and
+ * unpinned before the monitor is released. parallel_scan(), rebuildOnline()
+ * and the classes built on BTreeFile for other threads follow this rule.
  */
 public class BTreeFile extends IndexFile implements GlobalConst {
 
@@ -32,6 +43,17 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private final static String lineSep = System.getProperty("line.separator");
 
+	/* BT.keyCompare() as a Comparator, for sorting keys in memory */
+	private final static Comparator<KeyClass> keyOrder = new Comparator<KeyClass>() {
+		public int compare(KeyClass a, KeyClass b) {
+			try {
+				return BT.keyCompare(a, b);
+			} catch (KeyNotMatchException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
 	private static FileOutputStream fos;
 	private static DataOutputStream trace;
 
@@ -70,6 +92,45 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	private PageId headerPageId;
 	private String dbname;
 
+	private BTLog log; // null if updates are not logged
+	private List<PageId> opPins; // deferred dirty unpins of the running operation
+	private boolean opAllocated;
+
+	private final static int REBUILD_STEP = 8; // old leaves copied per step
+	private BTRebuild rebuild; // non null while rebuildOnline() copies
+
+	private List<BTSnapshot> snapshots = new ArrayList<BTSnapshot>(); // open snapshots
+	private Map<Integer, Integer> shadowRefs = new HashMap<Integer, Integer>(); // shadow page -> snapshots using it
+
+	private final BTVersionStore versions = new BTVersionStore(keyOrder);
+
+	// the leaf format is kept in a spare slot of the header page
+	private final static int LEAF_FORMAT_SLOT = 4;
+	private final static short COMPRESSED_LEAVES = 0x4350;
+	private final static short PAX_LEAVES = 0x5058;
+	private boolean compressed; // leaves are BTCompressedLeaf blocks
+	private boolean pax; // the blocks are aligned (PAX) columns
+	private boolean reinsert; // a leaf split left the new entry out
+
+	// the first page of the Bloom filter, split over the length and the
+	// offset of another spare slot of the header page
+	private final static int FILTER_SLOT = 5;
+	private BTBloomFilter filter; // null if the index has none
+
+	// write-optimized mode is kept in another spare slot of the header page
+	private final static int BUFFER_SLOT = 6;
+	private final static short WRITE_OPTIMIZED = 0x4245;
+	private boolean writeOptimized; // index pages buffer messages
+	private boolean unsettled; // some buffer may hold messages
+	private boolean bypassBuffers; // applying messages, or flushing for a read
+
+	private BTLearnedModel model; // null if none was trained
+
+	private BTAdaptiveHash adaptiveHash = new BTAdaptiveHash(); // null if off
+
+	private Map<Integer, Integer> subtreeCounts; // page -> entries below it, null if off
+	private long changes; // entries inserted and deleted, to validate the model
+
 	/**
 	 * Access method to data member.
 	 * 
@@ -129,6 +190,23 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	}
 
+	/*
+	 * Free a page the caller has pinned once, giving up that pin. A page
+	 * someone else still has pinned too (a scan, another thread) is not
+	 * freed from under it: the buffer manager refuses, and so does this.
+	 */
+	private void releasePage(PageId pageno) throws FreePageException {
+		try {
+			SystemDefs.JavabaseBM.freePage(pageno);
+		} catch (ReplacerException e) {
+			throw new FreePageException(e, "page " + pageno.pid
+					+ " is still pinned");
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new FreePageException(e, "");
+		}
+	}
+
 	private void delete_file_entry(String filename)
 			throws DeleteFileEntryException {
 		try {
@@ -141,6 +219,12 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private void unpinPage(PageId pageno, boolean dirty)
 			throws UnpinPageException {
+		if (dirty && opPins != null) {
+			// logged operation: the log releases the pin once the redo
+			// record is on disk (WAL before data)
+			opPins.add(new PageId(pageno.pid));
+			return;
+		}
 		try {
 			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
 		} catch (Exception e) {
@@ -168,6 +252,9 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		headerPageId = get_file_entry(filename);
 
 		headerPage = new BTreeHeaderPage(headerPageId);
+		readLeafFormat();
+		filter = readFilter();
+		writeOptimized = unsettled = readWriteOptimized();
 		dbname = new String(filename);
 		/*
 		 * 
@@ -201,6 +288,81 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	public BTreeFile(String filename, int keytype, int keysize,
 			int delete_fashion) throws GetFileEntryException,
 			ConstructPageException, IOException, AddFileEntryException {
+		this(filename, keytype, keysize, delete_fashion, LeafFormat.PLAIN);
+	}
+
+	/**
+	 * if index file exists, open it; else create it, with compressed leaves
+	 * if asked for. A compressed leaf packs its integer keys and rids with
+	 * frame-of-reference encoding and bit-packing (see BTCompressedLeaf), so
+	 * it holds several times the entries of a plain leaf. The format of an
+	 * existing file is the one it was created with.
+	 *
+	 * Descending scans and rebuildOnline() need plain leaves; multiGet() and
+	 * parallel_scan() fall back to scans.
+	 *
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter.
+	 * @param compressLeaves
+	 *            create the file with compressed leaves; the key type must be
+	 *            AttrType.attrInteger. Input parameter.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed, or compressed leaves for keys
+	 *                that are not integers
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public BTreeFile(String filename, int keytype, int keysize,
+			int delete_fashion, boolean compressLeaves)
+			throws GetFileEntryException, ConstructPageException, IOException,
+			AddFileEntryException {
+		this(filename, keytype, keysize, delete_fashion,
+				compressLeaves ? LeafFormat.COMPRESSED : LeafFormat.PLAIN);
+	}
+
+	/**
+	 * if index file exists, open it; else create it, with leaves of the
+	 * given format. A PAX leaf keeps its integer keys in one contiguous
+	 * array and the rids in parallel arrays (see BTCompressedLeaf), so it is
+	 * searched and decoded without going through a slot directory. PAX
+	 * leaves are supported wherever compressed leaves are. The format of an
+	 * existing file is the one it was created with.
+	 *
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter.
+	 * @param leafFormat
+	 *            LeafFormat.PLAIN, LeafFormat.COMPRESSED or LeafFormat.PAX;
+	 *            the last two need AttrType.attrInteger keys. Input
+	 *            parameter.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed, or a block leaf format for keys
+	 *                that are not integers
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public BTreeFile(String filename, int keytype, int keysize,
+			int delete_fashion, int leafFormat) throws GetFileEntryException,
+			ConstructPageException, IOException, AddFileEntryException {
 
 		headerPageId = get_file_entry(filename);
 		if (headerPageId == null) // file not exist
@@ -214,14 +376,178 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			headerPage.set_maxKeySize(keysize);
 			headerPage.set_deleteFashion(delete_fashion);
 			headerPage.setType(NodeType.BTHEAD);
+			if (leafFormat != LeafFormat.PLAIN
+					&& keytype != AttrType.attrInteger)
+				throw new ConstructPageException(null,
+						"compressed and PAX leaves need integer keys");
+			headerPage.setSlot(LEAF_FORMAT_SLOT,
+					(leafFormat == LeafFormat.PAX) ? PAX_LEAVES
+							: (leafFormat == LeafFormat.COMPRESSED) ? COMPRESSED_LEAVES
+									: 0, 0);
+			headerPage.setSlot(FILTER_SLOT, 0, 0);
+			headerPage.setSlot(BUFFER_SLOT, 0, 0);
 		} else {
 			headerPage = new BTreeHeaderPage(headerPageId);
 		}
+		readLeafFormat();
+		filter = readFilter();
+		writeOptimized = unsettled = readWriteOptimized();
 
 		dbname = new String(filename);
 
 	}
 
+	/**
+	 * if index file exists, open it; else create it. All inserts and deletes
+	 * (and the creation of the file) are logged in the given write-ahead log.
+	 *
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter.
+	 * @param log
+	 *            the write-ahead log of the database. Input parameter.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 * @exception UnpinPageException
+	 *                failed when unpin a page
+	 */
+	public BTreeFile(String filename, int keytype, int keysize,
+			int delete_fashion, BTLog log) throws GetFileEntryException,
+			ConstructPageException, IOException, AddFileEntryException,
+			PinPageException, UnpinPageException {
+
+		this(filename, keytype, keysize, delete_fashion);
+		this.log = log;
+
+		// log the header page and the allocation state, so that a new file
+		// is redone together with its file entry
+		beginOperation();
+		noteAllocation();
+		pinPage(headerPageId);
+		unpinPage(headerPageId, true);
+		endOperation();
+		log.force();
+	}
+
+	/**
+	 * @return the leaf format: LeafFormat.PLAIN, LeafFormat.COMPRESSED or
+	 *         LeafFormat.PAX
+	 */
+	public int getLeafFormat() {
+		return pax ? LeafFormat.PAX : compressed ? LeafFormat.COMPRESSED
+				: LeafFormat.PLAIN;
+	}
+
+	private void readLeafFormat() throws ConstructPageException {
+		try {
+			short format = headerPage.getSlotLength(LEAF_FORMAT_SLOT);
+			pax = (format == PAX_LEAVES);
+			compressed = pax || (format == COMPRESSED_LEAVES);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "");
+		}
+	}
+
+	/*
+	 * Load the Bloom filter the header page references, if any.
+	 */
+	private BTBloomFilter readFilter() throws ConstructPageException {
+		try {
+			int first = (headerPage.getSlotLength(FILTER_SLOT) & 0xffff) << 16
+					| (headerPage.getSlotOffset(FILTER_SLOT) & 0xffff);
+			if (first == 0)
+				return null;
+
+			PageId pageno = new PageId(first);
+			BTBloomFilter bloom = BTBloomFilter.readMeta(pageno,
+					pinPage(pageno));
+			unpinPage(pageno);
+			if (bloom == null)
+				return null;
+			for (int n = 0; n < bloom.pages() - 1; n++) {
+				bloom.readPage(n, pinPage(bloom.page(n)));
+				unpinPage(bloom.page(n));
+			}
+			return bloom;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "Bloom filter");
+		}
+	}
+
+	private void setFilterPage(PageId first) throws IOException,
+			PinPageException, UnpinPageException {
+		int pid = (first == null) ? 0 : first.pid;
+		pinPage(headerPageId);
+		headerPage.setSlot(FILTER_SLOT, pid >>> 16, pid & 0xffff);
+		unpinPage(headerPageId, true);
+	}
+
+	/*
+	 * Start a logged operation: from now on dirty unpins are deferred and
+	 * the pages collected for the redo record.
+	 */
+	private void beginOperation() {
+		if (log != null) {
+			opPins = new ArrayList<PageId>();
+			opAllocated = false;
+		}
+	}
+
+	/*
+	 * The running operation allocated a page: the space map and the file
+	 * directory (page 0) go into its redo record too.
+	 */
+	private void noteAllocation() {
+		opAllocated = true;
+	}
+
+	/*
+	 * End a logged operation: append one redo record with the images of all
+	 * pages it changed and hand the deferred pins over to the log.
+	 */
+	private void endOperation() throws IOException, PinPageException,
+			UnpinPageException {
+		if (opPins == null)
+			return;
+
+		List<PageId> pins = opPins;
+		opPins = null;
+		if (pins.isEmpty() && !opAllocated)
+			return;
+
+		Map<Integer, Page> pages = new LinkedHashMap<Integer, Page>();
+		if (opAllocated) {
+			int mapPages = (SystemDefs.JavabaseDB.db_num_pages()
+					+ MINIBASE_PAGESIZE * 8 - 1) / (MINIBASE_PAGESIZE * 8);
+			for (int pid = 0; pid <= mapPages; pid++)
+				pages.put(pid, pinPage(new PageId(pid)));
+		}
+		for (PageId pid : pins) {
+			if (!pages.containsKey(pid.pid))
+				pages.put(pid.pid, pinPage(pid));
+		}
+
+		log.append(pages, pins);
+
+		for (Integer pid : pages.keySet())
+			unpinPage(new PageId(pid));
+	}
+
 	/**
 	 * Close the B+ tree file. Unpin header page.
 	 *
@@ -233,18 +559,23 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 *                error from the lower layer
 	 * @exception ReplacerException
 	 *                error from the lower layer
+	 * @exception IOException
+	 *                error when forcing the log
 	 */
 	public void close() throws PageUnpinnedException,
 			InvalidFrameNumberException, HashEntryNotFoundException,
-			ReplacerException {
+			ReplacerException, IOException {
 		if (headerPage != null) {
+			if (log != null)
+				log.force();
 			SystemDefs.JavabaseBM.unpinPage(headerPageId, true);
 			headerPage = null;
 		}
 	}
 
 	/**
-	 * Destroy entire B+ tree file.
+	 * Destroy entire B+ tree file. With a log this is one logged operation:
+	 * the freed pages and the removed file entry are redone together.
 	 *
 	 * @exception IOException
 	 *                error from the lower layer
@@ -253,7 +584,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @exception UnpinPageException
 	 *                error when unpin a page
 	 * @exception FreePageException
-	 *                error when free a page
+	 *                error when free a page, or a page of the file is still
+	 *                pinned by an open scan
 	 * @exception DeleteFileEntryException
 	 *                failed when delete a file from DM
 	 * @exception ConstructPageException
@@ -265,103 +597,922 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			UnpinPageException, FreePageException, DeleteFileEntryException,
 			ConstructPageException, PinPageException {
 		if (headerPage != null) {
-			PageId pgId = headerPage.get_rootId();
-			if (pgId.pid != INVALID_PAGE)
-				_destroyFile(pgId);
-			unpinPage(headerPageId);
-			freePage(headerPageId);
-			delete_file_entry(dbname);
-			headerPage = null;
+			if (log != null)
+				log.force(); // the log holds pins of logged pages
+			if (adaptiveHash != null)
+				adaptiveHash.clear();
+			if (subtreeCounts != null)
+				subtreeCounts.clear();
+			beginOperation();
+			try {
+				noteAllocation();
+				if (filter != null)
+					freeFilter();
+				PageId pgId = headerPage.get_rootId();
+				if (pgId.pid != INVALID_PAGE)
+					_destroyFile(pgId);
+				unpinPage(headerPageId);
+				freePage(headerPageId);
+				delete_file_entry(dbname);
+				headerPage = null;
+			} finally {
+				endOperation();
+			}
 		}
 	}
 
-	private void _destroyFile(PageId pageno) throws IOException,
-			IteratorException, PinPageException, ConstructPageException,
-			UnpinPageException, FreePageException {
-
-		BTSortedPage sortedPage;
-		Page page = pinPage(pageno);
-		sortedPage = new BTSortedPage(page, headerPage.get_keyType());
+	/**
+	 * Rebuild the index into compact, physically sequential pages while it
+	 * stays open. The leaf chain is copied REBUILD_STEP leaves at a time;
+	 * between the steps the SystemDefs.JavabaseBM monitor is released, so
+	 * readers and writers on other threads (which follow the locking rule in
+	 * the class comment) are served by the old tree, and their inserts and
+	 * deletes behind the copy are replayed on the new tree. The last step
+	 * switches the root in the header page, replays those updates and frees
+	 * the old pages, all in one logged operation.
+	 *
+	 * Scans opened before the switch must be closed by then, since the pages
+	 * they walk are freed, and no snapshot may be open. A page of the old
+	 * tree that is still pinned is not freed: the rebuild then fails with a
+	 * FreePageException, after the new tree is in place.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InsertException
+	 *                error when copying or replaying an entry
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page of the old tree
+	 */
+	public void rebuildOnline() throws IOException, InsertException,
+			PinPageException, UnpinPageException, FreePageException {
+		if (!snapshots.isEmpty())
+			throw new InsertException(null, "snapshots are open");
+		if (compressed)
+			throw new InsertException(null, "compressed leaves are not rebuilt");
+		try {
+			settle();
+		} catch (IteratorException e) {
+			throw new InsertException(e, "");
+		}
 
-		if (sortedPage.getType() == NodeType.INDEX) {
-			BTIndexPage indexPage = new BTIndexPage(page,
-					headerPage.get_keyType());
-			RID rid = new RID();
-			PageId childId;
-			KeyDataEntry entry;
-			for (entry = indexPage.getFirst(rid); entry != null; entry = indexPage
-					.getNext(rid)) {
-				childId = ((IndexData) (entry.data)).getData();
-				_destroyFile(childId);
+		BTRebuild copy = new BTRebuild(this, headerPage.get_keyType());
+		rebuild = copy;
+		try {
+			while (true) {
+				synchronized (SystemDefs.JavabaseBM) {
+					if (!copy.copy(REBUILD_STEP)) {
+						switchTo(copy);
+						if (filter != null)
+							rebuildFilter();
+						return;
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (PinPageException e) {
+			throw e;
+		} catch (UnpinPageException e) {
+			throw e;
+		} catch (FreePageException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "rebuild failed");
+		} finally {
+			if (rebuild != null) {
+				rebuild = null;
+				copy.abandon();
 			}
-		} else { // BTLeafPage
-
-			unpinPage(pageno);
-			freePage(pageno);
 		}
-
 	}
 
-	private void updateHeader(PageId newRoot) throws IOException,
-			PinPageException, UnpinPageException {
-
-		BTreeHeaderPage header;
-		PageId old_data;
-
-		header = new BTreeHeaderPage(pinPage(headerPageId));
+	/*
+	 * Replace the old tree by the finished copy.
+	 */
+	private void switchTo(BTRebuild copy) throws Exception {
+		PageId newRoot = copy.finish();
+		PageId oldRoot = new PageId(headerPage.get_rootId().pid);
+		rebuild = null;
+		changes++; // new leaves
+		if (adaptiveHash != null)
+			adaptiveHash.clear();
+
+		if (log != null) {
+			// the copy is not logged: it goes to disk before the root
+			// points to it, and the log gives back the pins of the old pages
+			log.force();
+			for (PageId pid : copy.pages())
+				log.writePage(pid);
+		}
 
-		old_data = headerPage.get_rootId();
-		header.set_rootId(newRoot);
+		beginOperation();
+		try {
+			noteAllocation();
+			updateHeader(newRoot);
+			for (BTRebuild.SideOp op : copy.sideLog()) {
+				if (op.insert)
+					insertEntry(op.key, op.rid);
+				else
+					NaiveDelete(op.key, op.rid);
+			}
+			if (oldRoot.pid != INVALID_PAGE)
+				_destroyFile(oldRoot);
+			if (subtreeCounts != null)
+				subtreeCounts.clear();
+		} finally {
+			endOperation();
+		}
+	}
 
-		// clock in dirty bit to bm so our dtor needn't have to worry about it
-		unpinPage(headerPageId, true /* = DIRTY */);
+	/**
+	 * Create a Bloom filter over the keys of the index, replacing the one it
+	 * has. From then on it is kept up to date by insert(), and point lookups,
+	 * equality scans, multiGet() and Delete() of keys it does not contain
+	 * return at once. Deleted keys stay in the filter until
+	 * rebuildFilter().
+	 *
+	 * @param expectedEntries
+	 *            the number of entries the filter is sized for, at 10 bits
+	 *            per entry; at least the entries in the index now. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                error when scanning the keys
+	 * @exception ConstructPageException
+	 *                error when allocating the filter pages
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free the pages of the old filter
+	 */
+	public void createFilter(int expectedEntries) throws IOException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException, FreePageException {
+		List<KeyClass> keys = new ArrayList<KeyClass>();
+		try {
+			BTFileScan scan = new_scan(null, null);
+			for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan
+					.get_next())
+				keys.add(entry.key);
+			scan.DestroyBTreeFileScan();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
 
-		// ASSERTIONS:
-		// - headerPage, headerPageId valid, pinned and marked as dirty
+		BTBloomFilter bloom = new BTBloomFilter(Math.max(expectedEntries,
+				keys.size()));
+		for (KeyClass key : keys)
+			bloom.add(key);
 
+		beginOperation();
+		try {
+			if (filter != null)
+				freeFilter();
+			try {
+				Page page = new Page();
+				bloom.first = new PageId(SystemDefs.JavabaseBM.newPage(page,
+						bloom.pages()).pid);
+				noteAllocation();
+				bloom.writeMeta(page);
+				unpinPage(bloom.first, true);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new ConstructPageException(e, "Bloom filter");
+			}
+			for (int n = 0; n < bloom.pages() - 1; n++) {
+				bloom.writePage(n, pinPage(bloom.page(n)));
+				unpinPage(bloom.page(n), true);
+			}
+			setFilterPage(bloom.first);
+			filter = bloom;
+		} finally {
+			endOperation();
+		}
 	}
 
 	/**
-	 * insert record with the given key and rid
+	 * Rebuild the Bloom filter from the keys in the index, sized for them,
+	 * which drops the keys of deleted entries. rebuildOnline() does this
+	 * too. Nothing happens if the index has no filter.
 	 *
-	 * @param key
-	 *            the key of the record. Input parameter.
-	 * @param rid
-	 *            the rid of the record. Input parameter.
-	 * @exception KeyTooLongException
-	 *                key size exceeds the max keysize.
-	 * @exception KeyNotMatchException
-	 *                key is not integer key nor string key
 	 * @exception IOException
 	 *                error from the lower layer
-	 * @exception LeafInsertRecException
-	 *                insert error in leaf page
-	 * @exception IndexInsertRecException
-	 *                insert error in index page
+	 * @exception IteratorException
+	 *                error when scanning the keys
 	 * @exception ConstructPageException
-	 *                error in BT page constructor
-	 * @exception UnpinPageException
-	 *                error when unpin a page
+	 *                error when allocating the filter pages
 	 * @exception PinPageException
 	 *                error when pin a page
-	 * @exception NodeNotMatchException
-	 *                node not match index page nor leaf page
-	 * @exception ConvertException
-	 *                error when convert between revord and byte array
-	 * @exception DeleteRecException
-	 *                error when delete in index page
-	 * @exception IndexSearchException
-	 *                error when search
-	 * @exception IteratorException
-	 *                iterator error
-	 * @exception LeafDeleteException
-	 *                error when delete in leaf page
-	 * @exception InsertException
-	 *                error when insert in index page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free the pages of the old filter
 	 */
+	public void rebuildFilter() throws IOException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException,
+			FreePageException {
+		if (filter != null)
+			createFilter(0);
+	}
 
-	
+	/**
+	 * Drop the Bloom filter of the index and free its pages.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page of the filter
+	 */
+	public void dropFilter() throws IOException, PinPageException,
+			UnpinPageException, FreePageException {
+		if (filter == null)
+			return;
+		beginOperation();
+		try {
+			freeFilter();
+			setFilterPage(null);
+		} finally {
+			endOperation();
+		}
+	}
+
+	/**
+	 * @return false if the key is definitely not in the index; true if it
+	 *         may be, or if the index has no Bloom filter
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public boolean mightContain(KeyClass key) throws KeyNotMatchException,
+			IOException {
+		return filter == null || filter.mightContain(toPageKey(key));
+	}
+
+	/*
+	 * Add the key of a new entry to the filter, writing the changed block
+	 * through to its page.
+	 */
+	private void addToFilter(KeyClass key) throws PinPageException,
+			UnpinPageException {
+		int n = filter.add(key);
+		if (n < 0)
+			return;
+		filter.writePage(n, pinPage(filter.page(n)));
+		unpinPage(filter.page(n), true);
+	}
+
+	private void freeFilter() throws FreePageException {
+		freePage(filter.first);
+		for (int n = 0; n < filter.pages() - 1; n++)
+			freePage(filter.page(n));
+		filter = null;
+		noteAllocation();
+	}
+
+	/**
+	 * Turn the write-optimized mode on or off, for an index with integer
+	 * keys. In this mode every index page may have a buffer of insert and
+	 * delete messages (see BTMessageBuffer). An insert is only appended to
+	 * the buffer of the root; a full buffer is flushed down one level in a
+	 * batch, and the buffers of the index pages right above the leaves are
+	 * applied to the leaves sorted by key. A leaf that is read and written
+	 * once per insert otherwise takes many inserts per write.
+	 *
+	 * multiGet() and Delete() consult the buffers on the path of the key.
+	 * Scans and the other reads first flush all buffers to the leaves. The
+	 * mode is kept in the file; turning it off flushes the buffers too.
+	 * While a snapshot is open or the index is rebuilt, inserts and deletes
+	 * go straight to the leaves.
+	 *
+	 * @param on
+	 *            whether to buffer. Input parameter.
+	 * @exception KeyNotMatchException
+	 *                the keys are not integer keys
+	 * @exception IteratorException
+	 *                error when flushing the buffers
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void setWriteOptimized(boolean on) throws KeyNotMatchException,
+			IteratorException, IOException, PinPageException,
+			UnpinPageException {
+		if (on && headerPage.get_keyType() != AttrType.attrInteger)
+			throw new KeyNotMatchException(null,
+					"write-optimized mode needs integer keys");
+		settle();
+		beginOperation();
+		try {
+			pinPage(headerPageId);
+			headerPage.setSlot(BUFFER_SLOT, on ? WRITE_OPTIMIZED : 0, 0);
+			unpinPage(headerPageId, true);
+			writeOptimized = on;
+		} finally {
+			endOperation();
+		}
+	}
+
+	private boolean readWriteOptimized() throws ConstructPageException {
+		try {
+			return headerPage.getSlotLength(BUFFER_SLOT) == WRITE_OPTIMIZED;
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "");
+		}
+	}
+
+	/*
+	 * Whether inserts and deletes go through the message buffers now.
+	 */
+	private boolean buffering() {
+		return writeOptimized && !bypassBuffers && snapshots.isEmpty()
+				&& rebuild == null;
+	}
+
+	/*
+	 * Buffer a message in the root, flushing the root buffer if it is full.
+	 * While the root is a leaf, the message is applied right away.
+	 */
+	private void bufferMessage(byte op, int key, RID rid)
+			throws InsertException {
+		try {
+			while (true) {
+				PageId root = new PageId(headerPage.get_rootId().pid);
+				if (root.pid == INVALID_PAGE || !isIndexPage(root)) {
+					applyMessage(op, key, rid.pageNo.pid, rid.slotNo);
+					return;
+				}
+				if (appendMessage(bufferOf(root, true), op, key,
+						rid.pageNo.pid, rid.slotNo)) {
+					unsettled = true;
+					changes++;
+					return;
+				}
+				flush(root);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "");
+		}
+	}
+
+	/*
+	 * Empty the buffer of an index page. Above the lowest index level the
+	 * messages go to the buffers of the children; those whose child buffer
+	 * is full stay (as do the later messages for that child), the child is
+	 * flushed, and the rest is routed again. The buffers of the lowest
+	 * index level are applied to the leaves. The buffer of a page is
+	 * always written back before its children are flushed, since flushing
+	 * them may split the page.
+	 */
+	private void flush(PageId pageno) throws Exception {
+		while (true) {
+			PageId first = bufferOf(pageno, false);
+			if (first == null)
+				return;
+			BTMessageBuffer messages = loadBuffer(first);
+
+			Page page = pinPage(pageno);
+			BTSortedPage indexPage = new BTSortedPage(page,
+					headerPage.get_keyType());
+			if (!isIndexPage(childOf(indexPage, 0))) {
+				indexPage.setNextPage(new PageId(INVALID_PAGE));
+				unpinPage(pageno, true);
+				freeBuffer(first);
+				applyMessages(messages);
+				return;
+			}
+
+			BTMessageBuffer kept = new BTMessageBuffer();
+			Set<Integer> full = new HashSet<Integer>();
+			PageId blocked = null;
+			for (int i = 0; i < messages.count; i++) {
+				PageId child = childOf(indexPage, NormalizedKey.of(
+						new IntegerKey(messages.keys[i])).lowerBound(indexPage));
+				if (!full.contains(child.pid)
+						&& appendMessage(bufferOf(child, true),
+								messages.ops[i], messages.keys[i],
+								messages.pids[i], messages.slots[i]))
+					continue;
+				if (full.add(child.pid) && blocked == null)
+					blocked = child;
+				kept.add(messages.ops[i], messages.keys[i], messages.pids[i],
+						messages.slots[i]);
+			}
+
+			if (kept.count == 0) {
+				indexPage.setNextPage(new PageId(INVALID_PAGE));
+				unpinPage(pageno, true);
+				freeBuffer(first);
+				return;
+			}
+			unpinPage(pageno);
+			storeBuffer(first, kept);
+			flush(blocked);
+		}
+	}
+
+	/*
+	 * Apply the messages of a buffer to the leaves, in key order; the
+	 * messages for one key stay in the order they were buffered.
+	 */
+	private void applyMessages(BTMessageBuffer messages) throws Exception {
+		Integer[] order = new Integer[messages.count];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		final int[] keys = messages.keys;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(keys[a], keys[b]);
+			}
+		});
+		for (int i : order)
+			applyMessage(messages.ops[i], messages.keys[i], messages.pids[i],
+					messages.slots[i]);
+	}
+
+	private void applyMessage(byte op, int key, int pid, int slot)
+			throws Exception {
+		boolean bypass = bypassBuffers;
+		bypassBuffers = true;
+		try {
+			RID rid = new RID(new PageId(pid), slot);
+			if (op == BTMessageBuffer.INSERT)
+				insertEntry(new IntegerKey(key), rid);
+			else
+				NaiveDelete(new IntegerKey(key), rid);
+		} finally {
+			bypassBuffers = bypass;
+		}
+	}
+
+	/*
+	 * Flush all buffers to the leaves, top-down, before a read that does
+	 * not consult them.
+	 */
+	private void settle() throws IteratorException {
+		if (!unsettled || bypassBuffers)
+			return;
+		boolean nested = (opPins != null);
+		bypassBuffers = true;
+		if (!nested)
+			beginOperation();
+		try {
+			while (settleFrom(new PageId(headerPage.get_rootId().pid)))
+				;
+			unsettled = false;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		} finally {
+			bypassBuffers = false;
+			try {
+				if (!nested)
+					endOperation();
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new IteratorException(e, "");
+			}
+		}
+	}
+
+	/*
+	 * Flush the buffers of a subtree, parents before children.
+	 * 
+	 * @return whether there was a buffer; flushing may split pages, so the
+	 * caller goes over the tree again until there is none
+	 */
+	private boolean settleFrom(PageId pageno) throws Exception {
+		if (pageno.pid == INVALID_PAGE || !isIndexPage(pageno))
+			return false;
+		boolean flushed = bufferOf(pageno, false) != null;
+		if (flushed)
+			flush(pageno);
+
+		for (int i = 0;; i++) {
+			Page page = pinPage(pageno);
+			BTSortedPage indexPage = new BTSortedPage(page,
+					headerPage.get_keyType());
+			PageId child = (i <= indexPage.getSlotCnt()) ? childOf(indexPage,
+					i) : null;
+			unpinPage(pageno);
+			if (child == null || (i == 0 && !isIndexPage(child)))
+				return flushed;
+			flushed |= settleFrom(child);
+		}
+	}
+
+	/*
+	 * The messages for a key in the buffers on its path, for each index
+	 * level with any, the lowest (oldest) level first.
+	 */
+	private List<BTMessageBuffer> pathMessages(int key) throws IOException,
+			KeyNotMatchException, PinPageException, UnpinPageException {
+		List<BTMessageBuffer> levels = new ArrayList<BTMessageBuffer>();
+		NormalizedKey probe = NormalizedKey.of(new IntegerKey(key));
+		PageId pageno = new PageId(headerPage.get_rootId().pid);
+		while (pageno.pid != INVALID_PAGE) {
+			Page page = pinPage(pageno);
+			HFPage indexPage = new HFPage(page);
+			if (indexPage.getType() != NodeType.INDEX) {
+				unpinPage(pageno);
+				break;
+			}
+			PageId child = childOf(indexPage, probe.lowerBound(indexPage));
+			PageId first = new PageId(indexPage.getNextPage().pid);
+			unpinPage(pageno);
+
+			if (first.pid != INVALID_PAGE) {
+				BTMessageBuffer all = loadBuffer(first);
+				BTMessageBuffer mine = new BTMessageBuffer();
+				for (int i = 0; i < all.count; i++)
+					if (all.keys[i] == key)
+						mine.add(all.ops[i], key, all.pids[i], all.slots[i]);
+				if (mine.count > 0)
+					levels.add(0, mine);
+			}
+			pageno = child;
+		}
+		return levels;
+	}
+
+	/*
+	 * An index split moved the upper keys of `left' to `right': the
+	 * messages for keys greater than the separator go with them.
+	 */
+	private void splitBuffer(PageId left, PageId right, KeyClass upKey)
+			throws IOException, PinPageException, UnpinPageException,
+			ConstructPageException {
+		PageId first = bufferOf(left, false);
+		if (first == null)
+			return;
+		int up = ((IntegerKey) upKey).getKey();
+		BTMessageBuffer all = loadBuffer(first);
+		BTMessageBuffer stay = new BTMessageBuffer();
+		BTMessageBuffer move = new BTMessageBuffer();
+		for (int i = 0; i < all.count; i++)
+			(all.keys[i] <= up ? stay : move).add(all.ops[i], all.keys[i],
+					all.pids[i], all.slots[i]);
+		if (move.count == 0)
+			return;
+		storeBuffer(first, stay);
+		storeBuffer(bufferOf(right, true), move);
+	}
+
+	private boolean isIndexPage(PageId pageno) throws IOException,
+			PinPageException, UnpinPageException {
+		Page page = pinPage(pageno);
+		try {
+			return new HFPage(page).getType() == NodeType.INDEX;
+		} finally {
+			unpinPage(pageno);
+		}
+	}
+
+	/*
+	 * The first page of the buffer of an index page; if it has none, a new
+	 * empty one if create is set, else null.
+	 */
+	private PageId bufferOf(PageId pageno, boolean create) throws IOException,
+			PinPageException, UnpinPageException, ConstructPageException {
+		Page page = pinPage(pageno);
+		HFPage indexPage = new HFPage(page);
+		PageId first = new PageId(indexPage.getNextPage().pid);
+		if (first.pid != INVALID_PAGE || !create) {
+			unpinPage(pageno);
+			return (first.pid == INVALID_PAGE) ? null : first;
+		}
+		try {
+			Page bufferPage = new Page();
+			first = new PageId(SystemDefs.JavabaseBM.newPage(bufferPage,
+					BTMessageBuffer.PAGES).pid);
+			noteAllocation();
+			BTMessageBuffer.setCount(bufferPage, 0);
+			unpinPage(first, true);
+		} catch (UnpinPageException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "message buffer");
+		}
+		indexPage.setNextPage(first);
+		unpinPage(pageno, true);
+		return first;
+	}
+
+	/*
+	 * Append a message to a buffer.
+	 * 
+	 * @return false if the buffer is full
+	 */
+	private boolean appendMessage(PageId first, byte op, int key, int pid,
+			int slot) throws PinPageException, UnpinPageException {
+		Page firstPage = pinPage(first);
+		int count = BTMessageBuffer.count(firstPage);
+		if (count == BTMessageBuffer.CAPACITY) {
+			unpinPage(first);
+			return false;
+		}
+		PageId pageno = BTMessageBuffer.page(first, count);
+		if (pageno.pid == first.pid) {
+			BTMessageBuffer.put(firstPage, count, op, key, pid, slot);
+		} else {
+			BTMessageBuffer.put(pinPage(pageno), count, op, key, pid, slot);
+			unpinPage(pageno, true);
+		}
+		BTMessageBuffer.setCount(firstPage, count + 1);
+		unpinPage(first, true);
+		return true;
+	}
+
+	private BTMessageBuffer loadBuffer(PageId first) throws PinPageException,
+			UnpinPageException {
+		BTMessageBuffer messages = new BTMessageBuffer();
+		int count = BTMessageBuffer.count(pinPage(first));
+		unpinPage(first);
+		for (int n = 0; n * BTMessageBuffer.PER_PAGE < count; n++) {
+			PageId pageno = new PageId(first.pid + n);
+			messages.readPage(n, pinPage(pageno), count);
+			unpinPage(pageno);
+		}
+		return messages;
+	}
+
+	private void storeBuffer(PageId first, BTMessageBuffer messages)
+			throws PinPageException, UnpinPageException {
+		for (int n = 0; n < messages.pages(); n++) {
+			PageId pageno = new PageId(first.pid + n);
+			messages.writePage(n, pinPage(pageno));
+			unpinPage(pageno, true);
+		}
+	}
+
+	private void freeBuffer(PageId first) throws FreePageException {
+		for (int n = 0; n < BTMessageBuffer.PAGES; n++)
+			freePage(new PageId(first.pid + n));
+		noteAllocation();
+	}
+
+	/**
+	 * Take a snapshot of the index: scans of the snapshot see the entries as
+	 * they are now, whatever is inserted or deleted later. Close it when
+	 * done, it keeps copies of the pages changed after it was taken.
+	 *
+	 * @return the snapshot
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                error when flushing the message buffers
+	 */
+	public BTSnapshot snapshot() throws IOException, IteratorException {
+		settle();
+		BTSnapshot snapshot = new BTSnapshot(this, new PageId(headerPage
+				.get_rootId().pid), headerPage.get_keyType(),
+				headerPage.get_maxKeySize());
+		snapshots.add(snapshot);
+		return snapshot;
+	}
+
+	/*
+	 * Called by BTSnapshot.close(): free the shadow pages only it used.
+	 */
+	void releaseSnapshot(BTSnapshot snapshot) throws FreePageException {
+		if (!snapshots.remove(snapshot))
+			return;
+
+		for (Integer shadow : snapshot.shadows().values()) {
+			int refs = shadowRefs.get(shadow) - 1;
+			if (refs > 0) {
+				shadowRefs.put(shadow, refs);
+			} else {
+				shadowRefs.remove(shadow);
+				freePage(new PageId(shadow));
+			}
+		}
+		snapshot.shadows().clear();
+	}
+
+	/*
+	 * Before an insert: keep the pages it may change for the open snapshots.
+	 * That is the path from the root to the leaf of the key, and the right
+	 * neighbour of the leaf, whose prevPage link a split changes.
+	 */
+	private void preserveInsertPath(KeyClass key) throws IOException,
+			KeyNotMatchException, PinPageException, UnpinPageException,
+			ConstructPageException, IndexSearchException {
+		PageId pageno = new PageId(headerPage.get_rootId().pid);
+		NormalizedKey probe = NormalizedKey.of(key);
+
+		while (pageno.pid != INVALID_PAGE) {
+			preserve(pageno);
+			Page page = pinPage(pageno);
+			BTSortedPage sortPage = new BTSortedPage(page,
+					headerPage.get_keyType());
+			if (sortPage.getType() != NodeType.INDEX) {
+				PageId next = new PageId(sortPage.getNextPage().pid);
+				unpinPage(pageno);
+				if (next.pid != INVALID_PAGE)
+					preserve(next);
+				return;
+			}
+			PageId child = childForKey(new BTIndexPage(page,
+					headerPage.get_keyType()), key, probe);
+			unpinPage(pageno);
+			pageno = new PageId(child.pid);
+		}
+	}
+
+	/*
+	 * Before a delete: keep the leaf NaiveDelete() removes the entry from.
+	 */
+	private void preserveDeleteLeaf(KeyClass key) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		PageId pageno;
+		if (compressed) {
+			pageno = findLeaf(key);
+			if (pageno.pid == INVALID_PAGE)
+				return;
+		} else {
+			BTLeafPage leafPage = findRunStart(key, new RID());
+			if (leafPage == null)
+				return;
+			pageno = new PageId(leafPage.getCurPage().pid);
+			unpinPage(pageno);
+		}
+		preserve(pageno);
+	}
+
+	/*
+	 * Copy the page into a shadow page for every open snapshot that has no
+	 * version of it yet. One copy serves all of them.
+	 */
+	private void preserve(PageId pageno) throws ConstructPageException {
+		PageId shadow = null;
+		for (BTSnapshot snapshot : snapshots) {
+			if (snapshot.shadows().containsKey(pageno.pid))
+				continue;
+			if (shadow == null)
+				shadow = copyPage(pageno);
+			snapshot.shadows().put(pageno.pid, shadow.pid);
+			Integer refs = shadowRefs.get(shadow.pid);
+			shadowRefs.put(shadow.pid, (refs == null) ? 1 : refs + 1);
+		}
+	}
+
+	private PageId copyPage(PageId pageno) throws ConstructPageException {
+		try {
+			Page page = pinPage(pageno);
+			Page copy = new Page();
+			PageId shadow = SystemDefs.JavabaseBM.newPage(copy, 1);
+			noteAllocation();
+			System.arraycopy(page.getpage(), 0, copy.getpage(), 0,
+					MINIBASE_PAGESIZE);
+			new HFPage(copy).setCurPage(shadow);
+			SystemDefs.JavabaseBM.unpinPage(shadow, true);
+			unpinPage(pageno);
+			return new PageId(shadow.pid);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "shadow page");
+		}
+	}
+
+	private void _destroyFile(PageId pageno) throws IOException,
+			IteratorException, PinPageException, ConstructPageException,
+			UnpinPageException, FreePageException {
+
+		BTSortedPage sortedPage;
+		Page page = pinPage(pageno);
+		sortedPage = new BTSortedPage(page, headerPage.get_keyType());
+
+		if (sortedPage.getType() == NodeType.INDEX) {
+			BTIndexPage indexPage = new BTIndexPage(page,
+					headerPage.get_keyType());
+			RID rid = new RID();
+			PageId childId;
+			KeyDataEntry entry;
+			for (entry = indexPage.getFirst(rid); entry != null; entry = indexPage
+					.getNext(rid)) {
+				childId = ((IndexData) (entry.data)).getData();
+				_destroyFile(childId);
+			}
+			_destroyFile(indexPage.getPrevPage()); // leftmost child
+			if (indexPage.getNextPage().pid != INVALID_PAGE)
+				freeBuffer(new PageId(indexPage.getNextPage().pid)); // message buffer
+
+			releasePage(pageno);
+		} else { // BTLeafPage
+
+			releasePage(pageno);
+		}
+
+	}
+
+	private void updateHeader(PageId newRoot) throws IOException,
+			PinPageException, UnpinPageException {
+
+		BTreeHeaderPage header;
+		PageId old_data;
+
+		header = new BTreeHeaderPage(pinPage(headerPageId));
+
+		old_data = headerPage.get_rootId();
+		header.set_rootId(newRoot);
+
+		// clock in dirty bit to bm so our dtor needn't have to worry about it
+		unpinPage(headerPageId, true /* = DIRTY */);
+
+		// ASSERTIONS:
+		// - headerPage, headerPageId valid, pinned and marked as dirty
+
+	}
+
+	/**
+	 * insert record with the given key and rid
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when insert in index page
+	 */
+
+	
 	public void insert(KeyClass key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		beginOperation();
+		try {
+			key = toPageKey(key);
+			if (!snapshots.isEmpty())
+				preserveInsertPath(key);
+			if (buffering())
+				bufferMessage(BTMessageBuffer.INSERT, ((IntegerKey) key)
+						.getKey(), rid);
+			else
+				insertEntry(key, rid);
+			if (filter != null)
+				addToFilter(key);
+			versions.record(true, key, rid);
+			if (rebuild != null)
+				rebuild.capture(true, key, rid);
+		} finally {
+			endOperation();
+		}
+	}
+
+	private void insertEntry(KeyClass key, RID rid) throws KeyTooLongException,
 			KeyNotMatchException, LeafInsertRecException,
 			IndexInsertRecException, ConstructPageException,
 			UnpinPageException, PinPageException, NodeNotMatchException,
@@ -369,417 +1520,1363 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			IteratorException, LeafDeleteException, InsertException,
 			IOException
 
-	{	
-		
-		//Declare function variables
-		KeyDataEntry header;
-		BTLeafPage newLeafPage = null;
-		BTIndexPage newIndexPage = null;
+	{	
+		
+		//Declare function variables
+		KeyDataEntry header;
+		BTLeafPage newLeafPage = null;
+		BTIndexPage newIndexPage = null;
+
+		//Check for key length 
+		//Assertions: if the key length is greater than the max key size set in header
+		//				throw error and stop else continue
+		key = toPageKey(key);
+		changes++;
+		if (BT.getKeyLength(key) > headerPage.get_maxKeySize()){
+			throw new KeyTooLongException(null, "");
+		}
+
+		//Assertions : toPageKey() already threw if the key type does not match the
+		//             header key attribute type, so key is an IntegerKey or StringKey
+		if (key instanceof IntegerKey || key instanceof StringKey){
+				
+			//Assertios: Check for header page being not valid
+			//			 if not vaild create a new (Leaf) Page
+			//           and insert the entry else call _insert() 
+			if (getHeaderPage().get_rootId().pid == INVALID_PAGE){
+
+				//Create a new (Leaf) Page, which comes pinned
+				newLeafPage = new BTLeafPage(getHeaderPage().get_keyType());
+				noteAllocation();
+
+				//Set next and previous page pointers
+				newLeafPage.setNextPage(new PageId(INVALID_PAGE)); // inherited from HFPage Class non-return type function
+				newLeafPage.setPrevPage(new PageId(INVALID_PAGE)); // inherited from HFPage Class non return type fucntion
+
+				//insert the record
+				if (compressed) {
+					BTCompressedLeaf entries = new BTCompressedLeaf(1);
+					entries.aligned = pax;
+					entries.insert(((IntegerKey) key).getKey(), rid);
+					entries.write(newLeafPage);
+				}
+				else {
+					newLeafPage.insertRecord(key,rid); // BTLeafPage class function  returns rid of the inserted record as RID
+				}
+
+				// unpin the page and set the dirty bit as changes have been made
+				unpinPage(newLeafPage.getCurPage(), true); // class function non return type function 
+
+				//change the header to point to the new page
+				updateHeader(newLeafPage.getCurPage());// getCurPage() inherited from HFPage Class return page no as PageId		
+			}
+
+			else do {
+				// fucntion call to _insert class fucntion to insert record
+				// the key is normalized once and compared in place on every page on the way down
+				reinsert = false;
+				header = _insert(key,rid,getHeaderPage().get_rootId(),NormalizedKey.of(key)); // class function return KeyDataEntry
+
+				// Assertion : if the retured value to the header is not null that means the split
+				//			   moved up till the root node and root was split. need to create a new
+				//			   root node and manage pointers.
+				if (header != null){
+
+					//Create a new (Index) Page, which comes pinned
+					newIndexPage = new BTIndexPage(getHeaderPage().get_keyType());
+					noteAllocation();
+
+					// Insert in to the new index node and set previous page to the old root
+					newIndexPage.insertKey(header.key,((IndexData)(header.data)).getData()); // BTIndexPage class fuction returns RID of the inserted key
+					newIndexPage.setPrevPage(getHeaderPage().get_rootId()); // inherited from HFPage Class non return type fucntion
+					//unpin the page and set the dirty bit as changes have been made
+					unpinPage(newIndexPage.getCurPage(), true); //class function non return type function 
+					//change the header to point to the new page
+					updateHeader(newIndexPage.getCurPage()); // getCurPage() inherited from HFPage Class return page no as PageId	
+				}
+			} while (reinsert); // a compressed leaf split without the entry: insert it again
+		}
+		//Assertions: if any other key Atrribute type throw error
+		else {
+			throw new KeyNotMatchException(null, "");
+		}
+	}
+
+	/*
+	 * Insert into a compressed leaf, which _insert() found and pinned. A full
+	 * leaf is split in the middle and the separator returned, as for a plain
+	 * leaf. Should the new entry widen a half so much that it does not fit,
+	 * only the old entries are split and insertEntry() goes down again.
+	 */
+	private KeyDataEntry insertCompressed(BTSortedPage leafPage,
+			KeyClass key, RID rid) throws IOException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		BTCompressedLeaf entries = readLeafBlock(leafPage);
+		entries.insert(((IntegerKey) key).getKey(), rid);
+		if (entries.write(leafPage)) {
+			unpinPage(leafPage.getCurPage(), true);
+			return null;
+		}
+
+		BTCompressedLeaf right = entries.split(entries.count / 2);
+		if (!entries.fits() || !right.fits()) {
+			entries = readLeafBlock(leafPage);
+			right = entries.split(entries.count / 2);
+			reinsert = true;
+		}
+
+		BTLeafPage newLeafPage = new BTLeafPage(headerPage.get_keyType());
+		noteAllocation();
+		PageId newPageId = new PageId(newLeafPage.getCurPage().pid);
+		newLeafPage.setNextPage(leafPage.getNextPage());
+		newLeafPage.setPrevPage(leafPage.getCurPage());
+		leafPage.setNextPage(newPageId);
+		PageId nextPageId = new PageId(newLeafPage.getNextPage().pid);
+		if (nextPageId.pid != INVALID_PAGE) {
+			HFPage nextPage = new HFPage(pinPage(nextPageId));
+			nextPage.setPrevPage(newPageId);
+			unpinPage(nextPageId, true);
+		}
+
+		entries.write(leafPage);
+		right.write(newLeafPage);
+		unpinPage(leafPage.getCurPage(), true);
+		unpinPage(newPageId, true);
+		return new KeyDataEntry(new IntegerKey(right.keys[0]), newPageId);
+	}
+
+	private KeyDataEntry _insert(KeyClass key, RID rid, PageId currentPageId,
+			NormalizedKey probe)
+			throws PinPageException, IOException, ConstructPageException,
+			LeafDeleteException, ConstructPageException, DeleteRecException,
+			IndexSearchException, UnpinPageException, LeafInsertRecException,
+			ConvertException, IteratorException, IndexInsertRecException,
+			KeyNotMatchException, NodeNotMatchException, InsertException
+
+	{
+		//Decaler function variables 
+		BTSortedPage currentPage = null;
+		BTLeafPage leafPage = null;
+		BTLeafPage newLeafPage = null;
+		BTLeafPage rightPage = null;
+		KeyDataEntry finalEntry = null;
+		BTIndexPage indexPage = null;
+		BTIndexPage newIndexPage = null;
+		int slotCount;
+		int i;
+		KeyDataEntry keyData = null;
+		KeyDataEntry curEntry = null;
+		KeyDataEntry entry = null;
+		// the subtree below the page changes: count it again when needed
+		if (subtreeCounts != null) {
+			subtreeCounts.remove(currentPageId.pid);
+		}
+		//Create an instance of BTSortedPage as we dont know what type of node (leaf or index) we are at 
+
+		// pin the page, once: the page constructors taking a PageId pin it again
+		currentPage = new BTSortedPage(pinPage(currentPageId),getHeaderPage().get_keyType());
+
+		
+		// Assertions: Check for the node type
+		//				if Leaf: check for space and insert or split
+		//				if index: recursively travse till leaf node is found
+		// 				else: throw NodeNotMatch error
+		if (currentPage.getType() == NodeType.LEAF && compressed){
+			return insertCompressed(currentPage, key, rid);
+		}
+		if (currentPage.getType() == NodeType.LEAF){
+			// Create an instance of BTLeafPage to access the fucntion of BTLeafPage
+
+			leafPage = new BTLeafPage(currentPage,getHeaderPage().get_keyType());
+			// the slots of the leaf move: the hashed keys in it are stale
+			if (adaptiveHash != null) {
+				adaptiveHash.invalidate(currentPageId.pid);
+			}
+
+
+			//Assertions: if the avaiable space in the leafpage is more than the current key length
+			// 				insert the key in to the leaf page else split.
+
+			// BT.getKeyDataLength(key,node_type) BT class function returns space required for the key to be stored in the type of node
+			if (leafPage.available_space() >= BT.getKeyDataLength(key,NodeType.LEAF)){	//avaiable_space() inhertied form HFPage returns space as int
+				
+				// insert the record
+				leafPage.insertRecord(key,rid); // BTLeafPage class function  returns rid of the inserted record as RID
+
+				// unpin the page and set the dirty bit as changes are made
+				unpinPage(leafPage.getCurPage(),true); // class function non return type
+				// As there was space in the node and there was no need to split the parent node so return null
+				return null;
+			}
+			// Space was not enough perform split
+			else {
+				// Create a new (Leaf) Page 
+
+				newLeafPage = new BTLeafPage(getHeaderPage().get_keyType());
+				noteAllocation();
+
+				//Set next and previous page pointers
+				newLeafPage.setNextPage(leafPage.getNextPage()); // inherited from HFPage Class non-return type function
+				newLeafPage.setPrevPage(leafPage.getCurPage()); // inherited from HFPage Class non-return type function
+				leafPage.setNextPage(newLeafPage.getCurPage()); // inherited from HFPage Class non-return type function
+				// set the reverse pointer of the page that was to the right of the leafPage 
+				if (newLeafPage.getNextPage().pid != INVALID_PAGE){
+					//pin the page and create the instance of BTLeafPage to access BTLeafPage fucntions
+					rightPage = new BTLeafPage(pinPage(newLeafPage.getNextPage()), getHeaderPage().get_keyType());
+
+					// set the previous page pointer to the newLeafPage
+					rightPage.setPrevPage(newLeafPage.getCurPage()); // inherited from HFPage Class non-return type function
+					// unpin the right page and set the dirty bit as changes have been made
+					unpinPage(rightPage.getCurPage(),true); // class function non return type.
+				}
+				// get the slot count to transfer all the data from leafPage to newLeafPage
+				slotCount = leafPage.getSlotCnt(); // inherited from HPPage class returns slot count as short d-type
+				// fetch first recored from leafPage and insert it into newLeafPage and delete from leafPage do for all records
+				for (i = 0; i<slotCount;i++){
+					// get first record
+					keyData= leafPage.getCurrent(new  RID());// BTLeafPage class funciton return KeyDataEntry
+					newLeafPage.insertRecord(keyData.key,((LeafData)(keyData.data)).getData());// BTLeafPage class function returns KeyDataEntry
+					leafPage.deleteSortedRecord(new RID()); // inherited from BTSortedPage
+
+				}
+				//Assertions: leafPage is empty newLeafPage is completely filled
+				//			  now transfer 1st half entires to leafPage
+				for (i = 0; newLeafPage.available_space()<leafPage.available_space();i++){ //avaiable_space() inhertied form HFPage returns space as int
+					//get the first entry in the newLeafPage
+					keyData = newLeafPage.getCurrent(new RID()); //BTLeafPage class function return KeyDataEntry
+					finalEntry = keyData;	// save the final key to compare to add new value in the nodes
+					// insert the record
+					leafPage.insertRecord(keyData.key,((LeafData)(keyData.data)).getData()); //BTLeafPage class function return RID of the inserted record
+					// delete the record from the newLeafPage
+					newLeafPage.deleteSortedRecord(new RID());// inherited from the BTSortedPage class non return type
+
+				}
+			
+				//Assertion: check the current key with final key entry if it is less than add to the left side
+				//			  if it is more than or equal to add to the rightside 
+				// finalEntry is the last slot of leafPage, so the normalized key can be compared in place
+				int cmp = (probe != null) ? probe.compareSlot(leafPage, leafPage.getSlotCnt() - 1)
+						: BT.keyCompare(finalEntry.key,key); // BT.keyCompare() compare the key and return +ve, -ve or 0 integer based on key values
+				if(cmp<0){
+
+				newLeafPage.insertRecord(key,rid); // insert the record in the newLeafNode as the key is greater then the final key value
+
+
+				}
+				else {
+				leafPage.insertRecord(key,rid); // insert the record in the newLeafNode as the key i less then or equal the final key value
+
+				}
+				// unpin both pages
+				unpinPage(leafPage.getCurPage(),true); // class function non return type
+				unpinPage(newLeafPage.getCurPage(),true); // class fucntion non return type
+				return new KeyDataEntry(newLeafPage.getFirst(new RID()).key,newLeafPage.getCurPage());	// copy up the first value of the newLeafPage	
+			}
+		}
+		// None leaf node was found we need to recursivly travse
+		else if (currentPage.getType() == NodeType.INDEX){ // check if the page is and index page or not
+
+			// initialize the BTIndexPage to access its fucntion
+			indexPage = new BTIndexPage(currentPage, getHeaderPage().get_keyType());
+
+			
+			//unpin the page dont set the dirty bit as no changes have been made.
+			unpinPage(currentPageId);
+			// recursively call _insert(key,rid,PageId) untill you reach leaf node.
+			curEntry = _insert(key,rid,childForKey(indexPage,key,probe),probe); // binary search of the sorted slots returns PageId
+			
+			// Assertion: if curEntry is null no split happend and no changes are needed so return null
+			if (curEntry == null){
+				return null;
+			}
+			// split occured and need to add the value is to be added
+			// pin the page that needs to change
+			//pin the page and create the instance of the BTIndexPage to access its function
+			indexPage = new BTIndexPage(pinPage(currentPageId),getHeaderPage().get_keyType());
+			//Assertion : check for space if you can insert in the index node if not then split
+			if (indexPage.available_space() >= BT.getKeyDataLength(key,NodeType.INDEX)){	
+				//Space is enough to add an entry so just insert				
+				indexPage.insertKey(curEntry.key,((IndexData)curEntry.data).getData()); // BTIndexPage class function returns RID of the inserted record
+				//unpin the page and set the dirt bit
+				unpinPage(currentPageId, true); // class function non return type
+				return null; // return null as no split happened 
+			}
+			// we dont have enough space need to split
+			else {
+				finalEntry = null;
+				// create a new BTIndexPage to split the entries
+				newIndexPage = new BTIndexPage(getHeaderPage().get_keyType()); // comes pinned
+				noteAllocation();
+				// get the number of slots 
+				slotCount = indexPage.getSlotCnt(); // inherited from HFPage class returns number of slots in short data type
+				// iterate till all the entries from the indexPage are moved to the newIndexPage
+				for (i = 0; i<slotCount;i++){
+					// get the first record
+					keyData = indexPage.getFirst(new RID()); // BTIndexPage class fucntion return first record in the indexPage
+					// insert the record in the newIndexPage
+					newIndexPage.insertKey(keyData.key,((IndexData)keyData.data).getData()); // BTIndexPage class function
+					// delete the record from the indexPage
+					indexPage.deleteSortedRecord(new RID()); // inherited from the BTSortedPage class
+
+				}
+				// try to make eqaul split with half the values in each node
+				for (i = 0; indexPage.available_space()>newIndexPage.available_space();i++){ //avaiable_space() inhertied form HFPage returns space as int
+					// get the first record
+					keyData = newIndexPage.getFirst(new RID()); // BTIndexPage class fucntion return first record in the indexPage
+					// copy the entry 
+					finalEntry = keyData;
+					// insert the record in the indexPage
+					indexPage.insertKey(keyData.key,((IndexData)keyData.data).getData()); // BTIndexPage class function
+					// delete the record from the newIndexPage
+					newIndexPage.deleteSortedRecord(new RID()); // inherited from the BTSortedPage class
+
+				}
+				// check for even split if not move the last entry from indexPage to newIndexPage
+				if (indexPage.available_space()<newIndexPage.available_space()){
+					// insert the record in the newIndexPage
+
+					newIndexPage.insertKey(finalEntry.key, ((IndexData)finalEntry.data).getData()); // BTIndexPage class function
+
+					// delete the record in the indexPage
+					indexPage.deleteSortedRecord(new RID(indexPage.getCurPage(),(int)indexPage.getSlotCnt()-1)); // inherited from the BTSortedPage class
+				}
+				// get the first entry of the newIndexPage node for comparison
+				entry = newIndexPage.getFirst(new RID());  // BTIndexPage class function returns first data record as KeyDataEntry
+				// if the first entry is greater than or equal to the current key that needs to inserted add to newIndexPage
+				if(BT.keyCompare(entry.key,curEntry.key)<=0){ // BT.keyCompare() compare the key and return +ve, -ve or 0 integer based on key values
+					newIndexPage.insertKey(curEntry.key,((IndexData)curEntry.data).getData()); // BTIndexPage class fucntion returns RID of the inserted record
+				}
+				// if the first entry is less than the current key that needs to inserted add to newIndexPage
+				else if (BT.keyCompare(entry.key,curEntry.key)>0){ // BT.keyCompare() compare the key and return +ve, -ve or 0 integer based on key values
+					indexPage.insertKey(curEntry.key,((IndexData)curEntry.data).getData()); // BTIndexPage class fucntion returns RID of the inserted record
+				}
+				else {
+					System.out.println("Invalid key"); // recored doesnt belong to either node
+					return null;
+				}
+
+				//unpin currentIndexPage and set the dirty bit as changes are made
+				unpinPage(indexPage.getCurPage(), true); // class fucntion non return type
+				// need to copy up the first value and remove it form the newIndexPage
+				curEntry = newIndexPage.getFirst(new RID()); // BTIndexPage class function returns KeyDataEntry of first record
+				newIndexPage.setPrevPage( ((IndexData)curEntry.data).getData()); // set the previous page to approriate pointer
+	  			newIndexPage.deleteSortedRecord(new RID());
+				//unpin newIndexPage and set the dirty bit as changes are made
+				unpinPage(newIndexPage.getCurPage(), true); // class fucntion non return type
+				if (writeOptimized) // buffered messages above the new separator move right
+					splitBuffer(indexPage.getCurPage(), newIndexPage.getCurPage(), curEntry.key);
+				return new KeyDataEntry(curEntry.key,newIndexPage.getCurPage()); // return KeyDataEntry to update the parent node
+			}
+		}
+		else{
+			// node is neither leaf nor index so need to throw the error
+			// System.out.println("Wrong node type");
+			throw new  NodeNotMatchException("Wrong node type");
+		}
+		
+	}
+	
+				
+		
+	
+
+
+	
+
+
+
+	/**
+	 * delete leaf entry given its <key, rid> pair. `rid' is IN the data entry;
+	 * it is not the id of the data entry)
+	 *
+	 * One entry with the pair is deleted, whichever leaf of the key's run it
+	 * is in. The result does not depend on a Bloom filter: a key the filter
+	 * rules out is not in the index, and false is returned for it as for any
+	 * other pair that is not there. Either way a message says what
+	 * happened.
+	 *
+	 * @param key
+	 *            the key in pair <key, rid>. Input Parameter.
+	 * @param rid
+	 *            the rid in pair <key, rid>. Input Parameter.
+	 * @return true if deleted. false if no such record.
+	 * @exception DeleteFashionException
+	 *                neither full delete nor naive delete
+	 * @exception LeafRedistributeException
+	 *                redistribution error in leaf pages
+	 * @exception RedistributeException
+	 *                redistribution error in index pages
+	 * @exception InsertRecException
+	 *                error when insert in index page
+	 * @exception KeyNotMatchException
+	 *                key is neither integer key nor string key
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception IndexInsertRecException
+	 *                error when insert in index page
+	 * @exception FreePageException
+	 *                error in BT page constructor
+	 * @exception RecordNotFoundException
+	 *                error delete a record in a BT page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception IndexFullDeleteException
+	 *                fill delete error
+	 * @exception LeafDeleteException
+	 *                delete error in leaf page
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error in search in index pages
+	 * @exception IOException
+	 *                error from the lower layer
+	 *
+	 */
+	public boolean Delete(KeyClass key, RID rid) throws DeleteFashionException,
+			LeafRedistributeException, RedistributeException,
+			InsertRecException, KeyNotMatchException, UnpinPageException,
+			IndexInsertRecException, FreePageException,
+			RecordNotFoundException, PinPageException,
+			IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IndexSearchException,
+			IOException {
+		boolean deleted = remove(key, rid);
+		if (deleted)
+			System.out.println("Instance of Record " + key
+					+ " deleted successfully");
+		else
+			System.out.println("No Instance of Record " + key + " was found");
+		return deleted;
+	}
+
+	/*
+	 * Delete() without its messages, for the classes of the package that
+	 * delete entries on their own account (merging a write buffer, splitting
+	 * a shard).
+	 */
+	boolean remove(KeyClass key, RID rid) throws DeleteFashionException,
+			LeafRedistributeException, RedistributeException,
+			InsertRecException, KeyNotMatchException, UnpinPageException,
+			IndexInsertRecException, FreePageException,
+			RecordNotFoundException, PinPageException,
+			IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IndexSearchException,
+			IOException {
+		if (headerPage.get_deleteFashion() != DeleteFashion.NAIVE_DELETE)
+			throw new DeleteFashionException(null, "");
+
+		beginOperation();
+		try {
+			key = toPageKey(key);
+			if (filter != null && !filter.mightContain(key))
+				return false; // definitely not in the index
+			if (!snapshots.isEmpty())
+				preserveDeleteLeaf(key);
+			// a reader at an older timestamp still sees the entry, if it
+			// was there
+			boolean present = !versions.hasReaders() && !buffering()
+					|| containsRid(lookup(key), rid);
+			boolean deleted = (buffering()) ? deleteBuffered(key, rid, present)
+					: NaiveDelete(key, rid);
+			if (deleted)
+				versions.record(false, key, rid);
+			if (deleted && rebuild != null)
+				rebuild.capture(false, key, rid);
+			return deleted;
+		} finally {
+			endOperation();
+		}
+	}
+
+	/*
+	 * Delete in write-optimized mode. The entry is deleted from its leaf
+	 * right away, unless a message for it is still buffered on its path;
+	 * then the delete is buffered too, and applied after that message.
+	 */
+	private boolean deleteBuffered(KeyClass key, RID rid, boolean present)
+			throws IndexInsertRecException {
+		if (!present)
+			return false;
+		try {
+			int k = ((IntegerKey) key).getKey();
+			for (BTMessageBuffer level : pathMessages(k))
+				for (int i = 0; i < level.count; i++)
+					if (level.pids[i] == rid.pageNo.pid
+							&& level.slots[i] == rid.slotNo) {
+						bufferMessage(BTMessageBuffer.DELETE, k, rid);
+						return true;
+					}
+			bypassBuffers = true;
+			return NaiveDelete(key, rid);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IndexInsertRecException(e, "");
+		} finally {
+			bypassBuffers = false;
+		}
+	}
+
+	/*
+	 * find left-most occurrence of `lo_key' as descendToRunStart() does,
+	 * through the adaptive hash index for hot keys.
+	 */
+	BTLeafPage findRunStart(KeyClass lo_key, RID startrid) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		settle();
+		BTAdaptiveHash hash = adaptiveHash;
+		if (lo_key == null || hash == null)
+			return descendToRunStart(lo_key, startrid);
+
+		if (hash.lookup(lo_key, startrid))
+			return new BTLeafPage(pinPage(startrid.pageNo),
+					headerPage.get_keyType());
+
+		BTLeafPage pageLeaf = descendToRunStart(lo_key, startrid);
+		if (pageLeaf != null && hash.probe(lo_key)
+				&& BT.keyCompare(pageLeaf.getCurrent(startrid).key, lo_key) == 0)
+			hash.put(lo_key, startrid);
+		return pageLeaf;
+	}
+
+	/*
+	 * findRunStart. Status BTreeFile::findRunStart (const void lo_key, RID
+	 * *pstartrid)
+	 * 
+	 * find left-most occurrence of `lo_key', going all the way left if lo_key
+	 * is null.
+	 * 
+	 * Starting record returned in *pstartrid, on page *pppage, which is pinned.
+	 * 
+	 * Since we allow duplicates, this must "go left" as described in the text
+	 * (for the search algorithm).
+	 * 
+	 * @param lo_key find left-most occurrence of `lo_key', going all the way
+	 * left if lo_key is null.
+	 * 
+	 * @param startrid it will reurn the first rid =< lo_key
+	 * 
+	 * @return return a BTLeafPage instance which is pinned. null if no key was
+	 * found.
+     *
+     *  ASantra [1/7/2023]: Modified]
+	 */
+
+ 
+
+	private BTLeafPage descendToRunStart(KeyClass lo_key, RID startrid)
+			throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		BTLeafPage pageLeaf;
+		BTIndexPage pageIndex;
+		Page page;
+		BTSortedPage sortPage;
+		PageId pageno;
+		PageId curpageno = null; // Iterator
+		PageId prevpageno;
+		PageId nextpageno;
+		RID curRid;
+		KeyDataEntry curEntry;
+		NormalizedKey probe;
+		int slot;
+
+		if (model != null && lo_key != null && model.trainedAt == changes) {
+			// the learned model goes straight to the leaf
+			pageLeaf = findByModel(((IntegerKey) lo_key).getKey(), startrid);
+			if (model != null)
+				return pageLeaf;
+		}
+
+		pageno = headerPage.get_rootId();
 
-		//Check for key length 
-		//Assertions: if the key length is greater than the max key size set in header
-		//				throw error and stop else continue
-		if (BT.getKeyLength(key) > headerPage.get_maxKeySize()){
-			throw new KeyTooLongException(null, "");
+		if (pageno.pid == INVALID_PAGE) { // no pages in the BTREE
+			pageLeaf = null; // should be handled by
+			// startrid =INVALID_PAGEID ; // the caller
+			return pageLeaf;
 		}
 
-		//Assertions : if key is IntegerKey and header key attribute type declared not Integer
-		//             throw error else let the program
-		if (key instanceof IntegerKey){
-				
-			//Assertios: Check for header page being not valid
-			//			 if not vaild create a new (Leaf) Page
-			//           and insert the entry else call _insert() 
-			if (getHeaderPage().get_rootId().pid == INVALID_PAGE){
-
-				//Create a new (Leaf) Page
-				newLeafPage = new BTLeafPage(getHeaderPage().get_keyType());
-					
-				//pin the page
-				pinPage(newLeafPage.getCurPage()); // class function returns Page 
+		page = pinPage(pageno);
+		sortPage = new BTSortedPage(page, headerPage.get_keyType());
 
-				//Set next and previous page pointers
-				newLeafPage.setNextPage(new PageId(INVALID_PAGE)); // inherited from HFPage Class non-return type function
-				newLeafPage.setPrevPage(new PageId(INVALID_PAGE)); // inherited from HFPage Class non return type fucntion
+		if (trace != null) {
+			trace.writeBytes("VISIT node " + pageno + lineSep);
+			trace.flush();
+		}
 
-				//insert the record
-				newLeafPage.insertRecord(key,rid); // BTLeafPage class function  returns rid of the inserted record as RID
+		// ASSERTION
+		// - pageno and sortPage is the root of the btree
+		// - pageno and sortPage valid and pinned
 
-				// unpin the page and set the dirty bit as changes have been made
-				unpinPage(newLeafPage.getCurPage(), true); // class function non return type function 
+		probe = (lo_key == null) ? null : NormalizedKey.of(lo_key);
 
-				//change the header to point to the new page
-				updateHeader(newLeafPage.getCurPage());// getCurPage() inherited from HFPage Class return page no as PageId		
+		while (sortPage.getType() == NodeType.INDEX) {
+			pageIndex = new BTIndexPage(page, headerPage.get_keyType());
+			prevpageno = pageIndex.getPrevPage();
+			if (probe != null) {
+				// go left of the first key >= lo_key, found by binary search
+				slot = probe.lowerBound(pageIndex);
+				if (slot > 0)
+					prevpageno = new PageId(NormalizedKey.childAt(pageIndex,
+							slot - 1));
+			} else {
+				curEntry = pageIndex.getFirst(startrid);
+				while (curEntry != null && lo_key != null
+						&& BT.keyCompare(curEntry.key, lo_key) < 0) {
+
+					prevpageno = ((IndexData) curEntry.data).getData();
+					curEntry = pageIndex.getNext(startrid);
+				}
 			}
 
-			else {
-				// fucntion call to _insert class fucntion to insert record
-				header = _insert(key,rid,getHeaderPage().get_rootId()); // class function return KeyDataEntry
+			unpinPage(pageno);
 
-				// Assertion : if the retured value to the header is not null that means the split
-				//			   moved up till the root node and root was split. need to create a new
-				//			   root node and manage pointers.
-				if (header != null){
+			pageno = prevpageno;
+			page = pinPage(pageno);
+			sortPage = new BTSortedPage(page, headerPage.get_keyType());
 
-					//Create a new (Index) Page
-					newIndexPage = new BTIndexPage(getHeaderPage().get_keyType());
+			if (trace != null) {
+				trace.writeBytes("VISIT node " + pageno + lineSep);
+				trace.flush();
+			}
 
-					//pin the page
-					pinPage(newIndexPage.getCurPage()); //class function returns Page
-					// Insert in to the new index node and set previous page to the old root
-					newIndexPage.insertKey(header.key,((IndexData)(header.data)).getData()); // BTIndexPage class fuction returns RID of the inserted key
-					newIndexPage.setPrevPage(getHeaderPage().get_rootId()); // inherited from HFPage Class non return type fucntion
-					//unpin the page and set the dirty bit as changes have been made
-					unpinPage(newIndexPage.getCurPage(), true); //class function non return type function 
-					//change the header to point to the new page
-					updateHeader(newIndexPage.getCurPage()); // getCurPage() inherited from HFPage Class return page no as PageId	
+		}
+
+		pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
+
+		if (probe != null) {
+			// position on the first key >= lo_key, going right past leaves
+			// that hold only smaller keys (or nothing)
+			slot = probe.lowerBound(pageLeaf);
+			while (slot == pageLeaf.getSlotCnt()) {
+				nextpageno = pageLeaf.getNextPage();
+				unpinPage(pageno);
+				if (nextpageno.pid == INVALID_PAGE) {
+					return null;
 				}
+
+				pageno = nextpageno;
+				pageLeaf = new BTLeafPage(pinPage(pageno),
+						headerPage.get_keyType());
+				slot = probe.lowerBound(pageLeaf);
 			}
+			startrid.pageNo = pageLeaf.getCurPage();
+			startrid.slotNo = slot;
+			return pageLeaf;
 		}
-		//Assertions: if any other key Atrribute type throw error
-		else {
-			throw new KeyNotMatchException(null, "");
-		}
-	}
-
-	private KeyDataEntry _insert(KeyClass key, RID rid, PageId currentPageId)
-			throws PinPageException, IOException, ConstructPageException,
-			LeafDeleteException, ConstructPageException, DeleteRecException,
-			IndexSearchException, UnpinPageException, LeafInsertRecException,
-			ConvertException, IteratorException, IndexInsertRecException,
-			KeyNotMatchException, NodeNotMatchException, InsertException
 
-	{
-		//Decaler function variables 
-		BTSortedPage currentPage = null;
-		BTLeafPage leafPage = null;
-		BTLeafPage newLeafPage = null;
-		BTLeafPage rightPage = null;
-		KeyDataEntry finalEntry = null;
-		BTIndexPage indexPage = null;
-		BTIndexPage newIndexPage = null;
-		int slotCount;
-		int i;
-		KeyDataEntry keyData = null;
-		KeyDataEntry curEntry = null;
-		KeyDataEntry entry = null;
-		//pin the page
-		pinPage(currentPageId); //class function return Page
-		//Create an instance of BTSortedPage as we dont know what type of node (leaf or index) we are at 
+		curEntry = pageLeaf.getFirst(startrid);
+		while (curEntry == null) {
+			// skip empty leaf pages off to left
+			nextpageno = pageLeaf.getNextPage();
+			unpinPage(pageno);
+			if (nextpageno.pid == INVALID_PAGE) {
+				// oops, no more records, so set this scan to indicate this.
+				return null;
+			}
 
-		currentPage = new BTSortedPage(currentPageId,getHeaderPage().get_keyType());
+			pageno = nextpageno;
+			pageLeaf = new BTLeafPage(pinPage(pageno), headerPage.get_keyType());
+			curEntry = pageLeaf.getFirst(startrid);
+		}
 
-		
-		// Assertions: Check for the node type
-		//				if Leaf: check for space and insert or split
-		//				if index: recursively travse till leaf node is found
-		// 				else: throw NodeNotMatch error
-		if (currentPage.getType() == NodeType.LEAF){
-			// Create an instance of BTLeafPage to access the fucntion of BTLeafPage
+		// ASSERTIONS:
+		// - curkey, curRid: contain the first record on the
+		// current leaf page (curkey its key, cur
+		// - pageLeaf, pageno valid and pinned
 
-			leafPage = new BTLeafPage(currentPageId,getHeaderPage().get_keyType());
+		if (lo_key == null) {
+			return pageLeaf;
+			// note that pageno/pageLeaf is still pinned;
+			// scan will unpin it when done
+		}
 
+		while (BT.keyCompare(curEntry.key, lo_key) < 0) {
+			curEntry = pageLeaf.getNext(startrid);
+			while (curEntry == null) { // have to go right
+				nextpageno = pageLeaf.getNextPage();
+				unpinPage(pageno);
 
-			//Assertions: if the avaiable space in the leafpage is more than the current key length
-			// 				insert the key in to the leaf page else split.
+				if (nextpageno.pid == INVALID_PAGE) {
+					return null;
+				}
 
-			// BT.getKeyDataLength(key,node_type) BT class function returns space required for the key to be stored in the type of node
-			if (leafPage.available_space() >= BT.getKeyDataLength(key,NodeType.LEAF)){	//avaiable_space() inhertied form HFPage returns space as int
-				
-				// insert the record
-				leafPage.insertRecord(key,rid); // BTLeafPage class function  returns rid of the inserted record as RID
+				pageno = nextpageno;
+				pageLeaf = new BTLeafPage(pinPage(pageno),
+						headerPage.get_keyType());
 
-				// unpin the page and set the dirty bit as changes are made
-				unpinPage(leafPage.getCurPage(),true); // class function non return type
-				// As there was space in the node and there was no need to split the parent node so return null
-				return null;
+				curEntry = pageLeaf.getFirst(startrid);
 			}
-			// Space was not enough perform split
-			else {
-				// Create a new (Leaf) Page 
+		}
 
-				newLeafPage = new BTLeafPage(getHeaderPage().get_keyType());
+		return pageLeaf;
+	}
 
-				//Set next and previous page pointers
-				newLeafPage.setNextPage(leafPage.getNextPage()); // inherited from HFPage Class non-return type function
-				newLeafPage.setPrevPage(leafPage.getCurPage()); // inherited from HFPage Class non-return type function
-				leafPage.setNextPage(newLeafPage.getCurPage()); // inherited from HFPage Class non-return type function
-				// set the reverse pointer of the page that was to the right of the leafPage 
-				if (newLeafPage.getNextPage().pid != INVALID_PAGE){
-					//pin the page
-					pinPage(newLeafPage.getNextPage()); // class function returns Page
-					// Create the instance of BTLeafPage to access BTLeafPage fucntions
+	/*
+	 * findRunStart() with the learned model: search the slots of the
+	 * predicted window for the first key >= key, starting at the leaf the
+	 * window starts in. Should the window not hold it after all, the model
+	 * is dropped and the caller descends the index as usual.
+	 */
+	private BTLeafPage findByModel(int key, RID startrid) throws IOException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		int from = model.windowStart(key);
+		int to = model.windowEnd(key);
+		NormalizedKey probe = NormalizedKey.of(new IntegerKey(key));
+
+		for (int leaf = model.leafOf(from); leaf < model.leaves()
+				&& model.firstRank(leaf) <= to; leaf++) {
+			PageId pageno = model.leafId(leaf);
+			BTLeafPage pageLeaf = new BTLeafPage(pinPage(pageno),
+					headerPage.get_keyType());
+			int first = model.firstRank(leaf);
+			int end = Math.min(to - first + 1, pageLeaf.getSlotCnt());
+
+			// first slot of the window with a key >= key
+			int lo = Math.max(from - first, 0);
+			int hi = end;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (probe.compareSlot(pageLeaf, mid) < 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			if (lo < end) {
+				startrid.pageNo = pageLeaf.getCurPage();
+				startrid.slotNo = lo;
+				return pageLeaf;
+			}
+			unpinPage(pageno);
+		}
 
-					rightPage = new BTLeafPage(newLeafPage.getNextPage(), getHeaderPage().get_keyType());
+		if (to < model.firstRank(model.leaves()))
+			model = null; // the window missed: descend
+		return null;
+	}
 
-					// set the previous page pointer to the newLeafPage
-					rightPage.setPrevPage(newLeafPage.getCurPage()); // inherited from HFPage Class non-return type function
-					// unpin the right page and set the dirty bit as changes have been made
-					unpinPage(rightPage.getCurPage(),true); // class function non return type.
+	/**
+	 * Train a learned model over the leaves, for an index that is built and
+	 * then only read: findRunStart(), and so every scan and lookup, then
+	 * predicts the leaf and slot range of a key and searches a few slots of
+	 * one leaf (rarely two) instead of descending the index pages. The model
+	 * is kept in memory. Once an entry is inserted or deleted it is ignored,
+	 * and the index is descended as usual until the model is trained again.
+	 *
+	 * @param maxError
+	 *            the largest distance, in entries, between the predicted
+	 *            and the actual position of a key. Input parameter.
+	 * @return the number of linear segments of the model
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                the keys are not integer keys
+	 * @exception IteratorException
+	 *                iterator error, or the leaves are compressed
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public int trainModel(int maxError) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		if (headerPage.get_keyType() != AttrType.attrInteger)
+			throw new KeyNotMatchException(null,
+					"learned models need integer keys");
+		if (compressed)
+			throw new IteratorException(null, "learned models need plain leaves");
+
+		int[] keys = new int[1024];
+		int total = 0;
+		int[] leafIds = new int[64];
+		int[] firstRank = new int[64];
+		int leaves = 0;
+
+		RID rid = new RID();
+		model = null;
+		BTLeafPage pageLeaf = findRunStart(null, rid);
+		while (pageLeaf != null) {
+			PageId pageno = new PageId(pageLeaf.getCurPage().pid);
+			int slots = pageLeaf.getSlotCnt();
+			if (slots > 0) {
+				if (leaves == leafIds.length) {
+					leafIds = Arrays.copyOf(leafIds, 2 * leaves);
+					firstRank = Arrays.copyOf(firstRank, 2 * leaves);
 				}
-				// get the slot count to transfer all the data from leafPage to newLeafPage
-				slotCount = leafPage.getSlotCnt(); // inherited from HPPage class returns slot count as short d-type
-				// fetch first recored from leafPage and insert it into newLeafPage and delete from leafPage do for all records
-				for (i = 0; i<slotCount;i++){
-					// get first record
-					keyData= leafPage.getCurrent(new  RID());// BTLeafPage class funciton return KeyDataEntry
-					newLeafPage.insertRecord(keyData.key,((LeafData)(keyData.data)).getData());// BTLeafPage class function returns KeyDataEntry
-					leafPage.deleteSortedRecord(new RID()); // inherited from BTSortedPage
-
+				leafIds[leaves] = pageno.pid;
+				firstRank[leaves++] = total;
+				for (int slot = 0; slot < slots; slot++) {
+					if (total == keys.length)
+						keys = Arrays.copyOf(keys, 2 * total);
+					keys[total++] = ((IntegerKey) pageLeaf.getCurrent(new RID(
+							pageno, slot)).key).getKey();
 				}
-				//Assertions: leafPage is empty newLeafPage is completely filled
-				//			  now transfer 1st half entires to leafPage
-				for (i = 0; newLeafPage.available_space()<leafPage.available_space();i++){ //avaiable_space() inhertied form HFPage returns space as int
-					//get the first entry in the newLeafPage
-					keyData = newLeafPage.getCurrent(new RID()); //BTLeafPage class function return KeyDataEntry
-					finalEntry = keyData;	// save the final key to compare to add new value in the nodes
-					// insert the record
-					leafPage.insertRecord(keyData.key,((LeafData)(keyData.data)).getData()); //BTLeafPage class function return RID of the inserted record
-					// delete the record from the newLeafPage
-					newLeafPage.deleteSortedRecord(new RID());// inherited from the BTSortedPage class non return type
+			}
+			PageId next = new PageId(pageLeaf.getNextPage().pid);
+			unpinPage(pageno);
+			pageLeaf = (next.pid == INVALID_PAGE) ? null : new BTLeafPage(
+					pinPage(next), headerPage.get_keyType());
+		}
 
-				}
-			
-				//Assertion: check the current key with final key entry if it is less than add to the left side
-				//			  if it is more than or equal to add to the rightside 
-				if(BT.keyCompare(finalEntry.key,key)<0){// BT.keyCompare() compare the key and return +ve, -ve or 0 integer based on key values
+		model = new BTLearnedModel(changes, keys, total, leafIds, firstRank,
+				leaves, Math.max(maxError, 0));
+		return model.segments();
+	}
 
-				newLeafPage.insertRecord(key,rid); // insert the record in the newLeafNode as the key is greater then the final key value
+	/**
+	 * Drop the learned model; findRunStart() descends the index again.
+	 */
+	public void dropModel() {
+		model = null;
+	}
+
+	/**
+	 * Turn the adaptive hash index on or off. It is on by default: keys that
+	 * are probed often (point lookups, equality scans) are mapped straight
+	 * to the leaf page and slot of their first entry, so findRunStart() pins
+	 * one page for them instead of descending the index. An insert into or a
+	 * delete from a leaf drops the entries that point into it.
+	 *
+	 * @param enabled
+	 *            whether hot keys are hashed. Input parameter.
+	 */
+	public void setAdaptiveHash(boolean enabled) {
+		if (!enabled)
+			adaptiveHash = null;
+		else if (adaptiveHash == null)
+			adaptiveHash = new BTAdaptiveHash();
+	}
+
+	/**
+	 * Turn on order statistics: the number of entries below every page is
+	 * kept, so that count() and select() touch one page per level instead of
+	 * walking the leaves. The counts are computed once here (every page is
+	 * read), kept in memory, and brought up to date lazily: an insert or
+	 * delete drops the counts of the pages on its path, which are counted
+	 * again from their children the next time they are needed.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 */
+	public void enableOrderStatistics() throws IOException, PinPageException,
+			UnpinPageException, ConstructPageException {
+		subtreeCounts = new HashMap<Integer, Integer>();
+		if (headerPage.get_rootId().pid != INVALID_PAGE)
+			subtreeCount(new PageId(headerPage.get_rootId().pid));
+	}
+
+	/**
+	 * Turn off order statistics and drop the counts.
+	 */
+	public void disableOrderStatistics() {
+		subtreeCounts = null;
+	}
 
+	/**
+	 * Count the entries with lo_key <= key <= hi_key, from the subtree
+	 * counts of the pages left of the two root to leaf paths of lo_key and
+	 * hi_key. Needs enableOrderStatistics().
+	 *
+	 * @param lo_key
+	 *            the smallest key to count, null for no lower bound. Input
+	 *            parameter.
+	 * @param hi_key
+	 *            the largest key to count, null for no upper bound. Input
+	 *            parameter.
+	 * @return the number of entries in the range
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                order statistics are not enabled
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 */
+	public int count(KeyClass lo_key, KeyClass hi_key) throws IOException,
+			KeyNotMatchException, IteratorException, PinPageException,
+			UnpinPageException, ConstructPageException {
+		settle();
+		if (subtreeCounts == null)
+			throw new IteratorException(null, "order statistics are off");
+		if (headerPage.get_rootId().pid == INVALID_PAGE)
+			return 0;
+
+		int below = (lo_key == null) ? 0 : rank(toPageKey(lo_key), false);
+		int upTo = (hi_key == null) ? subtreeCount(new PageId(headerPage
+				.get_rootId().pid)) : rank(toPageKey(hi_key), true);
+		return Math.max(upTo - below, 0);
+	}
 
+	/**
+	 * Find the entry at a position in key order, descending by the subtree
+	 * counts. Needs enableOrderStatistics().
+	 *
+	 * @param k
+	 *            the position, 0 for the entry with the smallest key. Input
+	 *            parameter.
+	 * @return the entry, or null if the index has no more than k entries
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                order statistics are not enabled, or error when reading
+	 *                the leaf
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 */
+	public KeyDataEntry select(int k) throws IOException, IteratorException,
+			PinPageException, UnpinPageException, ConstructPageException {
+		settle();
+		if (subtreeCounts == null)
+			throw new IteratorException(null, "order statistics are off");
+
+		PageId pageno = new PageId(headerPage.get_rootId().pid);
+		while (k >= 0 && pageno.pid != INVALID_PAGE) {
+			Page page = pinPage(pageno);
+			BTSortedPage sortPage = new BTSortedPage(page,
+					headerPage.get_keyType());
+			if (sortPage.getType() != NodeType.INDEX) {
+				KeyDataEntry entry = null;
+				try {
+					if (compressed) {
+						BTCompressedLeaf entries = readLeafBlock(page);
+						if (k < entries.count)
+							entry = entries.entry(k);
+					} else if (k < sortPage.getSlotCnt()) {
+						entry = new BTLeafPage(page, headerPage.get_keyType())
+								.getCurrent(new RID(pageno, k));
+					}
+				} finally {
+					unpinPage(pageno);
 				}
-				else if (BT.keyCompare(finalEntry.key,key)>=0){ // BT.keyCompare() compare the key and return +ve, -ve or 0 integer based on key values
-				leafPage.insertRecord(key,rid); // insert the record in the newLeafNode as the key i less then or equal the final key value
+				return entry;
+			}
 
+			PageId next = new PageId(INVALID_PAGE);
+			for (int i = 0; i <= sortPage.getSlotCnt(); i++) {
+				PageId child = childOf(sortPage, i);
+				int count = subtreeCount(child);
+				if (k < count) {
+					next = child;
+					break;
 				}
-				else {
-					System.out.println("Invalid key"); // key doesnt belong to either node
-					return null;
-				}
-				// unpin both pages
-				unpinPage(leafPage.getCurPage(),true); // class function non return type
-				unpinPage(newLeafPage.getCurPage(),true); // class fucntion non return type
-				return new KeyDataEntry(newLeafPage.getFirst(new RID()).key,newLeafPage.getCurPage());	// copy up the first value of the newLeafPage	
+				k -= count;
 			}
+			unpinPage(pageno);
+			pageno = next;
 		}
-		// None leaf node was found we need to recursivly travse
-		else if (currentPage.getType() == NodeType.INDEX){ // check if the page is and index page or not
-
-			// initialize the BTIndexPage to access its fucntion
-			indexPage = new BTIndexPage(currentPage, getHeaderPage().get_keyType());
+		return null;
+	}
 
-			
-			//unpin the page dont set the dirty bit as no changes have been made.
-			unpinPage(currentPageId);
-			// recursively call _insert(key,rid,PageId) untill you reach leaf node.
-			curEntry = _insert(key,rid,indexPage.getPageNoByKey(key)); // BTIndexPage class function returns PageId
-			
-			// Assertion: if curEntry is null no split happend and no changes are needed so return null
-			if (curEntry == null){
-				return null;
-			}
-			// split occured and need to add the value is to be added
-			// pin the page that needs to change
-			pinPage(currentPageId); // class fucntion returns PageId
-			//create the instance of the BTIndexPage to access its function
-			indexPage = new BTIndexPage(currentPageId,getHeaderPage().get_keyType());
-			//Assertion : check for space if you can insert in the index node if not then split
-			if (indexPage.available_space() >= BT.getKeyDataLength(key,NodeType.INDEX)){	
-				//Space is enough to add an entry so just insert				
-				indexPage.insertKey(curEntry.key,((IndexData)curEntry.data).getData()); // BTIndexPage class function returns RID of the inserted record
-				//unpin the page and set the dirt bit
-				unpinPage(currentPageId, true); // class function non return type
-				return null; // return null as no split happened 
+	/*
+	 * The number of entries with a key < key, or <= key if upper. The
+	 * children of an index page left of the one the key goes to hold only
+	 * smaller keys (or, if upper, keys <= key), and those right of it only
+	 * greater ones.
+	 */
+	private int rank(KeyClass key, boolean upper) throws IOException,
+			KeyNotMatchException, PinPageException, UnpinPageException,
+			ConstructPageException {
+		NormalizedKey probe = NormalizedKey.of(key);
+		PageId pageno = new PageId(headerPage.get_rootId().pid);
+		int rank = 0;
+
+		while (pageno.pid != INVALID_PAGE) {
+			Page page = pinPage(pageno);
+			BTSortedPage sortPage = new BTSortedPage(page,
+					headerPage.get_keyType());
+			if (sortPage.getType() != NodeType.INDEX) {
+				rank += bound(sortPage, NodeType.LEAF, key, probe, upper);
+				unpinPage(pageno);
+				break;
 			}
-			// we dont have enough space need to split
-			else {
-				finalEntry = null;
-				// create a new BTIndexPage to split the entries
-				newIndexPage = new BTIndexPage(getHeaderPage().get_keyType());
-				pinPage(newIndexPage.getCurPage());
-				pinPage(indexPage.getCurPage());
-				// get the number of slots 
-				slotCount = indexPage.getSlotCnt(); // inherited from HFPage class returns number of slots in short data type
-				// iterate till all the entries from the indexPage are moved to the newIndexPage
-				for (i = 0; i<slotCount;i++){
-					// get the first record
-					keyData = indexPage.getFirst(new RID()); // BTIndexPage class fucntion return first record in the indexPage
-					// insert the record in the newIndexPage
-					newIndexPage.insertKey(keyData.key,((IndexData)keyData.data).getData()); // BTIndexPage class function
-					// delete the record from the indexPage
-					indexPage.deleteSortedRecord(new RID()); // inherited from the BTSortedPage class
-
-				}
-				// try to make eqaul split with half the values in each node
-				for (i = 0; indexPage.available_space()>newIndexPage.available_space();i++){ //avaiable_space() inhertied form HFPage returns space as int
-					// get the first record
-					keyData = newIndexPage.getFirst(new RID()); // BTIndexPage class fucntion return first record in the indexPage
-					// copy the entry 
-					finalEntry = keyData;
-					// insert the record in the indexPage
-					indexPage.insertKey(keyData.key,((IndexData)keyData.data).getData()); // BTIndexPage class function
-					// delete the record from the newIndexPage
-					newIndexPage.deleteSortedRecord(new RID()); // inherited from the BTSortedPage class
-
-				}
-				// check for even split if not move the last entry from indexPage to newIndexPage
-				if (indexPage.available_space()<newIndexPage.available_space()){
-					// insert the record in the newIndexPage
 
-					newIndexPage.insertKey(finalEntry.key, ((IndexData)finalEntry.data).getData()); // BTIndexPage class function
+			int child = bound(sortPage, NodeType.INDEX, key, probe, upper);
+			for (int i = 0; i < child; i++)
+				rank += subtreeCount(childOf(sortPage, i));
+			PageId next = childOf(sortPage, child);
+			unpinPage(pageno);
+			pageno = next;
+		}
+		return rank;
+	}
 
-					// delete the record in the indexPage
-					indexPage.deleteSortedRecord(new RID(indexPage.getCurPage(),(int)indexPage.getSlotCnt()-1)); // inherited from the BTSortedPage class
-				}
-				// get the first entry of the newIndexPage node for comparison
-				entry = newIndexPage.getFirst(new RID());  // BTIndexPage class function returns first data record as KeyDataEntry
-				// if the first entry is greater than or equal to the current key that needs to inserted add to newIndexPage
-				if(BT.keyCompare(entry.key,curEntry.key)<=0){ // BT.keyCompare() compare the key and return +ve, -ve or 0 integer based on key values
-					newIndexPage.insertKey(curEntry.key,((IndexData)curEntry.data).getData()); // BTIndexPage class fucntion returns RID of the inserted record
-				}
-				// if the first entry is less than the current key that needs to inserted add to newIndexPage
-				else if (BT.keyCompare(entry.key,curEntry.key)>0){ // BT.keyCompare() compare the key and return +ve, -ve or 0 integer based on key values
-					indexPage.insertKey(curEntry.key,((IndexData)curEntry.data).getData()); // BTIndexPage class fucntion returns RID of the inserted record
-				}
-				else {
-					System.out.println("Invalid key"); // recored doesnt belong to either node
-					return null;
-				}
+	/*
+	 * The number of entries below a page, counted from its children (or its
+	 * slots) if it is not known.
+	 */
+	private int subtreeCount(PageId pageno) throws IOException,
+			PinPageException, UnpinPageException, ConstructPageException {
+		Integer known = subtreeCounts.get(pageno.pid);
+		if (known != null)
+			return known;
 
-				//unpin currentIndexPage and set the dirty bit as changes are made
-				unpinPage(indexPage.getCurPage(), true); // class fucntion non return type
-				// need to copy up the first value and remove it form the newIndexPage
-				curEntry = newIndexPage.getFirst(new RID()); // BTIndexPage class function returns KeyDataEntry of first record
-				newIndexPage.setPrevPage( ((IndexData)curEntry.data).getData()); // set the previous page to approriate pointer
-	  			newIndexPage.deleteSortedRecord(new RID());
-				//unpin newIndexPage and set the dirty bit as changes are made
-				unpinPage(newIndexPage.getCurPage(), true); // class fucntion non return type
-				return new KeyDataEntry(curEntry.key,newIndexPage.getCurPage()); // return KeyDataEntry to update the parent node
+		int count = 0;
+		Page page = pinPage(pageno);
+		try {
+			BTSortedPage sortPage = new BTSortedPage(page,
+					headerPage.get_keyType());
+			if (sortPage.getType() == NodeType.INDEX) {
+				for (int i = 0; i <= sortPage.getSlotCnt(); i++)
+					count += subtreeCount(childOf(sortPage, i));
+			} else if (compressed) {
+				count = readLeafBlock(page).count;
+			} else {
+				count = sortPage.getSlotCnt();
 			}
+		} finally {
+			unpinPage(pageno);
 		}
-		else{
-			// node is neither leaf nor index so need to throw the error
-			// System.out.println("Wrong node type");
-			throw new  NodeNotMatchException("Wrong node type");
-		}
-		
+		subtreeCounts.put(pageno.pid, count);
+		return count;
 	}
-	
-				
-		
-	
 
+	/*
+	 * A delete changes a leaf whose key range contains the key: drop the
+	 * counts of all of them and of the index pages above them.
+	 */
+	private void forgetCounts(PageId pageno, KeyClass key, NormalizedKey probe)
+			throws IOException, KeyNotMatchException, PinPageException,
+			UnpinPageException, ConstructPageException {
+		subtreeCounts.remove(pageno.pid);
+		Page page = pinPage(pageno);
+		BTSortedPage sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		List<PageId> children = new ArrayList<PageId>();
+		if (sortPage.getType() == NodeType.INDEX) {
+			int from = bound(sortPage, NodeType.INDEX, key, probe, false);
+			int to = bound(sortPage, NodeType.INDEX, key, probe, true);
+			for (int i = from; i <= to; i++)
+				children.add(childOf(sortPage, i));
+		}
+		unpinPage(pageno);
+		for (PageId child : children)
+			forgetCounts(child, key, probe);
+	}
 
-	
+	/*
+	 * Child i of an index page: the prevPage for i = 0, else the child of
+	 * slot i - 1.
+	 */
+	private static PageId childOf(HFPage indexPage, int i) throws IOException {
+		if (i == 0)
+			return new PageId(indexPage.getPrevPage().pid);
+		return new PageId(NormalizedKey.childAt(indexPage, i - 1));
+	}
 
+	/*
+	 * The number of slots (entries of a compressed leaf) with a key < key,
+	 * or <= key if upper.
+	 */
+	private int bound(BTSortedPage page, short nodeType, KeyClass key,
+			NormalizedKey probe, boolean upper) throws IOException,
+			KeyNotMatchException {
+		if (compressed && nodeType == NodeType.LEAF) {
+			BTCompressedLeaf entries = readLeafBlock(page);
+			int k = ((IntegerKey) key).getKey();
+			return upper ? entries.upperBound(k) : entries.lowerBound(k);
+		}
+		if (probe != null)
+			return upper ? probe.upperBound(page) : probe.lowerBound(page);
 
+		// a key NormalizedKey can not compare in place
+		int slot = 0;
+		try {
+			for (; slot < page.getSlotCnt(); slot++) {
+				int cmp = BT.keyCompare(BT.getEntryFromBytes(page.getpage(),
+						page.getSlotOffset(slot), page.getSlotLength(slot),
+						headerPage.get_keyType(), nodeType).key, key);
+				if (upper ? cmp > 0 : cmp >= 0)
+					break;
+			}
+		} catch (NodeNotMatchException e) {
+			throw new KeyNotMatchException(e, "");
+		} catch (ConvertException e) {
+			throw new KeyNotMatchException(e, "");
+		}
+		return slot;
+	}
 
 	/**
-	 * delete leaf entry given its <key, rid> pair. `rid' is IN the data entry;
-	 * it is not the id of the data entry)
+	 * Find the entry with the smallest key, the first of its duplicates, by
+	 * descending the leftmost path of the index.
 	 *
-	 * @param key
-	 *            the key in pair <key, rid>. Input Parameter.
-	 * @param rid
-	 *            the rid in pair <key, rid>. Input Parameter.
-	 * @return true if deleted. false if no such record.
-	 * @exception DeleteFashionException
-	 *                neither full delete nor naive delete
-	 * @exception LeafRedistributeException
-	 *                redistribution error in leaf pages
-	 * @exception RedistributeException
-	 *                redistribution error in index pages
-	 * @exception InsertRecException
-	 *                error when insert in index page
+	 * @return the entry, or null if the index is empty
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
 	 * @exception KeyNotMatchException
-	 *                key is neither integer key nor string key
-	 * @exception UnpinPageException
-	 *                error when unpin a page
-	 * @exception IndexInsertRecException
-	 *                error when insert in index page
-	 * @exception FreePageException
+	 *                key is not integer key nor string key
+	 * @exception ConstructPageException
 	 *                error in BT page constructor
-	 * @exception RecordNotFoundException
-	 *                error delete a record in a BT page
 	 * @exception PinPageException
 	 *                error when pin a page
-	 * @exception IndexFullDeleteException
-	 *                fill delete error
-	 * @exception LeafDeleteException
-	 *                delete error in leaf page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public KeyDataEntry min() throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		settle();
+		if (compressed) {
+			// go right past leaves emptied by deletes
+			for (PageId pageno = findLeaf(null); pageno.pid != INVALID_PAGE;) {
+				BTCompressedLeaf entries = readCompressedLeaf(pageno);
+				if (entries.count > 0)
+					return entries.entry(0);
+				pageno = entries.next;
+			}
+			return null;
+		}
+
+		RID rid = new RID();
+		BTLeafPage pageLeaf = findRunStart(null, rid);
+		if (pageLeaf == null)
+			return null;
+		try {
+			return pageLeaf.getCurrent(rid);
+		} finally {
+			unpinPage(rid.pageNo);
+		}
+	}
+
+	/**
+	 * Find the entry with the largest key, the last of its duplicates, by
+	 * descending the rightmost path of the index.
+	 *
+	 * @return the entry, or null if the index is empty
+	 * @exception IOException
+	 *                error from the lower layer
 	 * @exception IteratorException
 	 *                iterator error
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
 	 * @exception ConstructPageException
 	 *                error in BT page constructor
-	 * @exception DeleteRecException
-	 *                error when delete in index page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
 	 * @exception IndexSearchException
-	 *                error in search in index pages
+	 *                error when searching the index
+	 */
+	public KeyDataEntry max() throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException, IndexSearchException {
+		settle();
+		if (compressed) {
+			PageId pageno = new PageId(headerPage.get_rootId().pid);
+			while (pageno.pid != INVALID_PAGE) {
+				Page page = pinPage(pageno);
+				BTSortedPage sortPage = new BTSortedPage(page,
+						headerPage.get_keyType());
+				PageId next;
+				KeyDataEntry entry = null;
+				if (sortPage.getType() == NodeType.INDEX) {
+					next = childOf(sortPage, sortPage.getSlotCnt());
+				} else {
+					// go left past leaves emptied by deletes
+					BTCompressedLeaf entries = readLeafBlock(page);
+					if (entries.count > 0)
+						entry = entries.entry(entries.count - 1);
+					next = new PageId(sortPage.getPrevPage().pid);
+				}
+				unpinPage(pageno);
+				if (entry != null)
+					return entry;
+				pageno = next;
+			}
+			return null;
+		}
+
+		RID rid = new RID();
+		BTLeafPage pageLeaf = findRunEnd(null, rid);
+		if (pageLeaf == null)
+			return null;
+		try {
+			return pageLeaf.getCurrent(rid);
+		} finally {
+			unpinPage(rid.pageNo);
+		}
+	}
+
+	/**
+	 * Sum the keys of the entries with lo_key <= key <= hi_key, one per
+	 * entry, for an index with integer keys. The keys are read in place from
+	 * the leaves (decoded once per leaf if they are compressed); no entry
+	 * object is built per row.
+	 *
+	 * @param lo_key
+	 *            the smallest key to add, null for no lower bound. Input
+	 *            parameter.
+	 * @param hi_key
+	 *            the largest key to add, null for no upper bound. Input
+	 *            parameter.
+	 * @return the sum, 0 for an empty range
 	 * @exception IOException
 	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                the keys are not integer keys
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public long sum(KeyClass lo_key, KeyClass hi_key) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		return aggregate(lo_key, hi_key)[1];
+	}
+
+	/**
+	 * Average the keys of the entries with lo_key <= key <= hi_key, for an
+	 * index with integer keys, in the same leaf walk as sum().
 	 *
+	 * @param lo_key
+	 *            the smallest key to average, null for no lower bound. Input
+	 *            parameter.
+	 * @param hi_key
+	 *            the largest key to average, null for no upper bound. Input
+	 *            parameter.
+	 * @return the average, NaN for an empty range
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                the keys are not integer keys
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public double avg(KeyClass lo_key, KeyClass hi_key) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		long[] countSum = aggregate(lo_key, hi_key);
+		return (countSum[0] == 0) ? Double.NaN : (double) countSum[1]
+				/ countSum[0];
+	}
+
+	/*
+	 * The number and the sum of the integer keys in [lo_key, hi_key], walking
+	 * the leaves from where findRunStart() (findLeaf() for compressed leaves)
+	 * puts lo_key.
 	 */
-	public boolean Delete(KeyClass key, RID rid) throws DeleteFashionException,
-			LeafRedistributeException, RedistributeException,
-			InsertRecException, KeyNotMatchException, UnpinPageException,
-			IndexInsertRecException, FreePageException,
-			RecordNotFoundException, PinPageException,
-			IndexFullDeleteException, LeafDeleteException, IteratorException,
-			ConstructPageException, DeleteRecException, IndexSearchException,
-			IOException {
-		if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE)
-			return NaiveDelete(key, rid);
-		else
-			throw new DeleteFashionException(null, "");
+	private long[] aggregate(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		settle();
+		if (headerPage.get_keyType() != AttrType.attrInteger)
+			throw new KeyNotMatchException(null, "aggregates need integer keys");
+		lo_key = toPageKey(lo_key);
+		hi_key = toPageKey(hi_key);
+		long hi = (hi_key == null) ? Long.MAX_VALUE : ((IntegerKey) hi_key)
+				.getKey();
+		long count = 0, sum = 0;
+
+		if (compressed) {
+			for (PageId pageno = findLeaf(lo_key); pageno.pid != INVALID_PAGE;) {
+				BTCompressedLeaf entries = readCompressedLeaf(pageno);
+				int i = (lo_key == null) ? 0 : entries
+						.lowerBound(((IntegerKey) lo_key).getKey());
+				for (; i < entries.count; i++) {
+					if (entries.keys[i] > hi)
+						return new long[] { count, sum };
+					sum += entries.keys[i];
+					count++;
+				}
+				pageno = entries.next;
+			}
+			return new long[] { count, sum };
+		}
+
+		RID rid = new RID();
+		BTLeafPage pageLeaf = findRunStart(lo_key, rid);
+		int slot = (pageLeaf == null) ? 0 : rid.slotNo;
+		while (pageLeaf != null) {
+			PageId pageno = new PageId(pageLeaf.getCurPage().pid);
+			int slots = pageLeaf.getSlotCnt();
+			for (; slot < slots; slot++) {
+				int key = NormalizedKey.intAt(pageLeaf, slot);
+				if (key > hi) {
+					unpinPage(pageno);
+					return new long[] { count, sum };
+				}
+				sum += key;
+				count++;
+			}
+			PageId next = new PageId(pageLeaf.getNextPage().pid);
+			unpinPage(pageno);
+			pageLeaf = (next.pid == INVALID_PAGE) ? null : new BTLeafPage(
+					pinPage(next), headerPage.get_keyType());
+			slot = 0;
+		}
+		return new long[] { count, sum };
 	}
 
 	/*
-	 * findRunStart. Status BTreeFile::findRunStart (const void lo_key, RID
-	 * *pstartrid)
-	 * 
-	 * find left-most occurrence of `lo_key', going all the way left if lo_key
-	 * is null.
-	 * 
-	 * Starting record returned in *pstartrid, on page *pppage, which is pinned.
+	 * findRunEnd. Mirror image of findRunStart for descending scans.
 	 * 
-	 * Since we allow duplicates, this must "go left" as described in the text
-	 * (for the search algorithm).
+	 * find right-most occurrence of `hi_key' (or the right-most key below
+	 * it), going all the way right if hi_key is null.
 	 * 
-	 * @param lo_key find left-most occurrence of `lo_key', going all the way
-	 * left if lo_key is null.
+	 * @param hi_key find right-most key =< hi_key, going all the way right if
+	 * hi_key is null.
 	 * 
-	 * @param startrid it will reurn the first rid =< lo_key
+	 * @param endrid it will return the rid of that key
 	 * 
 	 * @return return a BTLeafPage instance which is pinned. null if no key was
 	 * found.
-     *
-     *  ASantra [1/7/2023]: Modified]
 	 */
-
- 
-
-	BTLeafPage findRunStart(KeyClass lo_key, RID startrid) throws IOException,
+	BTLeafPage findRunEnd(KeyClass hi_key, RID endrid) throws IOException,
 			IteratorException, KeyNotMatchException, ConstructPageException,
-			PinPageException, UnpinPageException {
+			PinPageException, UnpinPageException, IndexSearchException {
+		settle();
 		BTLeafPage pageLeaf;
 		BTIndexPage pageIndex;
 		Page page;
 		BTSortedPage sortPage;
 		PageId pageno;
-		PageId curpageno = null; // Iterator
 		PageId prevpageno;
-		PageId nextpageno;
-		RID curRid;
-		KeyDataEntry curEntry;
+		NormalizedKey probe;
+		int slot;
 
 		pageno = headerPage.get_rootId();
 
 		if (pageno.pid == INVALID_PAGE) { // no pages in the BTREE
-			pageLeaf = null; // should be handled by
-			// startrid =INVALID_PAGEID ; // the caller
-			return pageLeaf;
+			return null;
 		}
 
+		probe = (hi_key == null) ? null : NormalizedKey.of(hi_key);
+
 		page = pinPage(pageno);
 		sortPage = new BTSortedPage(page, headerPage.get_keyType());
 
@@ -788,19 +2885,15 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			trace.flush();
 		}
 
-		// ASSERTION
-		// - pageno and sortPage is the root of the btree
-		// - pageno and sortPage valid and pinned
-
 		while (sortPage.getType() == NodeType.INDEX) {
 			pageIndex = new BTIndexPage(page, headerPage.get_keyType());
-			prevpageno = pageIndex.getPrevPage();
-			curEntry = pageIndex.getFirst(startrid);
-			while (curEntry != null && lo_key != null
-					&& BT.keyCompare(curEntry.key, lo_key) < 0) {
-
-				prevpageno = ((IndexData) curEntry.data).getData();
-				curEntry = pageIndex.getNext(startrid);
+			if (hi_key == null) {
+				slot = pageIndex.getSlotCnt();
+				prevpageno = (slot == 0) ? pageIndex.getPrevPage() : new PageId(
+						NormalizedKey.childAt(pageIndex, slot - 1));
+			} else {
+				// go right of the last key =< hi_key
+				prevpageno = childForKey(pageIndex, hi_key, probe);
 			}
 
 			unpinPage(pageno);
@@ -813,120 +2906,610 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				trace.writeBytes("VISIT node " + pageno + lineSep);
 				trace.flush();
 			}
-
 		}
 
 		pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
 
-		curEntry = pageLeaf.getFirst(startrid);
-		while (curEntry == null) {
-			// skip empty leaf pages off to left
-			nextpageno = pageLeaf.getNextPage();
+		// position on the last key =< hi_key, going left past leaves that
+		// hold only greater keys (or nothing)
+		slot = lastAtMost(pageLeaf, hi_key, probe);
+		while (slot < 0) {
+			prevpageno = pageLeaf.getPrevPage();
 			unpinPage(pageno);
-			if (nextpageno.pid == INVALID_PAGE) {
-				// oops, no more records, so set this scan to indicate this.
+			if (prevpageno.pid == INVALID_PAGE) {
 				return null;
 			}
 
-			pageno = nextpageno;
+			pageno = prevpageno;
 			pageLeaf = new BTLeafPage(pinPage(pageno), headerPage.get_keyType());
-			curEntry = pageLeaf.getFirst(startrid);
+			slot = lastAtMost(pageLeaf, hi_key, probe);
+		}
+
+		endrid.pageNo = pageLeaf.getCurPage();
+		endrid.slotNo = slot;
+		return pageLeaf;
+	}
+
+	/*
+	 * slot of the last key =< hi_key in a leaf, -1 if there is none.
+	 */
+	private int lastAtMost(BTLeafPage pageLeaf, KeyClass hi_key,
+			NormalizedKey probe) throws IOException, IteratorException,
+			KeyNotMatchException {
+		if (hi_key == null)
+			return pageLeaf.getSlotCnt() - 1;
+		if (probe != null)
+			return probe.upperBound(pageLeaf) - 1;
+
+		RID rid = new RID();
+		int slot = -1;
+		for (KeyDataEntry entry = pageLeaf.getFirst(rid); entry != null
+				&& BT.keyCompare(entry.key, hi_key) <= 0; entry = pageLeaf
+				.getNext(rid)) {
+			slot++;
+		}
+		return slot;
+	}
+
+	/*
+	 * Status BTreeFile::NaiveDelete (const void *key, const RID rid)
+	 * 
+	 * Remove specified data entry (<key, rid>) from an index.
+	 * 
+	 * We don't do merging or redistribution, but do allow duplicates.
+	 * 
+	 * Page containing first occurrence of key `key' is found for us by
+	 * findRunStart. We then iterate for (just a few) pages, if necesary, to
+	 * find the one containing <key,rid>, which we then delete via
+	 * BTLeafPage::delUserRid.
+	 */
+
+	private boolean NaiveDelete(KeyClass key, RID rid)
+			throws LeafDeleteException, KeyNotMatchException, PinPageException,
+			ConstructPageException, IOException, UnpinPageException,
+			PinPageException, IndexSearchException, IteratorException {// This function deletes one record with the given key and rid,
+			//and returns whether there was one to delete.
+			changes++;
+			if (subtreeCounts != null && headerPage.get_rootId().pid != INVALID_PAGE) {
+				forgetCounts(new PageId(headerPage.get_rootId().pid), key, NormalizedKey.of(key));
+			}
+			if (compressed) {
+				return deleteCompressed(key, rid);
+			}
+			BTLeafPage leafPage = findRunStart(key,new RID());/* Get the leafPage with the first
+			occurence of the key for which the record is to be deleted.
+			FindRunStart has a return value of leafPage which is an object of BTLeaf class,
+			and it is pinned; every leaf is unpinned before going on to the next one
+			 */
+			NormalizedKey probe = NormalizedKey.of(key);
+			while (leafPage != null){/* Checks if there are more pages available to check for the record to be deleted*/
+				if (leafPage.delEntry(new KeyDataEntry(key, rid))){// Checks if the record is present on the given leafPage and if it is present 
+					//delEntry deletes it and returns true else it will return false as the recordis not presnt
+					if (adaptiveHash != null) {
+						adaptiveHash.invalidate(leafPage.getCurPage().pid);
+					}
+					unpinPage(leafPage.getCurPage(),true);// unpin the leafPage as the recorded is deleted and now the leafPage is not needed 
+					return true;
+				}
+				// the run of the key goes on in the next leaf only if this one ends with the key (or is empty)
+				int last = leafPage.getSlotCnt() - 1;
+				boolean runEnds = last >= 0 && probe.compareSlot(leafPage, last) > 0;
+				PageId next = leafPage.getNextPage();
+				unpinPage(leafPage.getCurPage(),false);// unpin the leafpage as there was no change no need to set dirty bit
+				if (runEnds || next.pid == INVALID_PAGE)
+					break;
+				leafPage = new BTLeafPage(pinPage(next), headerPage.get_keyType());
+			}
+			return false;
+
+	}
+	/*
+	 * Delete <key, rid> from a compressed leaf, going right from the leaf
+	 * where the key starts. Removing entries never makes a leaf too big.
+	 */
+	private boolean deleteCompressed(KeyClass key, RID rid)
+			throws IOException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		int k = ((IntegerKey) key).getKey();
+		PageId pageno = findLeaf(key);
+		while (pageno.pid != INVALID_PAGE) {
+			Page page = pinPage(pageno);
+			BTCompressedLeaf entries = readLeafBlock(page);
+			if (entries.remove(k, rid)) {
+				entries.write(page);
+				unpinPage(pageno, true);
+				return true;
+			}
+			unpinPage(pageno);
+			if (entries.count > 0 && entries.keys[entries.count - 1] > k)
+				return false;
+			pageno = entries.next;
+		}
+		return false;
+	}
+
+	/*
+	 * The leaf where the entries >= lo_key start, going left of the first
+	 * index key >= lo_key as findRunStart() does; the leftmost leaf if
+	 * lo_key is null, INVALID_PAGE for an empty tree. The leaf is not pinned.
+	 */
+	private PageId findLeaf(KeyClass lo_key) throws IOException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		PageId pageno = new PageId(headerPage.get_rootId().pid);
+		NormalizedKey probe = (lo_key == null) ? null : NormalizedKey.of(lo_key);
+
+		while (pageno.pid != INVALID_PAGE) {
+			Page page = pinPage(pageno);
+			BTSortedPage sortPage = new BTSortedPage(page,
+					headerPage.get_keyType());
+			if (sortPage.getType() != NodeType.INDEX) {
+				unpinPage(pageno);
+				break;
+			}
+
+			BTIndexPage pageIndex = new BTIndexPage(page,
+					headerPage.get_keyType());
+			PageId child = new PageId(pageIndex.getPrevPage().pid);
+			if (probe != null) {
+				int slot = probe.lowerBound(pageIndex);
+				if (slot > 0)
+					child = new PageId(NormalizedKey.childAt(pageIndex,
+							slot - 1));
+			}
+			unpinPage(pageno);
+			pageno = child;
+		}
+		return pageno;
+	}
+
+	/*
+	 * Pin a compressed leaf, decode it and unpin it.
+	 */
+	BTCompressedLeaf readCompressedLeaf(PageId pageno) throws IOException,
+			PinPageException, UnpinPageException {
+		Page page = pinPage(pageno);
+		try {
+			return readLeafBlock(page);
+		} finally {
+			unpinPage(pageno);
+		}
+	}
+
+	/*
+	 * Decode a block leaf, in the format of this file.
+	 */
+	private BTCompressedLeaf readLeafBlock(Page page) throws IOException {
+		BTCompressedLeaf entries = BTCompressedLeaf.read(page);
+		entries.aligned = pax;
+		return entries;
+	}
+
+	boolean compressedLeaves() {
+		return compressed;
+	}
+
+	/*
+	 * The change count: it moves on every insert and delete, so a position
+	 * in a leaf taken at one count is still good at the same count.
+	 */
+	long changes() {
+		return changes;
+	}
+
+	/**
+	 * create a scan with given keys Cases: (1) lo_key = null, hi_key = null
+	 * scan the whole index (2) lo_key = null, hi_key!= null range scan from min
+	 * to the hi_key (3) lo_key!= null, hi_key = null range scan from the lo_key
+	 * to max (4) lo_key!= null, hi_key!= null, lo_key = hi_key exact match (
+	 * might not unique) (5) lo_key!= null, hi_key!= null, lo_key < hi_key range
+	 * scan from lo_key to hi_key
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException
+
+	{
+		settle();
+		if (filter != null && lo_key != null && hi_key != null
+				&& BT.keyCompare(toPageKey(lo_key), toPageKey(hi_key)) == 0
+				&& !filter.mightContain(toPageKey(lo_key))) {
+			// an equality probe of a key that is definitely not there
+			BTFileScan scan = new BTFileScan();
+			scan.leafPage = null;
+			return scan;
+		}
+
+		if (compressed) {
+			BTCompressedFileScan scan = new BTCompressedFileScan();
+			scan.treeFilename = dbname;
+			scan.startkey = toPageKey(lo_key);
+			scan.endkey = toPageKey(hi_key);
+			scan.keyType = headerPage.get_keyType();
+			scan.maxKeysize = headerPage.get_maxKeySize();
+			scan.bfile = this;
+			scan.nextPage = findLeaf(scan.startkey);
+			return scan;
+		}
+
+		BTFileScan scan = new BTFileScan();
+		if (headerPage.get_rootId().pid == INVALID_PAGE) {
+			scan.leafPage = null;
+			return scan;
+		}
+
+		lo_key = toPageKey(lo_key);
+		hi_key = toPageKey(hi_key);
+
+		scan.treeFilename = dbname;
+		scan.endkey = hi_key;
+		scan.didfirst = false;
+		scan.deletedcurrent = false;
+		scan.curRid = new RID();
+		scan.keyType = headerPage.get_keyType();
+		scan.maxKeysize = headerPage.get_maxKeySize();
+		scan.bfile = this;
+
+		// this sets up scan at the starting position, ready for iteration
+		scan.leafPage = findRunStart(lo_key, scan.curRid);
+		return scan;
+	}
+
+	/*
+	 * Reopen a scan right after the entry at rid, where an earlier scan of
+	 * this file stopped when the change count was at. Returns null if the
+	 * file changed since (or has compressed leaves): then the position may
+	 * be gone and the caller seeks by key instead.
+	 */
+	BTFileScan resume_scan(RID rid, long at, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, ConstructPageException {
+		if (compressed || at != changes)
+			return null;
+		BTFileScan scan = new BTFileScan();
+		scan.treeFilename = dbname;
+		scan.endkey = toPageKey(hi_key);
+		scan.didfirst = true; // get_next() moves on from curRid
+		scan.deletedcurrent = false;
+		scan.curRid = new RID(new PageId(rid.pageNo.pid), rid.slotNo);
+		scan.keyType = headerPage.get_keyType();
+		scan.maxKeysize = headerPage.get_maxKeySize();
+		scan.bfile = this;
+		scan.leafPage = new BTLeafPage(scan.curRid.pageNo, scan.keyType);
+		return scan;
+	}
+
+	/**
+	 * create a batch scan with given keys, for an index with integer keys.
+	 * The cases for lo_key and hi_key are the same as for new_scan(); the
+	 * entries come in batches of primitive keys and rids instead of one
+	 * KeyDataEntry at a time.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                the keys are not integer keys
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTBatchScan new_batch_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		settle();
+		if (headerPage.get_keyType() != AttrType.attrInteger)
+			throw new KeyNotMatchException(null, "batch scans need integer keys");
+		lo_key = toPageKey(lo_key);
+		hi_key = toPageKey(hi_key);
+
+		BTBatchScan scan = new BTBatchScan();
+		scan.bfile = this;
+		scan.hi = (hi_key == null) ? Long.MAX_VALUE : ((IntegerKey) hi_key)
+				.getKey();
+		if (filter != null && lo_key != null && hi_key != null
+				&& BT.keyCompare(lo_key, hi_key) == 0
+				&& !filter.mightContain(lo_key)) {
+			// an equality probe of a key that is definitely not there
+			scan.leafPage = null;
+			return scan;
+		}
+
+		if (compressed) {
+			scan.startkey = lo_key;
+			scan.nextPage = findLeaf(lo_key);
+			return scan;
+		}
+
+		RID rid = new RID();
+		if (headerPage.get_rootId().pid != INVALID_PAGE)
+			scan.leafPage = findRunStart(lo_key, rid);
+		scan.slot = rid.slotNo;
+		return scan;
+	}
+
+	/**
+	 * Batched point lookup, e.g. for an IN-list or an index nested loop join.
+	 * The probe keys are sorted and looked up in key order, sharing the
+	 * descent between neighbouring keys: the pages of the current root to
+	 * leaf path stay pinned, and a key only climbs up to the lowest index page
+	 * whose key range still contains it (and does not descend at all if it
+	 * falls in the current leaf).
+	 *
+	 * @param keys
+	 *            the keys to look up. Input parameter.
+	 * @return for every key, in input order, the rids of all entries with
+	 *         that key (an empty array if there is none)
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public RID[][] multiGet(KeyClass[] keys) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		final KeyClass[] pageKeys = new KeyClass[keys.length];
+		Integer[] order = new Integer[keys.length];
+		RID[][] results = new RID[keys.length][];
+
+		if (compressed || writeOptimized && unsettled) {
+			// the shared descent reads leaf slots (and not the message
+			// buffers): look the keys up one by one
+			for (int i = 0; i < keys.length; i++)
+				results[i] = lookup(keys[i]);
+			return results;
 		}
 
-		// ASSERTIONS:
-		// - curkey, curRid: contain the first record on the
-		// current leaf page (curkey its key, cur
-		// - pageLeaf, pageno valid and pinned
-
-		if (lo_key == null) {
-			return pageLeaf;
-			// note that pageno/pageLeaf is still pinned;
-			// scan will unpin it when done
+		for (int i = 0; i < keys.length; i++) {
+			pageKeys[i] = toPageKey(keys[i]);
+			order[i] = i;
 		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return keyOrder.compare(pageKeys[a], pageKeys[b]);
+			}
+		});
+
+		// pinned root to leaf path; the key range of path[i] ends at
+		// boundPage[i] slot boundSlot[i] (inclusive), null for no end
+		List<BTIndexPage> path = new ArrayList<BTIndexPage>();
+		List<BTIndexPage> boundPage = new ArrayList<BTIndexPage>();
+		List<Integer> boundSlot = new ArrayList<Integer>();
+		BTLeafPage leaf = null;
+
+		for (int n = 0; n < order.length; n++) {
+			int i = order[n];
+			KeyClass key = pageKeys[i];
+
+			if (n > 0 && keyOrder.compare(key, pageKeys[order[n - 1]]) == 0) {
+				results[i] = results[order[n - 1]];
+				continue;
+			}
+			if (filter != null && !filter.mightContain(key)) {
+				results[i] = new RID[0];
+				continue;
+			}
+			NormalizedKey probe = NormalizedKey.of(key);
+			if (probe == null || headerPage.get_rootId().pid == INVALID_PAGE) {
+				results[i] = lookup(key);
+				continue;
+			}
 
-		while (BT.keyCompare(curEntry.key, lo_key) < 0) {
-			curEntry = pageLeaf.getNext(startrid);
-			while (curEntry == null) { // have to go right
-				nextpageno = pageLeaf.getNextPage();
-				unpinPage(pageno);
+			// all keys after the current position are >= key, so the leaf is
+			// only left if key is past its last entry
+			if (leaf != null
+					&& (leaf.getSlotCnt() == 0 || probe.compareSlot(leaf,
+							leaf.getSlotCnt() - 1) < 0)) {
+				unpinPage(leaf.getCurPage());
+				leaf = null;
+			}
 
-				if (nextpageno.pid == INVALID_PAGE) {
-					return null;
+			if (leaf == null) {
+				// climb up to the lowest index page that still covers key
+				while (!path.isEmpty()) {
+					int top = path.size() - 1;
+					if (boundPage.get(top) == null
+							|| probe.compareSlot(boundPage.get(top),
+									boundSlot.get(top)) >= 0)
+						break;
+					unpinPage(path.remove(top).getCurPage());
+					boundPage.remove(top);
+					boundSlot.remove(top);
 				}
 
-				pageno = nextpageno;
-				pageLeaf = new BTLeafPage(pinPage(pageno),
-						headerPage.get_keyType());
+				// and descend from there, as findRunStart does
+				while (leaf == null) {
+					PageId pageno;
+					BTIndexPage bpage = null;
+					int bslot = 0;
+					if (path.isEmpty()) {
+						pageno = headerPage.get_rootId();
+					} else {
+						int top = path.size() - 1;
+						BTIndexPage parent = path.get(top);
+						int slot = probe.lowerBound(parent);
+						pageno = (slot == 0) ? parent.getPrevPage() : new PageId(
+								NormalizedKey.childAt(parent, slot - 1));
+						if (slot < parent.getSlotCnt()) {
+							bpage = parent;
+							bslot = slot;
+						} else {
+							bpage = boundPage.get(top);
+							bslot = boundSlot.get(top);
+						}
+					}
 
-				curEntry = pageLeaf.getFirst(startrid);
+					Page page = pinPage(pageno);
+					if (new BTSortedPage(page, headerPage.get_keyType())
+							.getType() == NodeType.INDEX) {
+						path.add(new BTIndexPage(page, headerPage.get_keyType()));
+						boundPage.add(bpage);
+						boundSlot.add(bslot);
+					} else {
+						leaf = new BTLeafPage(page, headerPage.get_keyType());
+					}
+				}
+			}
+
+			// collect the run of entries equal to key, going right as needed
+			List<RID> rids = new ArrayList<RID>();
+			int slot = probe.lowerBound(leaf);
+			while (leaf != null) {
+				if (slot == leaf.getSlotCnt()) {
+					PageId nextpageno = leaf.getNextPage();
+					unpinPage(leaf.getCurPage());
+					leaf = null;
+					if (nextpageno.pid != INVALID_PAGE) {
+						leaf = new BTLeafPage(pinPage(nextpageno),
+								headerPage.get_keyType());
+						slot = 0;
+					}
+				} else if (probe.compareSlot(leaf, slot) == 0) {
+					KeyDataEntry entry = leaf.getCurrent(new RID(leaf
+							.getCurPage(), slot));
+					rids.add(((LeafData) entry.data).getData());
+					slot++;
+				} else {
+					break;
+				}
 			}
+			results[i] = rids.toArray(new RID[rids.size()]);
 		}
 
-		return pageLeaf;
+		if (leaf != null)
+			unpinPage(leaf.getCurPage());
+		for (BTIndexPage pageIndex : path)
+			unpinPage(pageIndex.getCurPage());
+
+		return results;
+	}
+
+	private static boolean containsRid(RID[] rids, RID rid) {
+		for (RID r : rids)
+			if (r.pageNo.pid == rid.pageNo.pid && r.slotNo == rid.slotNo)
+				return true;
+		return false;
 	}
 
 	/*
-	 * Status BTreeFile::NaiveDelete (const void *key, const RID rid)
-	 * 
-	 * Remove specified data entry (<key, rid>) from an index.
-	 * 
-	 * We don't do merging or redistribution, but do allow duplicates.
-	 * 
-	 * Page containing first occurrence of key `key' is found for us by
-	 * findRunStart. We then iterate for (just a few) pages, if necesary, to
-	 * find the one containing <key,rid>, which we then delete via
-	 * BTLeafPage::delUserRid.
+	 * single point lookup with a scan, for keys multiGet() can not compare in
+	 * place.
 	 */
+	private RID[] lookup(KeyClass key) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		if (filter != null && !filter.mightContain(toPageKey(key)))
+			return new RID[0];
+		List<RID> rids = new ArrayList<RID>();
+		boolean bypass = bypassBuffers;
+		bypassBuffers = true; // read the leaves as they are
+		try {
+			BTScanIterator it = new_scan_iterator(key, key);
+			while (it.hasNext())
+				rids.add(((LeafData) it.next().data).getData());
+		} finally {
+			bypassBuffers = bypass;
+		}
+		if (writeOptimized && unsettled && !bypass)
+			applyPathMessages(((IntegerKey) key).getKey(), rids);
+		return rids.toArray(new RID[rids.size()]);
+	}
 
-	private boolean NaiveDelete(KeyClass key, RID rid)
-			throws LeafDeleteException, KeyNotMatchException, PinPageException,
-			ConstructPageException, IOException, UnpinPageException,
-			PinPageException, IndexSearchException, IteratorException {// This function deletes a record including duplicates or 
-			//it deletes a range of records. It has a return type boolean but it doesn't matter what it returns as we need this function just to delete the record. 
-            boolean check = true;/* A boolean variable to check if the leafPage where we are searching 
-			for the record is null or not */
-			BTLeafPage leafPage = findRunStart(key,new RID());/* Get the leafPage with the first
-			occurence of the key for which the record is to be deleted.
-			FindRunStart has a return value of leafPage which is an object of BTLeaf class
-			 */
-
-			while (check == true){/* Checks if there are more pages available to check for the record to be deleted*/
-				if (leafPage == null){/* If we have checked all the leafPages having the same key as the record to be deleted then leafPage reaches null */
-					check = false;/* Make check as false to come out of the loop*/
-					System.out.println("No Instance of Record "+key+" was found");
+	/*
+	 * Apply the buffered messages for a key to its rids in the leaves,
+	 * oldest first.
+	 */
+	private void applyPathMessages(int key, List<RID> rids) throws IOException,
+			KeyNotMatchException, PinPageException, UnpinPageException {
+		for (BTMessageBuffer level : pathMessages(key))
+			for (int i = 0; i < level.count; i++) {
+				if (level.ops[i] == BTMessageBuffer.INSERT) {
+					rids.add(new RID(new PageId(level.pids[i]), level.slots[i]));
+					continue;
 				}
-				else {
-					pinPage(leafPage.getCurPage());// Pin the page as we are using it to check for the record to be deleted
-					check = leafPage.delEntry(new KeyDataEntry(key, rid));// Checks if the record is present on the given leafPage and if it is present 
-					//delEntry deletes it and returns true else it will return false as the recordis not presnt
-
-					if (check == true){
-						unpinPage(leafPage.getCurPage(),true);// unpin the leafPage as the recorded is deleted and now the leafPage is not needed 
-						System.out.println("Instance of Record "+key+" deleted successfully");
-					}
-					else {
-						unpinPage(leafPage.getCurPage(),false);// unpin the leafpage as there was no change no need to set dirty bit
-						System.out.println("All Instances of Record "+key+" if existed are now deleted");
+				for (int j = 0; j < rids.size(); j++)
+					if (rids.get(j).pageNo.pid == level.pids[i]
+							&& rids.get(j).slotNo == level.slots[i]) {
+						rids.remove(j);
+						break;
 					}
-						
-				}
 			}
-			
-			return true;
+	}
 
+	/**
+	 * Start a reader: scans and lookups at the returned timestamp see the
+	 * index as it is now, while inserts and deletes go on. End it with
+	 * endRead(), so the versions it needs can be vacuumed.
+	 *
+	 * @return the read timestamp
+	 */
+	public long beginRead() {
+		return versions.beginRead();
 	}
+
 	/**
-	 * create a scan with given keys Cases: (1) lo_key = null, hi_key = null
-	 * scan the whole index (2) lo_key = null, hi_key!= null range scan from min
-	 * to the hi_key (3) lo_key!= null, hi_key = null range scan from the lo_key
-	 * to max (4) lo_key!= null, hi_key!= null, lo_key = hi_key exact match (
-	 * might not unique) (5) lo_key!= null, hi_key!= null, lo_key < hi_key range
-	 * scan from lo_key to hi_key
+	 * End a reader started by beginRead() and purge the versions no other
+	 * reader needs.
+	 *
+	 * @param readTs
+	 *            the read timestamp
+	 */
+	public void endRead(long readTs) {
+		versions.endRead(readTs);
+	}
+
+	/**
+	 * Purge the versions older than the oldest active reader. endRead()
+	 * already does this; it is only needed to reclaim memory early.
+	 *
+	 * @return the number of versions purged
+	 */
+	public int vacuum() {
+		return versions.vacuum();
+	}
+
+	/**
+	 * create a scan with given keys (see new_scan()) that returns the
+	 * entries as they were at the read timestamp.
 	 *
 	 * @param lo_key
 	 *            the key where we begin scanning. Input parameter.
 	 * @param hi_key
 	 *            the key where we stop scanning. Input parameter.
+	 * @param readTs
+	 *            a timestamp from beginRead(). Input parameter.
 	 * @exception IOException
 	 *                error from the lower layer
 	 * @exception KeyNotMatchException
@@ -940,31 +3523,344 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @exception UnpinPageException
 	 *                error when unpin a page
 	 */
-	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key)
+	public BTVersionedScan new_scan(KeyClass lo_key, KeyClass hi_key,
+			long readTs) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		BTVersionedScan scan = new BTVersionedScan();
+		scan.versions = versions;
+		scan.readTs = readTs;
+		scan.ghosts = versions.ghosts(toPageKey(lo_key), toPageKey(hi_key),
+				readTs);
+		scan.scan = new_scan(lo_key, hi_key);
+		return scan;
+	}
+
+	/**
+	 * Find the rids of a key as they were at the read timestamp.
+	 *
+	 * @param key
+	 *            the key to look up. Input parameter.
+	 * @param readTs
+	 *            a timestamp from beginRead(). Input parameter.
+	 * @return the rids, in index order
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public RID[] lookup(KeyClass key, long readTs) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		List<RID> rids = new ArrayList<RID>();
+		BTVersionedScan scan = new_scan(key, key, readTs);
+		try {
+			for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan
+					.get_next())
+				rids.add(((LeafData) entry.data).getData());
+			scan.DestroyBTreeFileScan();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+		return rids.toArray(new RID[rids.size()]);
+	}
+
+	/**
+	 * create a scan with given keys (see new_scan()) wrapped in an
+	 * AutoCloseable iterator, which unpins the scan's leaf page on close()
+	 * and as soon as a pushed down limit or takeWhile condition ends it.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTScanIterator new_scan_iterator(KeyClass lo_key, KeyClass hi_key)
 			throws IOException, KeyNotMatchException, IteratorException,
-			ConstructPageException, PinPageException, UnpinPageException
+			ConstructPageException, PinPageException, UnpinPageException {
+		return new BTScanIterator(new_scan(lo_key, hi_key));
+	}
 
-	{
-		BTFileScan scan = new BTFileScan();
+	/**
+	 * create a scan with given keys (see new_scan()) as a sequential Stream.
+	 * The stream must be closed (e.g. try-with-resources) if it is not
+	 * consumed to the end; limit() and takeWhile() on the stream stop the
+	 * leaf walk, and closing releases the pinned page. Use
+	 * new_scan_iterator() to push the limit down so the page is released
+	 * without waiting for close().
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public Stream<KeyDataEntry> new_scan_stream(KeyClass lo_key,
+			KeyClass hi_key) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		return new_scan_iterator(lo_key, hi_key).stream();
+	}
+
+	/**
+	 * create a descending scan with given keys. The cases for lo_key and
+	 * hi_key are the same as for new_scan(), but entries are returned from
+	 * hi_key down to lo_key by following the prevPage links of the leaves.
+	 *
+	 * @param lo_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception IndexSearchException
+	 *                error in search in index pages
+	 */
+	public BTReverseFileScan new_descending_scan(KeyClass lo_key,
+			KeyClass hi_key) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException, IndexSearchException {
+		if (compressed)
+			throw new IteratorException(null,
+					"descending scans need plain leaves");
+
+		BTReverseFileScan scan = new BTReverseFileScan();
 		if (headerPage.get_rootId().pid == INVALID_PAGE) {
 			scan.leafPage = null;
 			return scan;
 		}
 
+		lo_key = toPageKey(lo_key);
+		hi_key = toPageKey(hi_key);
+
 		scan.treeFilename = dbname;
-		scan.endkey = hi_key;
+		scan.startkey = lo_key;
+		scan.startprobe = (lo_key == null) ? null : NormalizedKey.of(lo_key);
 		scan.didfirst = false;
-		scan.deletedcurrent = false;
 		scan.curRid = new RID();
 		scan.keyType = headerPage.get_keyType();
 		scan.maxKeysize = headerPage.get_maxKeySize();
 		scan.bfile = this;
 
 		// this sets up scan at the starting position, ready for iteration
-		scan.leafPage = findRunStart(lo_key, scan.curRid);
+		scan.leafPage = findRunEnd(hi_key, scan.curRid);
 		return scan;
 	}
 
+	/**
+	 * create a parallel scan with given keys. The cases for lo_key and hi_key
+	 * are the same as for new_scan(). The range is split into balanced
+	 * sub-ranges at the separator keys of the upper index levels, and the
+	 * sub-ranges are scanned concurrently on the fork-join pool that runs the
+	 * stream (the common pool, or the pool the terminal operation is invoked
+	 * from), following the locking rule in the class comment. The index must
+	 * not be modified while the stream is consumed.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @return a parallel, ordered stream of the entries in the range
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public Stream<KeyDataEntry> parallel_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		settle();
+		if (compressed)
+			// the sub-range scans read leaf slots: split a sequential scan
+			return new_scan_stream(lo_key, hi_key).parallel();
+
+		lo_key = toPageKey(lo_key);
+		hi_key = toPageKey(hi_key);
+
+		List<KeyClass> separators;
+		synchronized (SystemDefs.JavabaseBM) {
+			separators = findSeparators(lo_key, hi_key,
+					4 * ForkJoinPool.getCommonPoolParallelism());
+		}
+
+		return StreamSupport.stream(new BTScanSpliterator(this,
+				headerPage.get_keyType(), lo_key, separators, hi_key, true),
+				true);
+	}
+
+	/*
+	 * Collect the separator keys strictly inside (lo_key, hi_key] from the
+	 * index levels, level by level from the root, until at least `wanted'
+	 * keys were found or the next level is the leaf level. The keys come back
+	 * sorted, without duplicates.
+	 */
+	private List<KeyClass> findSeparators(KeyClass lo_key, KeyClass hi_key,
+			int wanted) throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		List<KeyClass> separators = new ArrayList<KeyClass>();
+		List<PageId> level = new ArrayList<PageId>();
+
+		if (headerPage.get_rootId().pid != INVALID_PAGE)
+			level.add(headerPage.get_rootId());
+
+		while (!level.isEmpty() && separators.size() < wanted) {
+			List<PageId> children = new ArrayList<PageId>();
+
+			for (PageId pageno : level) {
+				Page page = pinPage(pageno);
+				BTSortedPage sortPage = new BTSortedPage(page,
+						headerPage.get_keyType());
+				if (sortPage.getType() != NodeType.INDEX) {
+					unpinPage(pageno);
+					break; // the whole level is leaves
+				}
+
+				BTIndexPage pageIndex = new BTIndexPage(page,
+						headerPage.get_keyType());
+				RID rid = new RID();
+				PageId child = pageIndex.getPrevPage(); // keys < first key
+				for (KeyDataEntry entry = pageIndex.getFirst(rid); entry != null; entry = pageIndex
+						.getNext(rid)) {
+					if (lo_key == null || BT.keyCompare(entry.key, lo_key) > 0)
+						children.add(child);
+					if (hi_key != null && BT.keyCompare(entry.key, hi_key) > 0) {
+						child = null;
+						break;
+					}
+					if (lo_key == null || BT.keyCompare(entry.key, lo_key) > 0)
+						separators.add(entry.key);
+					child = ((IndexData) entry.data).getData();
+				}
+				if (child != null)
+					children.add(child);
+				unpinPage(pageno);
+			}
+
+			level = children;
+		}
+
+		Collections.sort(separators, keyOrder);
+		for (int i = separators.size() - 1; i > 0; i--) {
+			if (BT.keyCompare(separators.get(i), separators.get(i - 1)) == 0)
+				separators.remove(i);
+		}
+		return separators;
+	}
+
+	/**
+	 * create a scan over all entries of a composite index whose leading
+	 * columns equal the given prefix, e.g. all (tenant_id, timestamp) keys of
+	 * one tenant. The entries are contiguous in the leaf chain, so this costs
+	 * one descent followed by a forward leaf walk.
+	 *
+	 * @param prefix
+	 *            the leading columns to match. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                the index is not a composite (string) index
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileScan new_prefix_scan(CompositeKey prefix)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		return new_scan(prefix, prefix.prefixEnd());
+	}
+
+	/*
+	 * Child of an index page to follow for key: the child left of the first
+	 * separator greater than key, found by binary search over the sorted
+	 * slots. Falls back to BTIndexPage.getPageNoByKey() if the key has no
+	 * normalized form.
+	 */
+	private PageId childForKey(BTIndexPage indexPage, KeyClass key,
+			NormalizedKey probe) throws IOException, IndexSearchException {
+		if (probe == null)
+			return indexPage.getPageNoByKey(key);
+
+		int slot = probe.upperBound(indexPage);
+		if (slot == 0)
+			return indexPage.getPrevPage();
+		return new PageId(NormalizedKey.childAt(indexPage, slot - 1));
+	}
+
+	/*
+	 * Map a key given by the caller to the key stored in the pages: composite
+	 * keys are stored in their StringKey form. Throws KeyNotMatchException if
+	 * the key does not match the key type recorded in the header page. A null
+	 * key is passed through for open ended scans.
+	 */
+	KeyClass toPageKey(KeyClass key) throws KeyNotMatchException,
+			IOException {
+		if (key == null)
+			return null;
+		if (key instanceof CompositeKey)
+			key = ((CompositeKey) key).toStringKey();
+
+		if ((key instanceof IntegerKey && headerPage.get_keyType() == AttrType.attrInteger)
+				|| (key instanceof StringKey && headerPage.get_keyType() == AttrType.attrString))
+			return key;
+		throw new KeyNotMatchException(null, "key types do not match");
+	}
+
 	void trace_children(PageId id) throws IOException, IteratorException,
 			ConstructPageException, PinPageException, UnpinPageException {
 
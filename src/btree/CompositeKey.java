@@ -0,0 +1,201 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * CompositeKey is a multi-attribute key made of IntegerKey and StringKey
+ * columns, e.g. (tenant_id, timestamp). The columns are kept in a
+ * byte-comparable (memcmp) encoding, so two composite keys compare as
+ * unsigned byte arrays and a key always sorts right after its own
+ * leading-column prefix.
+ *
+ * Encoding of every column is a one byte tag followed by
+ * <ul>
+ * <li>integer: 4 bytes big endian with the sign bit flipped</li>
+ * <li>string: UTF-8 bytes, 0x00 escaped as 0x00 0xFF, terminated by 0x00
+ * 0x01</li>
+ * </ul>
+ *
+ * The B+ tree pages only know integer and string keys, so a composite index
+ * is created with AttrType.attrString and every encoded byte is stored as two
+ * order preserving characters (see toStringKey()). The maximum key size given
+ * to the BTreeFile constructor must therefore be at least
+ * 2 * encoded length + 2.
+ */
+public class CompositeKey extends KeyClass {
+
+	private final static byte INT_TAG = 0x01;
+	private final static byte STRING_TAG = 0x02;
+
+	/** first character of the order preserving nibble alphabet */
+	private final static char NIBBLE_BASE = 'A';
+
+	/** sorts after every character of the nibble alphabet */
+	private final static char PREFIX_END = (char) (NIBBLE_BASE + 16);
+
+	private byte[] key;
+
+	/**
+	 * Build a composite key from its columns.
+	 *
+	 * @param columns
+	 *            the columns in significance order, each one an IntegerKey or
+	 *            a StringKey. A prefix of the columns of an index may be given
+	 *            to build a prefix for new_prefix_scan().
+	 * @exception KeyNotMatchException
+	 *                a column is neither integer key nor string key
+	 */
+	public CompositeKey(KeyClass[] columns) throws KeyNotMatchException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		for (int i = 0; i < columns.length; i++) {
+			if (columns[i] instanceof IntegerKey) {
+				int v = ((IntegerKey) columns[i]).getKey().intValue() ^ 0x80000000;
+				out.write(INT_TAG);
+				out.write(v >>> 24);
+				out.write(v >>> 16);
+				out.write(v >>> 8);
+				out.write(v);
+			} else if (columns[i] instanceof StringKey) {
+				byte[] s;
+				try {
+					s = ((StringKey) columns[i]).getKey().getBytes("UTF-8");
+				} catch (UnsupportedEncodingException e) {
+					throw new KeyNotMatchException(e, "");
+				}
+				out.write(STRING_TAG);
+				for (int j = 0; j < s.length; j++) {
+					out.write(s[j]);
+					if (s[j] == 0)
+						out.write(0xFF);
+				}
+				out.write(0x00);
+				out.write(0x01);
+			} else {
+				throw new KeyNotMatchException(null, "key types do not match");
+			}
+		}
+
+		key = out.toByteArray();
+	}
+
+	/**
+	 * Build a composite key from a two integer column pair, the common
+	 * (tenant_id, timestamp) case.
+	 */
+	public CompositeKey(int first, int second) throws KeyNotMatchException {
+		this(new KeyClass[] { new IntegerKey(first), new IntegerKey(second) });
+	}
+
+	private CompositeKey(byte[] encoded) {
+		key = encoded;
+	}
+
+	/**
+	 * Recover a composite key from the StringKey stored in a composite index,
+	 * e.g. the key of a KeyDataEntry returned by BTFileScan.get_next().
+	 *
+	 * @param stored
+	 *            a key written by toStringKey()
+	 * @return the composite key
+	 * @exception KeyNotMatchException
+	 *                the key was not written by toStringKey()
+	 */
+	public static CompositeKey valueOf(StringKey stored)
+			throws KeyNotMatchException {
+		String s = stored.getKey();
+		if (s.length() % 2 != 0)
+			throw new KeyNotMatchException(null, "not a composite key");
+
+		byte[] encoded = new byte[s.length() / 2];
+		for (int i = 0; i < encoded.length; i++) {
+			int hi = s.charAt(2 * i) - NIBBLE_BASE;
+			int lo = s.charAt(2 * i + 1) - NIBBLE_BASE;
+			if (hi < 0 || hi > 15 || lo < 0 || lo > 15)
+				throw new KeyNotMatchException(null, "not a composite key");
+			encoded[i] = (byte) ((hi << 4) | lo);
+		}
+		return new CompositeKey(encoded);
+	}
+
+	/**
+	 * @return the byte-comparable encoding of the key. Two keys compare as
+	 *         java.util.Arrays.compareUnsigned() of their encodings.
+	 */
+	public byte[] getKey() {
+		return key.clone();
+	}
+
+	/**
+	 * Decode the columns of the key.
+	 *
+	 * @return the columns as IntegerKey and StringKey objects
+	 */
+	public KeyClass[] getColumns() {
+		List<KeyClass> columns = new ArrayList<KeyClass>();
+		int i = 0;
+
+		while (i < key.length) {
+			if (key[i] == INT_TAG) {
+				int v = ((key[i + 1] & 0xFF) << 24) | ((key[i + 2] & 0xFF) << 16)
+						| ((key[i + 3] & 0xFF) << 8) | (key[i + 4] & 0xFF);
+				columns.add(new IntegerKey(v ^ 0x80000000));
+				i += 5;
+			} else {
+				ByteArrayOutputStream s = new ByteArrayOutputStream();
+				i++;
+				while (!(key[i] == 0 && key[i + 1] == 0x01)) {
+					s.write(key[i]);
+					i += (key[i] == 0) ? 2 : 1;
+				}
+				i += 2;
+				try {
+					columns.add(new StringKey(s.toString("UTF-8")));
+				} catch (UnsupportedEncodingException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+		return columns.toArray(new KeyClass[columns.size()]);
+	}
+
+	/**
+	 * Compare two composite keys with a single unsigned byte compare.
+	 */
+	public int compareTo(CompositeKey other) {
+		return Arrays.compareUnsigned(key, other.key);
+	}
+
+	/**
+	 * Map the encoding to the StringKey that is stored in the B+ tree pages.
+	 * Every byte becomes two characters in 'A'..'P', so String.compareTo() on
+	 * the stored keys orders them exactly like the byte encodings.
+	 */
+	StringKey toStringKey() {
+		return new StringKey(nibbles(0));
+	}
+
+	/**
+	 * @return the smallest stored key that is greater than every stored key
+	 *         starting with this prefix. Used as hi_key of prefix scans.
+	 */
+	StringKey prefixEnd() {
+		return new StringKey(nibbles(1));
+	}
+
+	private String nibbles(int extra) {
+		char[] c = new char[2 * key.length + extra];
+		for (int i = 0; i < key.length; i++) {
+			c[2 * i] = (char) (NIBBLE_BASE + ((key[i] >> 4) & 0x0F));
+			c[2 * i + 1] = (char) (NIBBLE_BASE + (key[i] & 0x0F));
+		}
+		if (extra > 0)
+			c[c.length - 1] = PREFIX_END;
+		return new String(c);
+	}
+
+	public String toString() {
+		return Arrays.toString(getColumns());
+	}
+}
@@ -0,0 +1,13 @@
+package btree;
+
+/**
+ * The format of the leaf pages of a BTreeFile, chosen when it is created.
+ */
+public class LeafFormat {
+	/** slotted HFPage records, for any key type */
+	public static final int PLAIN = 0;
+	/** bit-packed columns of integer keys and rids, see BTCompressedLeaf */
+	public static final int COMPRESSED = 1;
+	/** unpacked 32 bit columns of integer keys and rids, see BTCompressedLeaf */
+	public static final int PAX = 2;
+}
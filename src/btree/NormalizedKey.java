@@ -0,0 +1,144 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import heap.*;
+
+/**
+ * NormalizedKey is a search key in the order preserving byte form the keys
+ * already have inside BTSortedPage records, so a key can be compared against
+ * a slot in place, without building a KeyDataEntry and without the
+ * instanceof dispatch of BT.keyCompare().
+ *
+ * <ul>
+ * <li>IntegerKey records are 4 bytes big endian two's complement, i.e. the
+ * sign-flipped memcmp form up to the sign bit. They are compared as one int
+ * read straight from the page.</li>
+ * <li>StringKey records are a 2 byte length followed by modified UTF-8,
+ * which orders like String.compareTo() for strings without '\0'. They are
+ * compared with Arrays.compareUnsigned().</li>
+ * </ul>
+ *
+ * Since the slot directory of a sorted page is kept in key order, the
+ * position of a key can be found with a binary search over the slots.
+ */
+class NormalizedKey {
+
+	private final boolean intKey;
+	private final int intValue;
+	private final byte[] bytes;
+
+	private NormalizedKey(int value) {
+		intKey = true;
+		intValue = value;
+		bytes = null;
+	}
+
+	private NormalizedKey(byte[] utf) {
+		intKey = false;
+		intValue = 0;
+		bytes = utf;
+	}
+
+	/**
+	 * @param key
+	 *            an IntegerKey or StringKey
+	 * @return the normalized key, or null if the key has no byte-comparable
+	 *         form (a string with '\0'), in which case the caller falls back
+	 *         to BT.keyCompare().
+	 */
+	static NormalizedKey of(KeyClass key) throws KeyNotMatchException {
+		if (key instanceof IntegerKey)
+			return new NormalizedKey(((IntegerKey) key).getKey().intValue());
+
+		if (key instanceof StringKey) {
+			String s = ((StringKey) key).getKey();
+			if (s.indexOf('\0') >= 0)
+				return null;
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				new DataOutputStream(out).writeUTF(s);
+				byte[] utf = out.toByteArray();
+				return new NormalizedKey(Arrays.copyOfRange(utf, 2, utf.length));
+			} catch (IOException e) {
+				throw new KeyNotMatchException(e, "");
+			}
+		}
+		throw new KeyNotMatchException(null, "key types do not match");
+	}
+
+	/**
+	 * Compare the key of the record at the given slot with this key.
+	 *
+	 * @return negative, zero or positive if the slot key is less than, equal
+	 *         to or greater than this key
+	 */
+	int compareSlot(HFPage page, int slot) throws IOException {
+		byte[] data = page.getpage();
+		int off = page.getSlotOffset(slot);
+
+		if (intKey)
+			return Integer.compare(intAt(page, slot), intValue);
+		int len = ((data[off] & 0xFF) << 8) | (data[off + 1] & 0xFF);
+		return Arrays.compareUnsigned(data, off + 2, off + 2 + len, bytes, 0,
+				bytes.length);
+	}
+
+	/**
+	 * @return the number of slots of the sorted page whose key is less than
+	 *         this key, i.e. the slot of the first key &gt;= this key.
+	 */
+	int lowerBound(HFPage page) throws IOException {
+		int lo = 0;
+		int hi = page.getSlotCnt();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compareSlot(page, mid) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the number of slots of the sorted page whose key is less than
+	 *         or equal to this key, i.e. the slot of the first key &gt; this
+	 *         key.
+	 */
+	int upperBound(HFPage page) throws IOException {
+		int lo = 0;
+		int hi = page.getSlotCnt();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compareSlot(page, mid) <= 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the integer key of the record at the given slot, read in place
+	 *         without building a KeyDataEntry
+	 */
+	static int intAt(HFPage page, int slot) throws IOException {
+		byte[] data = page.getpage();
+		int off = page.getSlotOffset(slot);
+		return ((data[off] & 0xFF) << 24) | ((data[off + 1] & 0xFF) << 16)
+				| ((data[off + 2] & 0xFF) << 8) | (data[off + 3] & 0xFF);
+	}
+
+	/**
+	 * @return the child page id stored in the record at the given slot of an
+	 *         index page. It is the last 4 bytes of the record.
+	 */
+	static int childAt(HFPage page, int slot) throws IOException {
+		byte[] data = page.getpage();
+		int off = page.getSlotOffset(slot) + page.getSlotLength(slot) - 4;
+		return ((data[off] & 0xFF) << 24) | ((data[off + 1] & 0xFF) << 16)
+				| ((data[off + 2] & 0xFF) << 8) | (data[off + 3] & 0xFF);
+	}
+}
@@ -0,0 +1,594 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import global.*;
+
+/**
+ * ShardedBTreeFile range-partitions the key space of an index over several
+ * BTreeFiles, the shards, so that the operations of different key ranges do
+ * not go through the same root and upper index pages. Shard i holds the
+ * keys from its lower bound up to the lower bound of shard i + 1; the first
+ * shard has no lower bound.
+ *
+ * Every shard has an executor thread of its own, and a shard's file is only
+ * used on that thread. insert(), Delete() and multiGet() route the keys to
+ * their shards; insertAll() and multiGet() hand the keys of every shard to
+ * its thread at once and wait for all of them. All shards live in the one
+ * database of SystemDefs, so a shard's thread uses its file under the
+ * locking rule of BTreeFile, and the threads of different shards take turns
+ * on the buffer manager.
+ *
+ * The shard files are named after the index, with the number of the shard
+ * appended ("name.0", "name.1", ...). The index's own file is a BTreeFile
+ * that maps the lower bound of every shard but the first to its number.
+ * splitHottest() splits the shard with the most operations since the last
+ * split at its median key.
+ */
+public class ShardedBTreeFile extends IndexFile {
+
+	/* a partition of the key space */
+	static class Shard {
+		final int number;
+		final KeyClass low; // inclusive, null for the first shard
+		final BTreeFile file;
+		final ExecutorService executor;
+		final AtomicLong ops = new AtomicLong(); // since the last split
+
+		Shard(int number, KeyClass low, BTreeFile file) {
+			this.number = number;
+			this.low = low;
+			this.file = file;
+			final String name = "shard-" + number;
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	private final String filename;
+	private final BTreeFile catalog; // shard lower bound -> shard number
+	private volatile List<Shard> shards; // by lower bound, replaced on a split
+	private int nextNumber;
+	private int keySize;
+
+	/**
+	 * if the index exists, open it; else create it with a shard for every
+	 * key range between the given split keys.
+	 *
+	 * @param filename
+	 *            file name of the index. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter.
+	 * @param leafFormat
+	 *            the leaf format of the shards. Input parameter.
+	 * @param splits
+	 *            the lower bounds of all shards but the first, in ascending
+	 *            order. Input parameter.
+	 * @exception ConstructPageException
+	 *                error when creating or opening a file
+	 */
+	public ShardedBTreeFile(String filename, int keytype, int keysize,
+			int delete_fashion, int leafFormat, KeyClass[] splits)
+			throws ConstructPageException {
+		this.filename = filename;
+		try {
+			boolean exists = SystemDefs.JavabaseDB.get_file_entry(filename) != null;
+			catalog = new BTreeFile(filename, keytype, keysize, delete_fashion);
+			if (!exists) {
+				new BTreeFile(shardName(0), keytype, keysize, delete_fashion,
+						leafFormat).close();
+				for (int i = 0; i < splits.length; i++) {
+					new BTreeFile(shardName(i + 1), keytype, keysize,
+							delete_fashion, leafFormat).close();
+					catalog.insert(splits[i], new RID(new PageId(i + 1), 0));
+				}
+			}
+			openShards();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "");
+		}
+	}
+
+	/**
+	 * open an existing index.
+	 *
+	 * @param filename
+	 *            file name of the index. Input parameter.
+	 * @exception ConstructPageException
+	 *                error when opening a file
+	 */
+	public ShardedBTreeFile(String filename) throws ConstructPageException {
+		this.filename = filename;
+		try {
+			catalog = new BTreeFile(filename);
+			openShards();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "");
+		}
+	}
+
+	private void openShards() throws Exception {
+		keySize = catalog.getHeaderPage().get_maxKeySize();
+		List<Shard> list = new ArrayList<Shard>();
+		list.add(new Shard(0, null, new BTreeFile(shardName(0))));
+		nextNumber = 1;
+		BTFileScan scan = catalog.new_scan(null, null);
+		for (KeyDataEntry e = scan.get_next(); e != null; e = scan.get_next()) {
+			int number = ((LeafData) e.data).getData().pageNo.pid;
+			list.add(new Shard(number, e.key, new BTreeFile(shardName(number))));
+			nextNumber = Math.max(nextNumber, number + 1);
+		}
+		scan.DestroyBTreeFileScan();
+		shards = Collections.unmodifiableList(list);
+	}
+
+	private String shardName(int number) {
+		return filename + "." + number;
+	}
+
+	/**
+	 * @return the number of shards
+	 */
+	public int getShardCount() {
+		return shards.size();
+	}
+
+	/**
+	 * @return the maximum size of a key
+	 */
+	public int keySize() {
+		return keySize;
+	}
+
+	/**
+	 * @return the lower bound of shard i, null for the first shard
+	 */
+	public KeyClass getShardLow(int i) {
+		return shards.get(i).low;
+	}
+
+	/*
+	 * The index in list of the shard of a key: the last one whose lower
+	 * bound is not above it.
+	 */
+	static int shardOf(List<Shard> list, KeyClass key)
+			throws KeyNotMatchException {
+		int lo = 1;
+		int hi = list.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (BT.keyCompare(list.get(mid).low, key) <= 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo - 1;
+	}
+
+	/*
+	 * Run a task on the thread of a shard and wait for it.
+	 */
+	static <T> T call(Shard shard, Callable<T> task) throws Exception {
+		try {
+			return submit(shard, task).get();
+		} catch (ExecutionException e) {
+			throw (Exception) e.getCause();
+		}
+	}
+
+	private static <T> Future<T> submit(Shard shard, final Callable<T> task) {
+		shard.ops.incrementAndGet();
+		return shard.executor.submit(new Callable<T>() {
+			public T call() throws Exception {
+				synchronized (SystemDefs.JavabaseBM) {
+					return task.call();
+				}
+			}
+		});
+	}
+
+	/**
+	 * insert record with the given key and rid into its shard
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @exception KeyNotMatchException
+	 *                key does not match the key type of the index
+	 * @exception InsertException
+	 *                error when inserting into the shard
+	 */
+	public void insert(final KeyClass key, final RID rid)
+			throws KeyNotMatchException, InsertException {
+		final Shard shard = shardOf(key);
+		try {
+			call(shard, new Callable<Void>() {
+				public Void call() throws Exception {
+					shard.file.insert(key, rid);
+					return null;
+				}
+			});
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "");
+		}
+	}
+
+	/**
+	 * insert records with the given keys and rids. The records of every
+	 * shard are inserted by its thread, all shards at the same time.
+	 *
+	 * @param keys
+	 *            the keys of the records. Input parameter.
+	 * @param rids
+	 *            the rids of the records, one for every key. Input
+	 *            parameter.
+	 * @exception KeyNotMatchException
+	 *                a key does not match the key type of the index
+	 * @exception InsertException
+	 *                error when inserting into a shard
+	 */
+	public void insertAll(final KeyClass[] keys, final RID[] rids)
+			throws KeyNotMatchException, InsertException {
+		List<Shard> list = shards;
+		List<List<Integer>> groups = group(list, keys);
+		List<Future<Void>> done = new ArrayList<Future<Void>>();
+		for (int s = 0; s < list.size(); s++) {
+			final List<Integer> group = groups.get(s);
+			final Shard shard = list.get(s);
+			if (group.isEmpty())
+				continue;
+			done.add(submit(shard, new Callable<Void>() {
+				public Void call() throws Exception {
+					for (int i : group)
+						shard.file.insert(keys[i], rids[i]);
+					return null;
+				}
+			}));
+		}
+		try {
+			for (Future<Void> f : done)
+				f.get();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "");
+		}
+	}
+
+	/**
+	 * delete leaf entry given its (key, rid) pair from its shard.
+	 *
+	 * @param key
+	 *            the key in pair (key, rid). Input Parameter.
+	 * @param rid
+	 *            the rid in pair (key, rid). Input Parameter.
+	 * @return true if deleted. false if no such record.
+	 * @exception KeyNotMatchException
+	 *                key does not match the key type of the index
+	 * @exception DeleteRecException
+	 *                error when deleting from the shard
+	 */
+	public boolean Delete(final KeyClass key, final RID rid)
+			throws KeyNotMatchException, DeleteRecException {
+		final Shard shard = shardOf(key);
+		try {
+			return call(shard, new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					return shard.file.Delete(key, rid);
+				}
+			});
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new DeleteRecException(e, "");
+		}
+	}
+
+	/**
+	 * Look up many keys at once (see BTreeFile.multiGet()). The keys of
+	 * every shard are looked up by its thread, all shards at the same time.
+	 *
+	 * @param keys
+	 *            the keys to look up. Input parameter.
+	 * @return for every key, in input order, the rids of all entries with
+	 *         that key (an empty array if there is none)
+	 * @exception KeyNotMatchException
+	 *                a key does not match the key type of the index
+	 * @exception IteratorException
+	 *                error when looking the keys up in a shard
+	 */
+	public RID[][] multiGet(KeyClass[] keys) throws KeyNotMatchException,
+			IteratorException {
+		List<Shard> list = shards;
+		List<List<Integer>> groups = group(list, keys);
+		List<Future<RID[][]>> found = new ArrayList<Future<RID[][]>>();
+		for (int s = 0; s < list.size(); s++) {
+			final Shard shard = list.get(s);
+			final KeyClass[] shardKeys = new KeyClass[groups.get(s).size()];
+			for (int i = 0; i < shardKeys.length; i++)
+				shardKeys[i] = keys[groups.get(s).get(i)];
+			found.add(submit(shard, new Callable<RID[][]>() {
+				public RID[][] call() throws Exception {
+					return shard.file.multiGet(shardKeys);
+				}
+			}));
+		}
+
+		RID[][] results = new RID[keys.length][];
+		try {
+			for (int s = 0; s < list.size(); s++) {
+				RID[][] rids = found.get(s).get();
+				for (int i = 0; i < rids.length; i++)
+					results[groups.get(s).get(i)] = rids[i];
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+		return results;
+	}
+
+	/*
+	 * The positions of the keys of every shard.
+	 */
+	private List<List<Integer>> group(List<Shard> list, KeyClass[] keys)
+			throws KeyNotMatchException {
+		List<List<Integer>> groups = new ArrayList<List<Integer>>();
+		for (int s = 0; s < list.size(); s++)
+			groups.add(new ArrayList<Integer>());
+		for (int i = 0; i < keys.length; i++)
+			groups.get(shardOf(list, pageKey(keys[i]))).add(i);
+		return groups;
+	}
+
+	private Shard shardOf(KeyClass key) throws KeyNotMatchException {
+		List<Shard> list = shards;
+		return list.get(shardOf(list, pageKey(key)));
+	}
+
+	private KeyClass pageKey(KeyClass key) throws KeyNotMatchException {
+		try {
+			return catalog.toPageKey(key);
+		} catch (IOException e) {
+			throw new KeyNotMatchException(e, "");
+		}
+	}
+
+	/**
+	 * create a scan with given keys over the shards that hold the range,
+	 * one after the other. The index must not be modified while the scan
+	 * runs, other than by its delete_current().
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception KeyNotMatchException
+	 *                key does not match the key type of the index
+	 */
+	public ShardedBTreeFileScan new_scan(KeyClass lo_key, KeyClass hi_key)
+			throws KeyNotMatchException {
+		ShardedBTreeFileScan scan = new ShardedBTreeFileScan();
+		scan.index = this;
+		scan.shards = shards;
+		scan.lo = pageKey(lo_key);
+		scan.hi = pageKey(hi_key);
+		scan.shard = (scan.lo == null) ? 0 : shardOf(scan.shards, scan.lo);
+		return scan;
+	}
+
+	/**
+	 * Split the shard with the most operations since the last split at its
+	 * median key, and start counting again.
+	 *
+	 * @return whether a shard was split; a shard whose entries all have the
+	 *         same key can not be
+	 * @exception InsertException
+	 *                error when moving the entries to the new shard
+	 */
+	public boolean splitHottest() throws InsertException {
+		List<Shard> list = shards;
+		int hottest = 0;
+		for (int s = 1; s < list.size(); s++)
+			if (list.get(s).ops.get() > list.get(hottest).ops.get())
+				hottest = s;
+		boolean split = splitShard(hottest);
+		for (Shard shard : shards)
+			shard.ops.set(0);
+		return split;
+	}
+
+	/**
+	 * Split a shard at its median key: the entries from that key on move to
+	 * a new shard. No other thread may use the index meanwhile.
+	 *
+	 * The entries are copied to the new shard first, then the new shard is
+	 * added to the catalog, and only then are they deleted from the old
+	 * shard. If the copy or the catalog insert fails, the new shard file is
+	 * destroyed and the index is as before. If a delete fails, the entries
+	 * left in the old shard are above its range, where no operation looks
+	 * for them and scans skip them.
+	 *
+	 * @param i
+	 *            the index of the shard. Input parameter.
+	 * @return whether the shard was split; a shard whose entries all have
+	 *         the same key can not be
+	 * @exception InsertException
+	 *                error when copying the entries to the new shard, adding
+	 *                it to the catalog or deleting them from the old shard
+	 */
+	public boolean splitShard(int i) throws InsertException {
+		List<Shard> list = shards;
+		final Shard shard = list.get(i);
+		final int number = nextNumber;
+		final Shard upper;
+		try {
+			upper = call(shard, new Callable<Shard>() {
+				public Shard call() throws Exception {
+					return copyUpperHalf(shard, number);
+				}
+			});
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "");
+		}
+		if (upper == null)
+			return false;
+		nextNumber++;
+
+		try {
+			synchronized (SystemDefs.JavabaseBM) {
+				catalog.insert(upper.low, new RID(new PageId(number), 0));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			discard(upper);
+			throw new InsertException(e, "");
+		}
+		List<Shard> split = new ArrayList<Shard>(list);
+		split.add(i + 1, upper);
+		shards = Collections.unmodifiableList(split);
+
+		try {
+			call(shard, new Callable<Void>() {
+				public Void call() throws Exception {
+					List<KeyDataEntry> moved = new ArrayList<KeyDataEntry>();
+					BTFileScan scan = shard.file.new_scan(upper.low, null);
+					for (KeyDataEntry e = scan.get_next(); e != null; e = scan
+							.get_next())
+						moved.add(e);
+					scan.DestroyBTreeFileScan();
+					for (KeyDataEntry e : moved)
+						shard.file.remove(e.key, ((LeafData) e.data).getData());
+					return null;
+				}
+			});
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "entries left above the shard");
+		}
+		return true;
+	}
+
+	/*
+	 * Copy the entries of a shard from its median key on into a new shard
+	 * file, unless all its entries have the same key (then null). The
+	 * median is the first key above the lowest one at or after the middle
+	 * entry. A file left over under the name of the new shard is replaced,
+	 * and the new file is destroyed again if the copy fails.
+	 */
+	private Shard copyUpperHalf(Shard shard, int number) throws Exception {
+		BTreeFile file = shard.file;
+		int count = 0;
+		BTFileScan scan = file.new_scan(null, null);
+		while (scan.get_next() != null)
+			count++;
+		scan.DestroyBTreeFileScan();
+
+		KeyClass first = null;
+		KeyClass median = null;
+		scan = file.new_scan(null, null);
+		int n = 0;
+		for (KeyDataEntry e = scan.get_next(); e != null; e = scan.get_next(), n++) {
+			if (first == null)
+				first = e.key;
+			if (n >= count / 2 && BT.keyCompare(e.key, first) > 0) {
+				median = e.key;
+				break;
+			}
+		}
+		scan.DestroyBTreeFileScan();
+		if (median == null)
+			return null;
+
+		String name = shardName(number);
+		if (SystemDefs.JavabaseDB.get_file_entry(name) != null)
+			new BTreeFile(name).destroyFile();
+		BTreeHeaderPage header = file.getHeaderPage();
+		BTreeFile upper = new BTreeFile(name, header.get_keyType(),
+				header.get_maxKeySize(), header.get_deleteFashion(),
+				file.getLeafFormat());
+		try {
+			scan = file.new_scan(median, null);
+			for (KeyDataEntry e = scan.get_next(); e != null; e = scan
+					.get_next())
+				upper.insert(e.key, ((LeafData) e.data).getData());
+			scan.DestroyBTreeFileScan();
+		} catch (Exception e) {
+			upper.destroyFile();
+			throw e;
+		}
+		return new Shard(number, median, upper);
+	}
+
+	/*
+	 * Stop the thread of a shard that did not make it into the index and
+	 * destroy its file.
+	 */
+	private void discard(Shard shard) {
+		shard.executor.shutdown();
+		try {
+			synchronized (SystemDefs.JavabaseBM) {
+				shard.file.destroyFile();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stop the shard threads and close the files of the index.
+	 *
+	 * @exception IOException
+	 *                error when closing a file
+	 */
+	public void close() throws IOException {
+		try {
+			synchronized (SystemDefs.JavabaseBM) {
+				for (Shard shard : shards) {
+					shard.executor.shutdown();
+					shard.file.close();
+				}
+				catalog.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Stop the shard threads and destroy the files of the index.
+	 *
+	 * @exception IOException
+	 *                error when destroying a file
+	 */
+	public void destroyFile() throws IOException {
+		try {
+			synchronized (SystemDefs.JavabaseBM) {
+				for (Shard shard : shards) {
+					shard.executor.shutdown();
+					shard.file.destroyFile();
+				}
+				catalog.destroyFile();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package btree;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import global.*;
+
+/**
+ * ShardedBTreeFileScan is a range scan over a ShardedBTreeFile: it scans the
+ * shards that hold the range one after the other, so the entries come in
+ * key order. A shard is read on its thread, BATCH entries at a time.
+ *
+ * delete_current() deletes the entry from its shard once the scan leaves
+ * the shard (or is destroyed), as the scan of the shard has moved on to the
+ * end of the batch meanwhile.
+ *
+ * Created by ShardedBTreeFile.new_scan().
+ */
+public class ShardedBTreeFileScan extends IndexFileScan {
+
+	static final int BATCH = 256;
+
+	ShardedBTreeFile index;
+	List<ShardedBTreeFile.Shard> shards; // of the index when the scan began
+	KeyClass lo; // null for no lower bound
+	KeyClass hi; // null for no upper bound
+	int shard; // the shard being scanned
+
+	private BTFileScan shardScan; // of the shard, null if not started
+	private boolean shardDone;
+	private final Deque<KeyDataEntry> batch = new ArrayDeque<KeyDataEntry>();
+	private final List<KeyDataEntry> deletes = new ArrayList<KeyDataEntry>(); // of the shard
+	private KeyDataEntry current; // returned last, null if none or deleted
+	private boolean done;
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return the next entry, or null if the scan is done
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			while (batch.isEmpty() && !done) {
+				if (!shardDone) {
+					fetch();
+					continue;
+				}
+				endShard();
+				if (shard + 1 < shards.size()
+						&& (hi == null || BT.keyCompare(shards.get(shard + 1).low,
+								hi) <= 0)) {
+					shard++;
+					shardDone = false;
+				} else
+					done = true;
+			}
+			return current = batch.poll();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/*
+	 * read the next batch of the shard on its thread. The shard ends at the
+	 * lower bound of the next one: entries at or above it were left behind
+	 * by a split whose deletes failed.
+	 */
+	private void fetch() throws Exception {
+		final ShardedBTreeFile.Shard s = shards.get(shard);
+		final KeyClass end = (shard + 1 < shards.size()) ? shards
+				.get(shard + 1).low : null;
+		shardDone = ShardedBTreeFile.call(s, new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				if (shardScan == null)
+					shardScan = s.file.new_scan(lo, hi);
+				for (int n = 0; n < BATCH; n++) {
+					KeyDataEntry e = shardScan.get_next();
+					if (e == null
+							|| (end != null && BT.keyCompare(e.key, end) >= 0))
+						return true;
+					batch.add(e);
+				}
+				return false;
+			}
+		});
+	}
+
+	/* close the scan of the shard and apply its deletes, on its thread */
+	private void endShard() throws Exception {
+		final ShardedBTreeFile.Shard s = shards.get(shard);
+		if (shardScan == null && deletes.isEmpty())
+			return;
+		ShardedBTreeFile.call(s, new Callable<Void>() {
+			public Void call() throws Exception {
+				if (shardScan != null)
+					shardScan.DestroyBTreeFileScan();
+				shardScan = null;
+				for (KeyDataEntry e : deletes)
+					s.file.Delete(e.key, ((LeafData) e.data).getData());
+				deletes.clear();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Delete the entry get_next() returned last, when the scan leaves its
+	 * shard.
+	 *
+	 * @exception ScanDeleteException
+	 *                there is no current entry
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (current == null)
+			throw new ScanDeleteException(null, "no current entry");
+		deletes.add(current);
+		current = null;
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return index.keySize();
+	}
+
+	/**
+	 * destructor. close the scan of the current shard and apply its
+	 * deletes.
+	 *
+	 * @exception ScanDeleteException
+	 *                error when deleting an entry of the shard
+	 */
+	public void DestroyBTreeFileScan() throws ScanDeleteException {
+		try {
+			if (!done)
+				endShard();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException(e, "");
+		}
+		batch.clear();
+		done = true;
+	}
+}
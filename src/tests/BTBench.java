@@ -0,0 +1,222 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * BTBench times the access paths of the btree package against each other,
+ * on files held in the buffer pool. Every benchmark runs ROUNDS rounds and
+ * prints the time of every round; the first round also warms up the JIT, so
+ * the later ones are the ones to compare.
+ *
+ * Run "java tests.BTBench" for all benchmarks, or give their names:
+ *
+ *   batch    full scans, get_next() against get_next_batch()
+ *   pax      point lookups on plain, compressed and PAX leaves
+ *   memory   point lookups in a BTMemoryFile and in a paged tree
+ *   bwtree   single-threaded inserts into a BTBwTree and a BTreeFile
+ */
+public class BTBench implements GlobalConst {
+
+	static final int ROUNDS = 5;
+
+	static final int ENTRIES = 100000;
+
+	public static void main(String[] argvs) {
+		List<String> names = Arrays.asList(argvs);
+		String dbpath = "/tmp/btbench" + System.getProperty("user.name")
+				+ ".minibase-db";
+		new File(dbpath).delete();
+
+		try {
+			new SystemDefs(dbpath, 60000, 3000, "Clock");
+			if (names.isEmpty() || names.contains("batch"))
+				batch();
+			if (names.isEmpty() || names.contains("pax"))
+				pax();
+			if (names.isEmpty() || names.contains("memory"))
+				memory();
+			if (names.isEmpty() || names.contains("bwtree"))
+				bwtree();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during the benchmarks:\n");
+			Runtime.getRuntime().exit(1);
+		} finally {
+			new File(dbpath).delete();
+		}
+	}
+
+	/* a file of ENTRIES random integer keys */
+	static BTreeFile load(String name, int leafFormat) throws Exception {
+		BTreeFile file = new BTreeFile(name, AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE, leafFormat);
+		Random random = new Random(7);
+		for (int i = 0; i < ENTRIES; i++)
+			file.insert(new IntegerKey(random.nextInt(ENTRIES * 4)), new RID(
+					new PageId(i), i % 100));
+		return file;
+	}
+
+	static long millis(long start) {
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	/*
+	 * 20 full scans with get_next() against 20 with get_next_batch(), on
+	 * plain and on compressed leaves.
+	 */
+	static void batch() throws Exception {
+		System.out.println("batch: 20 full scans of " + ENTRIES + " entries");
+		int[] formats = { LeafFormat.PLAIN, LeafFormat.COMPRESSED };
+		String[] labels = { "plain", "compressed" };
+		int[] keys = new int[1024], pages = new int[1024], slots = new int[1024];
+
+		for (int f = 0; f < formats.length; f++) {
+			BTreeFile file = load("batch" + f, formats[f]);
+			for (int round = 0; round < ROUNDS; round++) {
+				long sum = 0;
+				long start = System.nanoTime();
+				for (int i = 0; i < 20; i++) {
+					BTFileScan scan = file.new_scan(null, null);
+					for (KeyDataEntry e = scan.get_next(); e != null; e = scan
+							.get_next())
+						sum += ((IntegerKey) e.key).getKey();
+					scan.DestroyBTreeFileScan();
+				}
+				long scanned = millis(start);
+
+				start = System.nanoTime();
+				for (int i = 0; i < 20; i++) {
+					BTBatchScan scan = file.new_batch_scan(null, null);
+					for (int n; (n = scan.get_next_batch(keys, pages, slots)) > 0;)
+						for (int j = 0; j < n; j++)
+							sum -= keys[j];
+					scan.DestroyBTreeFileScan();
+				}
+				long batched = millis(start);
+
+				if (sum != 0)
+					throw new IllegalStateException("the scans differ");
+				System.out.println("  " + labels[f] + ": get_next " + scanned
+						+ " ms, get_next_batch " + batched + " ms");
+			}
+			file.destroyFile();
+		}
+	}
+
+	/*
+	 * 200000 point lookups (an equality scan each) on plain, compressed and
+	 * PAX leaves, without the adaptive hash index.
+	 */
+	static void pax() throws Exception {
+		System.out.println("pax: 200000 point lookups in " + ENTRIES
+				+ " entries");
+		int[] formats = { LeafFormat.PLAIN, LeafFormat.COMPRESSED,
+				LeafFormat.PAX };
+		String[] labels = { "plain", "compressed", "PAX" };
+		BTreeFile[] files = new BTreeFile[formats.length];
+		for (int f = 0; f < formats.length; f++) {
+			files[f] = load("pax" + f, formats[f]);
+			files[f].setAdaptiveHash(false);
+		}
+		Random random = new Random(3);
+		int[] probes = new int[200000];
+		for (int i = 0; i < probes.length; i++)
+			probes[i] = random.nextInt(ENTRIES * 4);
+
+		for (int round = 0; round < ROUNDS; round++) {
+			StringBuffer line = new StringBuffer(" ");
+			int expected = -1;
+			for (int f = 0; f < formats.length; f++) {
+				int hits = 0;
+				long start = System.nanoTime();
+				for (int probe : probes) {
+					IntegerKey key = new IntegerKey(probe);
+					BTFileScan scan = files[f].new_scan(key, key);
+					if (scan.get_next() != null)
+						hits++;
+					scan.DestroyBTreeFileScan();
+				}
+				line.append(" " + labels[f] + " " + millis(start) + " ms");
+				if (expected >= 0 && hits != expected)
+					throw new IllegalStateException("the lookups differ");
+				expected = hits;
+			}
+			System.out.println(line);
+		}
+		for (BTreeFile file : files)
+			file.destroyFile();
+	}
+
+	/*
+	 * 1000000 point lookups in a BTMemoryFile and 200000 in the paged tree
+	 * it was loaded from, in nanoseconds per lookup.
+	 */
+	static void memory() throws Exception {
+		System.out.println("memory: point lookups in " + ENTRIES + " entries");
+		BTreeFile file = load("memory", LeafFormat.PLAIN);
+		file.setAdaptiveHash(false);
+		BTMemoryFile memory = BTMemoryFile.load(file);
+		Random random = new Random(3);
+		int[] probes = new int[1000000];
+		for (int i = 0; i < probes.length; i++)
+			probes[i] = random.nextInt(ENTRIES * 4);
+		int paged = 200000;
+
+		for (int round = 0; round < ROUNDS; round++) {
+			int hits = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < paged; i++)
+				hits += memory.lookup(new IntegerKey(probes[i])).length;
+			for (int i = paged; i < probes.length; i++)
+				memory.lookup(new IntegerKey(probes[i]));
+			long inMemory = (System.nanoTime() - start) / probes.length;
+
+			start = System.nanoTime();
+			for (int i = 0; i < paged; i++)
+				hits -= file.multiGet(new KeyClass[] { new IntegerKey(
+						probes[i]) })[0].length;
+			long inFile = (System.nanoTime() - start) / paged;
+
+			if (hits != 0)
+				throw new IllegalStateException("the lookups differ");
+			System.out.println("  BTMemoryFile " + inMemory
+					+ " ns/lookup, BTreeFile " + inFile + " ns/lookup");
+		}
+		file.destroyFile();
+	}
+
+	/*
+	 * ENTRIES inserts of random keys on one thread, into a BTBwTree and into
+	 * BTreeFiles with plain and compressed leaves.
+	 */
+	static void bwtree() throws Exception {
+		System.out.println("bwtree: " + ENTRIES + " single-threaded inserts");
+		int[] formats = { LeafFormat.PLAIN, LeafFormat.COMPRESSED };
+		String[] labels = { "plain", "compressed" };
+
+		for (int round = 0; round < ROUNDS; round++) {
+			StringBuffer line = new StringBuffer(" ");
+			BTBwTree tree = new BTBwTree(AttrType.attrInteger, 4, 1 << 16);
+			Random random = new Random(7);
+			long start = System.nanoTime();
+			for (int i = 0; i < ENTRIES; i++)
+				tree.insert(new IntegerKey(random.nextInt(ENTRIES * 4)),
+						new RID(new PageId(i), i % 100));
+			line.append(" BTBwTree " + millis(start) + " ms");
+
+			for (int f = 0; f < formats.length; f++) {
+				start = System.nanoTime();
+				BTreeFile file = load("bwtree" + f, formats[f]);
+				line.append(", BTreeFile " + labels[f] + " " + millis(start)
+						+ " ms");
+				file.destroyFile();
+			}
+			System.out.println(line);
+		}
+	}
+}
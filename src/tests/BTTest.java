@@ -3,6 +3,8 @@ package tests;
 import java.io.*;
 import java.util.*;
 import java.lang.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
 
 import heap.*;
 import bufmgr.*;
@@ -579,10 +581,1669 @@ class GetStuff {
 	}
 }
 
+/**
+ * BTRegression runs the checks of the btree features without the menu:
+ * "java tests.BTTest regress" runs all of them, "java tests.BTTest regress
+ * name ..." the named ones. Every check compares what the index returns
+ * with a model of its entries kept in memory.
+ */
+class BTRegression implements GlobalConst {
+
+	public final static boolean OK = true;
+	public final static boolean FAIL = false;
+
+	static final String[] TESTS = { "composite", "normalized", "reverse",
+			"parallel", "stream", "multiget", "wal", "checkpoint", "destroy",
+			"rebuild", "snapshot", "versions", "compressed", "filter", "model",
+			"hash", "order", "aggregate", "batch", "pax", "memory", "buffered",
+			"writebuffer", "bwtree", "sharded", "async" };
+
+	protected String dbpath;
+
+	private final List<String> failed = new ArrayList<String>();
+
+	/**
+	 * Run the tests named after "regress", or one step of a crash test in a
+	 * process of its own ("crash" or "recover", see testWal(), and
+	 * "destroy-crash" or "destroy-recover", see testDestroy()).
+	 *
+	 * @param argvs
+	 *            the command line. Input parameter.
+	 * @return whether the tests passed
+	 */
+	static boolean run(String[] argvs) throws Exception {
+		if (argvs[0].equals("crash")) {
+			crash(argvs[1], argvs[2], Long.parseLong(argvs[3]));
+			return FAIL; // not reached, crash() halts
+		}
+		if (argvs[0].equals("recover"))
+			return recover(argvs[1], argvs[2], Integer.parseInt(argvs[3]));
+		if (argvs[0].equals("destroy-crash")) {
+			destroyCrash(argvs[1], argvs[2]);
+			return FAIL;
+		}
+		if (argvs[0].equals("destroy-recover"))
+			return destroyRecover(argvs[1], argvs[2]);
+		if (argvs[0].equals("regress"))
+			return new BTRegression().runTests(Arrays.asList(argvs).subList(1,
+					argvs.length));
+		throw new IllegalArgumentException("no command " + argvs[0]);
+	}
+
+	/**
+	 * @param names
+	 *            the tests to run, all of them if empty
+	 * @return whether all the tests passed
+	 */
+	public boolean runTests(List<String> names) {
+		dbpath = "/tmp/btregress" + System.getProperty("user.name")
+				+ ".minibase-db";
+		new File(dbpath).delete();
+		new SystemDefs(dbpath, 60000, 3000, "Clock");
+
+		for (String name : TESTS)
+			if (names.isEmpty() || names.contains(name)) {
+				boolean ok;
+				try {
+					ok = runTest(name);
+				} catch (Exception e) {
+					e.printStackTrace();
+					ok = FAIL;
+				}
+				System.out.println(name + (ok ? " ... OK" : " ... FAILED"));
+				if (!ok)
+					failed.add(name);
+			}
+
+		new File(dbpath).delete();
+		System.out.println("\n" + (failed.isEmpty() ? "All tests passed"
+				: "Failed: " + failed));
+		return failed.isEmpty();
+	}
+
+	/* run "java tests.BTTest args" in a new process and wait for it */
+	static boolean child(String... args) throws Exception {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("tests.BTTest");
+		command.addAll(Arrays.asList(args));
+		Process process = new ProcessBuilder(command).inheritIO().start();
+		return process.waitFor() == 0;
+	}
+
+	protected boolean runTest(String name) throws Exception {
+		switch (name) {
+		case "composite":
+			return testComposite();
+		case "normalized":
+			return testNormalized();
+		case "reverse":
+			return testReverse();
+		case "parallel":
+			return testParallel();
+		case "stream":
+			return testStream();
+		case "multiget":
+			return testMultiGet();
+		case "wal":
+			return testWal();
+		case "checkpoint":
+			return testCheckpoint();
+		case "destroy":
+			return testDestroy();
+		case "rebuild":
+			return testRebuild();
+		case "snapshot":
+			return testSnapshot();
+		case "versions":
+			return testVersions();
+		case "compressed":
+			return testCompressed();
+		case "filter":
+			return testFilter();
+		case "model":
+			return testModel();
+		case "hash":
+			return testAdaptiveHash();
+		case "order":
+			return testOrderStatistics();
+		case "aggregate":
+			return testAggregates();
+		case "batch":
+			return testBatchScan();
+		case "pax":
+			return testPax();
+		case "memory":
+			return testMemory();
+		case "buffered":
+			return testWriteOptimized();
+		case "writebuffer":
+			return testWriteBuffer();
+		case "bwtree":
+			return testBwTree();
+		case "sharded":
+			return testSharded();
+		case "async":
+			return testAsync();
+		}
+		throw new IllegalArgumentException("no test " + name);
+	}
+
+	/* report a failed check */
+	static boolean check(boolean ok, String what) {
+		if (!ok)
+			System.out.println("  check failed: " + what);
+		return ok;
+	}
+
+	/* an entry as "key:page:slot" */
+	static String entry(KeyDataEntry e) {
+		RID rid = ((LeafData) e.data).getData();
+		return e.key + ":" + rid.pageNo.pid + ":" + rid.slotNo;
+	}
+
+	/* the entries of a scan, which is left at its end */
+	static List<String> entries(IndexFileScan scan) throws Exception {
+		List<String> list = new ArrayList<String>();
+		for (KeyDataEntry e = scan.get_next(); e != null; e = scan.get_next())
+			list.add(entry(e));
+		return list;
+	}
+
+	/* the entries of a range scan of a file */
+	static List<String> scan(BTreeFile file, KeyClass lo, KeyClass hi)
+			throws Exception {
+		BTFileScan scan = file.new_scan(lo, hi);
+		List<String> list = entries(scan);
+		scan.DestroyBTreeFileScan();
+		return list;
+	}
+
+	/*
+	 * The entries {key, page, slot} of a model with lo <= key <= hi, in key
+	 * order (entries with the same key in no particular order).
+	 */
+	static List<String> model(List<int[]> live, int lo, int hi) {
+		List<int[]> range = new ArrayList<int[]>();
+		for (int[] e : live)
+			if (e[0] >= lo && e[0] <= hi)
+				range.add(e);
+		range.sort((x, y) -> Integer.compare(x[0], y[0]));
+		List<String> list = new ArrayList<String>();
+		for (int[] e : range)
+			list.add(e[0] + ":" + e[1] + ":" + e[2]);
+		return list;
+	}
+
+	/*
+	 * Whether the integer key entries of a scan are the expected ones: the
+	 * same keys in the same order, and the same entries.
+	 */
+	static boolean same(List<String> got, List<String> expected) {
+		if (got.size() != expected.size())
+			return false;
+		for (int i = 0; i < got.size(); i++)
+			if (!got.get(i).split(":")[0].equals(expected.get(i).split(":")[0]))
+				return false;
+		List<String> a = new ArrayList<String>(got);
+		List<String> b = new ArrayList<String>(expected);
+		Collections.sort(a);
+		Collections.sort(b);
+		return a.equals(b);
+	}
+
+	/* user-026: composite keys, prefix and range scans */
+	protected boolean testComposite() throws Exception {
+		boolean ok = OK;
+		BTreeFile file = new BTreeFile("composite", AttrType.attrString, 40,
+				DeleteFashion.NAIVE_DELETE);
+		for (int t = -2; t < 5; t++)
+			for (int ts = 0; ts < 200; ts++)
+				file.insert(new CompositeKey(t, ts * 3 - 100), new RID(
+						new PageId(t + 10), ts));
+
+		BTFileScan scan = file.new_prefix_scan(new CompositeKey(
+				new KeyClass[] { new IntegerKey(-1) }));
+		int n = 0;
+		for (KeyDataEntry e = scan.get_next(); e != null; e = scan.get_next(), n++) {
+			KeyClass[] columns = CompositeKey.valueOf((StringKey) e.key)
+					.getColumns();
+			ok &= check(((IntegerKey) columns[0]).getKey() == -1
+					&& ((IntegerKey) columns[1]).getKey() == n * 3 - 100,
+					"prefix scan entry " + n);
+		}
+		scan.DestroyBTreeFileScan();
+		ok &= check(n == 200, "prefix scan returns 200 entries, not " + n);
+
+		scan = file.new_scan(new CompositeKey(3, 0), new CompositeKey(3, 20));
+		List<Integer> second = new ArrayList<Integer>();
+		for (KeyDataEntry e = scan.get_next(); e != null; e = scan.get_next())
+			second.add(((IntegerKey) CompositeKey.valueOf((StringKey) e.key)
+					.getColumns()[1]).getKey());
+		scan.DestroyBTreeFileScan();
+		ok &= check(second.equals(Arrays.asList(2, 5, 8, 11, 14, 17, 20)),
+				"range scan of (3, 0) to (3, 20) " + second);
+
+		CompositeKey key = new CompositeKey(new KeyClass[] {
+				new StringKey("a\0b"), new IntegerKey(5) });
+		ok &= check(key.compareTo(new CompositeKey(key.getColumns())) == 0,
+				"columns round trip");
+		file.destroyFile();
+		return ok;
+	}
+
+	/* user-027: integer and string keys compared in their normalized form */
+	protected boolean testNormalized() throws Exception {
+		boolean ok = OK;
+		Random random = new Random(1);
+		BTreeFile ints = new BTreeFile("normalized-int", AttrType.attrInteger,
+				4, DeleteFashion.NAIVE_DELETE);
+		List<int[]> live = new ArrayList<int[]>();
+		for (int i = 0; i < 5000; i++) {
+			int k = random.nextInt(3000) - 1500;
+			ints.insert(new IntegerKey(k), new RID(new PageId(i), 0));
+			live.add(new int[] { k, i, 0 });
+		}
+		for (int q = 0; q < 100; q++) {
+			int lo = random.nextInt(3400) - 1700, hi = lo + random.nextInt(300);
+			ok &= check(same(scan(ints, new IntegerKey(lo), new IntegerKey(hi)),
+					model(live, lo, hi)), "integer range " + lo + " to " + hi);
+		}
+		ints.destroyFile();
+
+		BTreeFile strings = new BTreeFile("normalized-string",
+				AttrType.attrString, 20, DeleteFashion.NAIVE_DELETE);
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 3000; i++) {
+			String k = "k" + random.nextInt(2000);
+			strings.insert(new StringKey(k), new RID(new PageId(i), 0));
+			keys.add(k);
+		}
+		Collections.sort(keys);
+		for (int q = 0; q < 100; q++) {
+			String lo = "k" + random.nextInt(2000), hi = "k" + random.nextInt(2000);
+			if (lo.compareTo(hi) > 0) {
+				String k = lo;
+				lo = hi;
+				hi = k;
+			}
+			List<String> expected = new ArrayList<String>();
+			for (String k : keys)
+				if (k.compareTo(lo) >= 0 && k.compareTo(hi) <= 0)
+					expected.add(k);
+			List<String> got = new ArrayList<String>();
+			for (String e : scan(strings, new StringKey(lo), new StringKey(hi)))
+				got.add(e.split(":")[0]);
+			ok &= check(got.equals(expected), "string range " + lo + " to " + hi);
+		}
+		strings.destroyFile();
+		return ok;
+	}
+
+	/* user-028: descending range scans */
+	protected boolean testReverse() throws Exception {
+		boolean ok = OK;
+		Random random = new Random(2);
+		BTreeFile file = new BTreeFile("reverse", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE);
+		List<int[]> live = new ArrayList<int[]>();
+		for (int i = 0; i < 5000; i++) {
+			int k = random.nextInt(3000) - 1500;
+			file.insert(new IntegerKey(k), new RID(new PageId(i), 0));
+			live.add(new int[] { k, i, 0 });
+		}
+		for (int q = 0; q < 100; q++) {
+			Integer lo = random.nextInt(3400) - 1700;
+			Integer hi = lo + random.nextInt(300);
+			if (q % 10 == 0)
+				lo = null;
+			if (q % 7 == 0)
+				hi = null;
+			BTReverseFileScan scan = file.new_descending_scan(
+					(lo == null) ? null : new IntegerKey(lo),
+					(hi == null) ? null : new IntegerKey(hi));
+			List<String> got = entries(scan);
+			scan.DestroyBTreeFileScan();
+			List<String> expected = model(live, (lo == null) ? Integer.MIN_VALUE
+					: lo, (hi == null) ? Integer.MAX_VALUE : hi);
+			Collections.reverse(expected);
+			ok &= check(same(got, expected), "descending range " + lo + " to "
+					+ hi);
+		}
+		file.destroyFile();
+		return ok;
+	}
+
+	/* user-029: parallel range scans */
+	protected boolean testParallel() throws Exception {
+		boolean ok = OK;
+		Random random = new Random(3);
+		BTreeFile file = new BTreeFile("parallel", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE);
+		List<int[]> live = new ArrayList<int[]>();
+		for (int i = 0; i < 40000; i++) {
+			int k = random.nextInt(30000) - 15000;
+			file.insert(new IntegerKey(k), new RID(new PageId(i), 0));
+			live.add(new int[] { k, i, 0 });
+		}
+		int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+		for (int q = 0; q < 30; q++) {
+			Integer lo = random.nextInt(34000) - 17000;
+			Integer hi = lo + random.nextInt(20000);
+			if (q % 10 == 0)
+				lo = null;
+			if (q % 7 == 0)
+				hi = null;
+			List<String> got = new ArrayList<String>();
+			file.parallel_scan((lo == null) ? null : new IntegerKey(lo),
+					(hi == null) ? null : new IntegerKey(hi)).forEachOrdered(
+					e -> got.add(entry(e)));
+			ok &= check(same(got, model(live, (lo == null) ? Integer.MIN_VALUE
+					: lo, (hi == null) ? Integer.MAX_VALUE : hi)),
+					"parallel range " + lo + " to " + hi);
+		}
+		ok &= check(unpinned == SystemDefs.JavabaseBM.getNumUnpinnedBuffers(),
+				"no page is left pinned");
+		file.destroyFile();
+		return ok;
+	}
+
+	/* user-030: iterator and stream adapters with early termination */
+	protected boolean testStream() throws Exception {
+		boolean ok = OK;
+		BTreeFile file = new BTreeFile("stream", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE);
+		for (int i = 0; i < 5000; i++)
+			file.insert(new IntegerKey(i), new RID(new PageId(i), 0));
+		int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+
+		List<Integer> keys = new ArrayList<Integer>();
+		BTScanIterator it = file.new_scan_iterator(new IntegerKey(100), null)
+				.limit(3);
+		while (it.hasNext())
+			keys.add(((IntegerKey) it.next().key).getKey());
+		ok &= check(keys.equals(Arrays.asList(100, 101, 102)), "limit " + keys);
+
+		keys.clear();
+		it = file.new_scan_iterator(new IntegerKey(100), null).takeWhile(
+				e -> ((IntegerKey) e.key).getKey() < 104);
+		while (it.hasNext())
+			keys.add(((IntegerKey) it.next().key).getKey());
+		ok &= check(keys.equals(Arrays.asList(100, 101, 102, 103)),
+				"takeWhile " + keys);
+		ok &= check(unpinned == SystemDefs.JavabaseBM.getNumUnpinnedBuffers(),
+				"an exhausted iterator unpins its leaf");
+
+		keys.clear();
+		try (Stream<KeyDataEntry> stream = file.new_scan_stream(null, null)) {
+			stream.limit(5).forEach(e -> keys.add(((IntegerKey) e.key).getKey()));
+		}
+		ok &= check(keys.equals(Arrays.asList(0, 1, 2, 3, 4)), "stream " + keys);
+
+		keys.clear();
+		try (BTScanIterator reverse = new BTScanIterator(file
+				.new_descending_scan(null, null)).limit(2)) {
+			reverse.stream().forEach(e -> keys.add(((IntegerKey) e.key).getKey()));
+		}
+		ok &= check(keys.equals(Arrays.asList(4999, 4998)), "descending " + keys);
+
+		try (Stream<KeyDataEntry> stream = file.new_scan_stream(null, null)) {
+			ok &= check(stream.count() == 5000, "stream count");
+		}
+		ok &= check(unpinned == SystemDefs.JavabaseBM.getNumUnpinnedBuffers(),
+				"a closed stream unpins its leaf");
+		file.destroyFile();
+		return ok;
+	}
+
+	/* user-031: batched multi-point lookups */
+	protected boolean testMultiGet() throws Exception {
+		boolean ok = OK;
+		Random random = new Random(4);
+		BTreeFile file = new BTreeFile("multiget", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE);
+		Map<Integer, List<Integer>> model = new HashMap<Integer, List<Integer>>();
+		for (int i = 0; i < 20000; i++) {
+			int k = random.nextInt(8000);
+			model.computeIfAbsent(k, x -> new ArrayList<Integer>()).add(i);
+			file.insert(new IntegerKey(k), new RID(new PageId(i), 0));
+		}
+		int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+		for (int q = 0; q < 20; q++) {
+			KeyClass[] keys = new KeyClass[1 + random.nextInt(3000)];
+			for (int j = 0; j < keys.length; j++)
+				keys[j] = new IntegerKey(random.nextInt(8400) - 200);
+			RID[][] found = file.multiGet(keys);
+			for (int j = 0; j < keys.length; j++) {
+				List<Integer> expected = new ArrayList<Integer>(model.getOrDefault(
+						((IntegerKey) keys[j]).getKey(), new ArrayList<Integer>()));
+				List<Integer> got = new ArrayList<Integer>();
+				for (RID rid : found[j])
+					got.add(rid.pageNo.pid);
+				Collections.sort(expected);
+				Collections.sort(got);
+				ok &= check(got.equals(expected), "lookup of " + keys[j]);
+			}
+		}
+		ok &= check(unpinned == SystemDefs.JavabaseBM.getNumUnpinnedBuffers(),
+				"no page is left pinned");
+		file.destroyFile();
+		return ok;
+	}
+
+	/*
+	 * user-032: write-ahead log. One process logs 3000 inserts and 300
+	 * deletes, forces the log, logs a few more inserts and halts without
+	 * writing the buffer pool; another one recovers the database from the
+	 * log and checks it.
+	 */
+	protected boolean testWal() throws Exception {
+		return crashTest(0, 4000);
+	}
+
+	protected boolean crashTest(long checkpointInterval, int maxRedone)
+			throws Exception {
+		return crashTest(new String[] { "crash", "" + checkpointInterval },
+				new String[] { "recover", "" + maxRedone });
+	}
+
+	/*
+	 * Run a crash step and a recovery step in processes of their own, on a
+	 * new database and log. A step is its command and its arguments after
+	 * the paths of the database and the log.
+	 */
+	protected boolean crashTest(String[] crash, String[] recover)
+			throws Exception {
+		String db = "/tmp/btcrash" + System.getProperty("user.name")
+				+ ".minibase-db";
+		String log = "/tmp/btcrash" + System.getProperty("user.name")
+				+ ".minibase-log";
+		String[] files = { db, log, log + ".master" };
+		for (String name : files)
+			new File(name).delete();
+
+		boolean ok = check(!child(step(crash, db, log)),
+				"the crash step halts");
+		ok &= check(child(step(recover, db, log)), "the database is recovered");
+		for (String name : files)
+			new File(name).delete();
+		return ok;
+	}
+
+	static String[] step(String[] step, String db, String log) {
+		List<String> args = new ArrayList<String>(Arrays.asList(step));
+		args.addAll(1, Arrays.asList(db, log));
+		return args.toArray(new String[0]);
+	}
+
+	/* the inserts of the crash test, {key, page, slot} */
+	static int[][] crashInserts() {
+		Random random = new Random(5);
+		int[][] inserts = new int[3000][];
+		for (int i = 0; i < inserts.length; i++)
+			inserts[i] = new int[] { random.nextInt(100000), i, 0 };
+		return inserts;
+	}
+
+	/* the crash step: log the operations, then halt */
+	static void crash(String db, String logName, long checkpointInterval)
+			throws Exception {
+		new SystemDefs(db, 5000, 400, "Clock");
+		BTLog log = new BTLog(logName, 16);
+		log.setCheckpointInterval(checkpointInterval);
+		BTreeFile file = new BTreeFile("crash", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE, log);
+		int[][] inserts = crashInserts();
+		for (int[] e : inserts)
+			file.insert(new IntegerKey(e[0]), new RID(new PageId(e[1]), e[2]));
+		for (int i = 0; i < inserts.length; i += 10)
+			file.Delete(new IntegerKey(inserts[i][0]), new RID(new PageId(
+					inserts[i][1]), inserts[i][2]));
+		log.force();
+
+		// not forced: may or may not survive the crash
+		for (int i = 1; i <= 5; i++)
+			file.insert(new IntegerKey(-i), new RID(new PageId(i), 1));
+		Runtime.getRuntime().halt(1);
+	}
+
+	/*
+	 * The recovery step: redo the log, then check that the file holds every
+	 * forced entry and nothing else but some of the unforced inserts.
+	 */
+	static boolean recover(String db, String logName, int maxRedone)
+			throws Exception {
+		SystemDefs.MINIBASE_RESTART_FLAG = true;
+		new SystemDefs(db, 0, 400, "Clock");
+		BTLog log = new BTLog(logName, 16);
+		int redone = log.recover();
+		boolean ok = check(redone <= maxRedone, "redone " + redone
+				+ " records, at most " + maxRedone);
+
+		List<int[]> live = new ArrayList<int[]>();
+		int[][] inserts = crashInserts();
+		for (int i = 0; i < inserts.length; i++)
+			if (i % 10 != 0)
+				live.add(inserts[i]);
+		List<String> got = new ArrayList<String>();
+		for (String e : scan(new BTreeFile("crash"), null, null))
+			if (e.startsWith("-"))
+				ok &= check(e.matches("-[1-5]:[1-5]:1"), "unforced entry " + e);
+			else
+				got.add(e);
+		ok &= check(same(got, model(live, 0, Integer.MAX_VALUE)),
+				"the forced entries are recovered");
+		log.close();
+		return ok;
+	}
+
+	/*
+	 * user-033: fuzzy checkpoints. The crash test of testWal() with a
+	 * checkpoint every 20000 bytes of log, after which recovery redoes only
+	 * the records since the last checkpoint.
+	 */
+	protected boolean testCheckpoint() throws Exception {
+		return crashTest(20000, 1000);
+	}
+
+	/*
+	 * user-033: a destroyed file and checkpoints. File A is destroyed, file
+	 * B grows into its pages, and two checkpoints are taken. Then file C is
+	 * created and destroyed right before the crash (user-032: destroying is
+	 * logged). Recovery must leave B whole, A and C gone, and their pages
+	 * free for a new file.
+	 */
+	protected boolean testDestroy() throws Exception {
+		return crashTest(new String[] { "destroy-crash" },
+				new String[] { "destroy-recover" });
+	}
+
+	/* the crash step of testDestroy() */
+	static void destroyCrash(String db, String logName) throws Exception {
+		new SystemDefs(db, 5000, 400, "Clock");
+		BTLog log = new BTLog(logName, 16);
+		BTreeFile a = new BTreeFile("destroyA", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE, log);
+		BTreeFile b = new BTreeFile("destroyB", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE, log);
+		for (int i = 0; i < 500; i++)
+			a.insert(new IntegerKey(i), new RID(new PageId(i), 0));
+		log.force();
+		a.destroyFile();
+		for (int[] e : crashInserts())
+			b.insert(new IntegerKey(e[0]), new RID(new PageId(e[1]), e[2]));
+		log.force();
+		log.checkpoint();
+		log.checkpoint();
+
+		BTreeFile c = new BTreeFile("destroyC", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE, log);
+		for (int i = 0; i < 500; i++)
+			c.insert(new IntegerKey(i), new RID(new PageId(i), 0));
+		c.destroyFile();
+		log.force();
+		Runtime.getRuntime().halt(1);
+	}
+
+	/* the recovery step of testDestroy() */
+	static boolean destroyRecover(String db, String logName) throws Exception {
+		SystemDefs.MINIBASE_RESTART_FLAG = true;
+		new SystemDefs(db, 0, 400, "Clock");
+		BTLog log = new BTLog(logName, 16);
+		log.recover();
+		boolean ok = check(SystemDefs.JavabaseDB.get_file_entry("destroyA")
+				== null && SystemDefs.JavabaseDB.get_file_entry("destroyC")
+				== null, "the destroyed files are gone");
+		List<int[]> live = new ArrayList<int[]>(Arrays.asList(crashInserts()));
+		ok &= check(same(scan(new BTreeFile("destroyB"), null, null), model(
+				live, Integer.MIN_VALUE, Integer.MAX_VALUE)),
+				"the other file is whole");
+
+		BTreeFile d = new BTreeFile("destroyD", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE, log);
+		List<int[]> added = new ArrayList<int[]>();
+		for (int i = 0; i < 2000; i++) {
+			d.insert(new IntegerKey(i), new RID(new PageId(i), 1));
+			added.add(new int[] { i, i, 1 });
+		}
+		ok &= check(same(scan(d, null, null), model(added, Integer.MIN_VALUE,
+				Integer.MAX_VALUE))
+				&& same(scan(new BTreeFile("destroyB"), null, null), model(
+						live, Integer.MIN_VALUE, Integer.MAX_VALUE)),
+				"a new file gets free pages");
+		log.close();
+		return ok;
+	}
+
+	/*
+	 * user-034: online rebuild of a sparse index while another thread
+	 * inserts (following the locking rule of BTreeFile), and freeing pages
+	 * that are still pinned is refused.
+	 */
+	protected boolean testRebuild() throws Exception {
+		boolean ok = OK;
+		Random random = new Random(1);
+		final BTreeFile file = new BTreeFile("rebuild", AttrType.attrInteger,
+				4, DeleteFashion.NAIVE_DELETE);
+		List<int[]> live = new ArrayList<int[]>();
+		for (int i = 0; i < 6000; i++) {
+			int k = random.nextInt(5000);
+			file.insert(new IntegerKey(k), new RID(new PageId(i), 0));
+			if (i % 3 == 0)
+				live.add(new int[] { k, i, 0 });
+			else
+				file.Delete(new IntegerKey(k), new RID(new PageId(i), 0));
+		}
+		int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+
+		final Exception[] failure = new Exception[1];
+		Thread writer = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < 500; i++)
+						synchronized (SystemDefs.JavabaseBM) {
+							file.insert(new IntegerKey(i * 10), new RID(
+									new PageId(90000 + i), 0));
+						}
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		};
+		writer.start();
+		file.rebuildOnline();
+		writer.join();
+		for (int i = 0; i < 500; i++)
+			live.add(new int[] { i * 10, 90000 + i, 0 });
+		ok &= check(failure[0] == null, "the inserts during the rebuild");
+		ok &= check(same(scan(file, null, null), model(live, Integer.MIN_VALUE,
+				Integer.MAX_VALUE)), "the entries after the rebuild");
+		ok &= check(unpinned == SystemDefs.JavabaseBM.getNumUnpinnedBuffers(),
+				"no page is left pinned");
+
+		BTFileScan open = file.new_scan(null, null);
+		open.get_next();
+		try {
+			file.destroyFile();
+			ok &= check(false, "destroying a file with an open scan fails");
+		} catch (FreePageException e) {
+		}
+		open.DestroyBTreeFileScan();
+		return ok;
+	}
+
+	/* user-035: copy-on-write snapshots */
+	protected boolean testSnapshot() throws Exception {
+		boolean ok = OK;
+		Random random = new Random(3);
+		BTreeFile file = new BTreeFile("snapshot", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE);
+		List<int[]> live = new ArrayList<int[]>();
+		for (int i = 0; i < 2000; i++) {
+			int k = random.nextInt(10000);
+			file.insert(new IntegerKey(k), new RID(new PageId(i), 0));
+			live.add(new int[] { k, i, 0 });
+		}
+		List<String> v0 = model(live, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		BTSnapshot s0 = file.snapshot();
+		BTSnapshotScan open = s0.new_scan(new IntegerKey(2000),
+				new IntegerKey(6000));
+		List<String> partial = new ArrayList<String>();
+		for (int i = 0; i < 10; i++)
+			partial.add(entry(open.get_next()));
+
+		for (int i = 2000; i < 5000; i++) {
+			int k = random.nextInt(10000);
+			file.insert(new IntegerKey(k), new RID(new PageId(i), 0));
+			live.add(new int[] { k, i, 0 });
+		}
+		for (int i = 0; i < 300; i++) {
+			int[] e = live.remove(random.nextInt(live.size()));
+			file.Delete(new IntegerKey(e[0]), new RID(new PageId(e[1]), e[2]));
+		}
+		List<String> v1 = model(live, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		BTSnapshot s1 = file.snapshot();
+		for (int i = 5000; i < 7000; i++)
+			file.insert(new IntegerKey(random.nextInt(10000)), new RID(
+					new PageId(i), 0));
+
+		partial.addAll(entries(open));
+		List<String> range = new ArrayList<String>();
+		for (String e : v0) {
+			int k = Integer.parseInt(e.split(":")[0]);
+			if (k >= 2000 && k <= 6000)
+				range.add(e);
+		}
+		ok &= check(same(partial, range), "a snapshot scan open across updates");
+		ok &= check(same(entries(s0.new_scan(null, null)), v0),
+				"the first snapshot");
+		ok &= check(same(entries(s1.new_scan(null, null)), v1),
+				"the second snapshot");
+		s0.close();
+		ok &= check(same(entries(s1.new_scan(null, null)), v1),
+				"the second snapshot after the first is closed");
+		s1.close();
+		try {
+			s0.new_scan(null, null);
+			ok &= check(false, "a closed snapshot can not be scanned");
+		} catch (ScanIteratorException e) {
+		}
+		ok &= check(scan(file, null, null).size() == live.size() + 2000,
+				"the file after the snapshots are closed");
+		file.destroyFile();
+		return ok;
+	}
+
+	/* user-036: reads as of a timestamp over the version store */
+	protected boolean testVersions() throws Exception {
+		boolean ok = OK;
+		Random random = new Random(7);
+		BTreeFile file = new BTreeFile("versions", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE);
+		List<int[]> live = new ArrayList<int[]>();
+		for (int i = 0; i < 2000; i++) {
+			int k = random.nextInt(3000);
+			file.insert(new IntegerKey(k), new RID(new PageId(i), 0));
+			live.add(new int[] { k, i, 0 });
+		}
+		List<String> v0 = model(live, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		List<String> r0 = model(live, 1000, 1200);
+		long t0 = file.beginRead();
+
+		for (int i = 0; i < 500; i++) {
+			int[] e = live.remove(random.nextInt(live.size()));
+			file.Delete(new IntegerKey(e[0]), new RID(new PageId(e[1]), e[2]));
+		}
+		for (int i = 2000; i < 2500; i++) {
+			int k = random.nextInt(3000);
+			file.insert(new IntegerKey(k), new RID(new PageId(i), 0));
+			live.add(new int[] { k, i, 0 });
+		}
+		List<String> v1 = model(live, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		long t1 = file.beginRead();
+		for (int i = 2500; i < 2800; i++)
+			file.insert(new IntegerKey(random.nextInt(3000)), new RID(
+					new PageId(i), 0));
+
+		BTVersionedScan scan = file.new_scan(null, null, t0);
+		ok &= check(same(entries(scan), v0), "the entries as of t0");
+		scan.DestroyBTreeFileScan();
+		scan = file.new_scan(new IntegerKey(1000), new IntegerKey(1200), t0);
+		ok &= check(same(entries(scan), r0), "a range as of t0");
+		scan.DestroyBTreeFileScan();
+		scan = file.new_scan(null, null, t1);
+		ok &= check(same(entries(scan), v1), "the entries as of t1");
+		scan.DestroyBTreeFileScan();
+
+		String k = v0.get(5).split(":")[0];
+		int count = 0;
+		for (String e : v0)
+			if (e.startsWith(k + ":"))
+				count++;
+		ok &= check(file.lookup(new IntegerKey(Integer.parseInt(k)), t0).length
+				== count,
+				"a lookup as of t0");
+		file.endRead(t0);
+		file.endRead(t1);
+		file.vacuum();
+		ok &= check(scan(file, null, null).size() == live.size() + 300,
+				"the file after the reads end");
+		file.destroyFile();
+		return ok;
+	}
+
+	/* user-037: compressed leaves */
+	protected boolean testCompressed() throws Exception {
+		boolean ok = OK;
+		Random random = new Random(7);
+		BTreeFile file = new BTreeFile("compressed", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE, LeafFormat.COMPRESSED);
+		List<int[]> live = new ArrayList<int[]>();
+		for (int i = 0; i < 6000; i++) {
+			int k = (i < 3000) ? i : random.nextInt(5000) - 1000;
+			int page = (i % 7 == 0) ? random.nextInt(Integer.MAX_VALUE) : k + 100;
+			int slot = i % 13;
+			if (i == 4000) {
+				page = Integer.MAX_VALUE;
+				slot = Integer.MAX_VALUE;
+			}
+			file.insert(new IntegerKey(k), new RID(new PageId(page), slot));
+			live.add(new int[] { k, page, slot });
+		}
+		ok &= check(same(scan(file, null, null), model(live, Integer.MIN_VALUE,
+				Integer.MAX_VALUE)), "the entries after the inserts");
+
+		Collections.shuffle(live, random);
+		for (int i = 0; i < 2500; i++) {
+			int[] e = live.remove(live.size() - 1);
+			ok &= check(file.Delete(new IntegerKey(e[0]), new RID(new PageId(
+					e[1]), e[2])), "delete of " + e[0]);
+		}
+		for (int q = 0; q < 50; q++) {
+			int lo = random.nextInt(6000) - 1000, hi = lo + random.nextInt(200);
+			ok &= check(same(scan(file, new IntegerKey(lo), new IntegerKey(hi)),
+					model(live, lo, hi)), "compressed range " + lo + " to " + hi);
+		}
+
+		file.close();
+		file = new BTreeFile("compressed");
+		ok &= check(file.getLeafFormat() == LeafFormat.COMPRESSED,
+				"the leaf format is kept");
+		ok &= check(same(scan(file, null, null), model(live, Integer.MIN_VALUE,
+				Integer.MAX_VALUE)), "the entries after reopening");
+		file.destroyFile();
+		return ok;
+	}
+
+	/* user-038: Bloom filter for negative point lookups */
+	protected boolean testFilter() throws Exception {
+		boolean ok = OK;
+		BTreeFile file = new BTreeFile("filter", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE);
+		BTreeFile plain = new BTreeFile("filter-plain", AttrType.attrInteger,
+				4, DeleteFashion.NAIVE_DELETE);
+		for (int i = 0; i < 2000; i += 2)
+			file.insert(new IntegerKey(i), new RID(new PageId(i), 1));
+		file.createFilter(4000);
+		for (int i = 2000; i < 4000; i += 2)
+			file.insert(new IntegerKey(i), new RID(new PageId(i), 1));
+		for (int i = 0; i < 4000; i += 2)
+			plain.insert(new IntegerKey(i), new RID(new PageId(i), 1));
+
+		int falseNegatives = 0;
+		for (int i = 0; i < 4000; i += 2)
+			if (!file.mightContain(new IntegerKey(i)))
+				falseNegatives++;
+		ok &= check(falseNegatives == 0, falseNegatives + " false negatives");
+		for (int i = 0; i < 4000; i++) {
+			IntegerKey key = new IntegerKey(i);
+			ok &= check(scan(file, key, key).equals(scan(plain, key, key)),
+					"lookup of " + i);
+		}
+		RID[][] found = file.multiGet(new KeyClass[] { new IntegerKey(3),
+				new IntegerKey(3000), new IntegerKey(5) });
+		ok &= check(found[0].length == 0 && found[1].length == 1
+				&& found[2].length == 0, "multiGet");
+
+		// the same result with or without a filter
+		for (int i = 0; i < 40; i++) {
+			RID rid = new RID(new PageId(i), 1);
+			ok &= check(file.Delete(new IntegerKey(i), rid) == plain.Delete(
+					new IntegerKey(i), rid), "delete of " + i);
+		}
+		ok &= check(scan(file, null, null).equals(scan(plain, null, null)),
+				"the entries after the deletes");
+
+		file.close();
+		file = new BTreeFile("filter");
+		ok &= check(!file.mightContain(new IntegerKey(1))
+				&& file.mightContain(new IntegerKey(100)),
+				"the filter after reopening");
+		file.dropFilter();
+		ok &= check(file.mightContain(new IntegerKey(1)),
+				"without a filter every key might be there");
+		file.destroyFile();
+		plain.destroyFile();
+		return ok;
+	}
+
+	/* user-039: the learned model over the leaves */
+	protected boolean testModel() throws Exception {
+		boolean ok = OK;
+		Random random = new Random(3);
+		BTreeFile file = new BTreeFile("model", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE);
+		List<int[]> live = new ArrayList<int[]>();
+		for (int i = 0; i < 20000; i++) {
+			// a linear part and a skewed part, with some long duplicate runs
+			int k = (i < 15000) ? 3 * i : 45000 + (int) Math.pow(i - 15000, 1.5);
+			for (int d = (i % 100 == 0) ? 20 : 0; d >= 0; d--)
+				live.add(new int[] { k, live.size(), 0 });
+		}
+		Collections.shuffle(live, random);
+		for (int[] e : live)
+			file.insert(new IntegerKey(e[0]), new RID(new PageId(e[1]), e[2]));
+
+		for (int error : new int[] { 0, 4, 32 }) {
+			ok &= check(file.trainModel(error) > 0, "the model has segments");
+			for (int q = 0; q < 300; q++) {
+				int lo = random.nextInt(450000) - 1000;
+				int hi = lo + random.nextInt(3) * random.nextInt(50);
+				ok &= check(same(scan(file, new IntegerKey(lo), new IntegerKey(
+						hi)), model(live, lo, hi)), "range " + lo + " to " + hi
+						+ " with error " + error);
+			}
+		}
+
+		file.insert(new IntegerKey(1), new RID(new PageId(999999), 0));
+		live.add(new int[] { 1, 999999, 0 });
+		ok &= check(same(scan(file, new IntegerKey(0), new IntegerKey(3)),
+				model(live, 0, 3)), "an insert after training");
+		file.dropModel();
+		ok &= check(same(scan(file, new IntegerKey(0), new IntegerKey(3)),
+				model(live, 0, 3)), "the dropped model");
+		file.destroyFile();
+		return ok;
+	}
+
+	/* user-040: the adaptive hash index over hot keys */
+	protected boolean testAdaptiveHash() throws Exception {
+		boolean ok = OK;
+		Random random = new Random(11);
+		BTreeFile file = new BTreeFile("hash", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE); // hashing hot keys by default
+		List<int[]> live = new ArrayList<int[]>();
+		int page = 0;
+		for (int i = 0; i < 5000; i++) {
+			int k = random.nextInt(3000);
+			file.insert(new IntegerKey(k), new RID(new PageId(page), 0));
+			live.add(new int[] { k, page++, 0 });
+		}
+		int[] hot = new int[50];
+		for (int i = 0; i < hot.length; i++)
+			hot[i] = random.nextInt(3000);
+
+		for (int round = 0; round < 100; round++) {
+			for (int q = 0; q < 50; q++) {
+				int k = hot[random.nextInt(hot.length)];
+				ok &= check(same(scan(file, new IntegerKey(k), new IntegerKey(k)),
+						model(live, k, k)), "lookup of " + k);
+			}
+			// updates of hot and cold keys, which must invalidate the hash
+			for (int m = 0; m < 5; m++) {
+				int k = random.nextBoolean() ? hot[random.nextInt(hot.length)]
+						: random.nextInt(3000);
+				if (random.nextInt(3) == 0) {
+					for (int j = 0; j < live.size(); j++)
+						if (live.get(j)[0] == k) {
+							int[] e = live.remove(j);
+							file.Delete(new IntegerKey(k), new RID(new PageId(
+									e[1]), 0));
+							break;
+						}
+				} else {
+					file.insert(new IntegerKey(k), new RID(new PageId(page), 0));
+					live.add(new int[] { k, page++, 0 });
+				}
+			}
+		}
+		file.setAdaptiveHash(false);
+		ok &= check(same(scan(file, null, null), model(live, Integer.MIN_VALUE,
+				Integer.MAX_VALUE)), "the entries with the hash off");
+		file.destroyFile();
+		return ok;
+	}
+
+	/* user-041: order statistics, range counts and select() */
+	protected boolean testOrderStatistics() throws Exception {
+		boolean ok = OK;
+		for (int format : new int[] { LeafFormat.PLAIN, LeafFormat.COMPRESSED }) {
+			Random random = new Random(5);
+			BTreeFile file = new BTreeFile("order" + format,
+					AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE, format);
+			List<int[]> live = new ArrayList<int[]>();
+			int page = 0;
+			for (int i = 0; i < 3000; i++) {
+				int k = random.nextInt(2000);
+				file.insert(new IntegerKey(k), new RID(new PageId(page), 0));
+				live.add(new int[] { k, page++, 0 });
+			}
+			file.enableOrderStatistics();
+
+			for (int round = 0; round < 20; round++) {
+				for (int m = 0; m < 60; m++)
+					if (random.nextInt(3) == 0) {
+						int[] e = live.remove(random.nextInt(live.size()));
+						file.Delete(new IntegerKey(e[0]), new RID(new PageId(e[1]),
+								0));
+					} else {
+						int k = random.nextInt(2000);
+						file.insert(new IntegerKey(k), new RID(new PageId(page), 0));
+						live.add(new int[] { k, page++, 0 });
+					}
+				List<String> all = model(live, Integer.MIN_VALUE,
+						Integer.MAX_VALUE);
+				for (int q = 0; q < 10; q++) {
+					int lo = random.nextInt(2100) - 50, hi = lo + random.nextInt(400);
+					int count = model(live, lo, hi).size();
+					ok &= check(file.count(new IntegerKey(lo),
+							new IntegerKey(hi)) == count, "count of " + lo
+							+ " to " + hi);
+					int rank = random.nextInt(all.size() + 5);
+					KeyDataEntry e = file.select(rank);
+					ok &= check((rank >= all.size()) ? e == null : e != null
+							&& entry(e).split(":")[0].equals(all.get(rank).split(
+									":")[0]), "select of " + rank);
+				}
+				ok &= check(file.count(null, null) == live.size(), "count of all");
+			}
+			file.destroyFile();
+		}
+		return ok;
+	}
+
+	/* user-042: min, max, sum and avg */
+	protected boolean testAggregates() throws Exception {
+		boolean ok = OK;
+		for (int format : new int[] { LeafFormat.PLAIN, LeafFormat.COMPRESSED }) {
+			Random random = new Random(5);
+			BTreeFile file = new BTreeFile("aggregate" + format,
+					AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE, format);
+			ok &= check(file.min() == null && file.max() == null
+					&& file.sum(null, null) == 0
+					&& Double.isNaN(file.avg(null, null)), "an empty file");
+			List<int[]> live = new ArrayList<int[]>();
+			for (int i = 0; i < 3000; i++) {
+				int k = random.nextInt(2000) - 500;
+				file.insert(new IntegerKey(k), new RID(new PageId(i), 0));
+				live.add(new int[] { k, i, 0 });
+			}
+			for (int i = 0; i < 500; i++) {
+				live.sort((x, y) -> Integer.compare(x[0], y[0]));
+				// often the smallest entry, so that min() moves on
+				int[] e = live.remove((i % 4 == 0) ? 0 : random.nextInt(live
+						.size()));
+				file.Delete(new IntegerKey(e[0]), new RID(new PageId(e[1]), 0));
+			}
+
+			List<String> all = model(live, Integer.MIN_VALUE, Integer.MAX_VALUE);
+			ok &= check(entry(file.min()).split(":")[0].equals(all.get(0).split(
+					":")[0]), "min");
+			ok &= check(entry(file.max()).split(":")[0].equals(all.get(
+					all.size() - 1).split(":")[0]), "max");
+			for (int q = 0; q < 50; q++) {
+				Integer lo = (q % 5 == 0) ? null : random.nextInt(2100) - 550;
+				Integer hi = (q % 7 == 0) ? null : ((lo == null) ? 0 : lo)
+						+ random.nextInt(400);
+				long sum = 0, count = 0;
+				for (int[] e : live)
+					if ((lo == null || e[0] >= lo) && (hi == null || e[0] <= hi)) {
+						sum += e[0];
+						count++;
+					}
+				IntegerKey loKey = (lo == null) ? null : new IntegerKey(lo);
+				IntegerKey hiKey = (hi == null) ? null : new IntegerKey(hi);
+				double avg = file.avg(loKey, hiKey);
+				ok &= check(file.sum(loKey, hiKey) == sum
+						&& ((count == 0) ? Double.isNaN(avg) : Math.abs(avg
+								- (double) sum / count) < 1e-9), "sum and avg of "
+						+ lo + " to " + hi);
+			}
+			try {
+				file.sum(null, new StringKey("x"));
+				ok &= check(false, "a string bound is refused");
+			} catch (KeyNotMatchException e) {
+			}
+			file.destroyFile();
+		}
+		return ok;
+	}
+
+	/* user-043: batch scans */
+	protected boolean testBatchScan() throws Exception {
+		boolean ok = OK;
+		for (int format : new int[] { LeafFormat.PLAIN, LeafFormat.COMPRESSED }) {
+			Random random = new Random(9);
+			BTreeFile file = new BTreeFile("batch" + format,
+					AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE, format);
+			List<int[]> live = new ArrayList<int[]>();
+			for (int i = 0; i < 4000; i++) {
+				int k = random.nextInt(3000);
+				file.insert(new IntegerKey(k), new RID(new PageId(i), i % 7));
+				live.add(new int[] { k, i, i % 7 });
+			}
+			for (int i = 0; i < 800; i++) {
+				int[] e = live.remove(random.nextInt(live.size()));
+				file.Delete(new IntegerKey(e[0]), new RID(new PageId(e[1]), e[2]));
+			}
+
+			for (int q = 0; q < 40; q++) {
+				int lo = random.nextInt(3200) - 100, hi = lo + random.nextInt(1500)
+						- 100;
+				IntegerKey loKey = (q % 6 == 0) ? null : new IntegerKey(lo);
+				IntegerKey hiKey = (q % 8 == 0) ? null : new IntegerKey(hi);
+				int size = 1 + random.nextInt((q % 2 == 0) ? 8 : 600);
+				int[] keys = new int[size], pages = new int[size];
+				int[] slots = new int[size];
+				List<String> got = new ArrayList<String>();
+				BTBatchScan scan = file.new_batch_scan(loKey, hiKey);
+				for (int n; (n = scan.get_next_batch(keys, pages, slots)) > 0;)
+					for (int j = 0; j < n; j++)
+						got.add(keys[j] + ":" + pages[j] + ":" + slots[j]);
+				scan.DestroyBTreeFileScan();
+				List<String> expected = model(live,
+						(loKey == null) ? Integer.MIN_VALUE : lo,
+						(hiKey == null) ? Integer.MAX_VALUE : hi);
+				ok &= check(got.equals(scan(file, loKey, hiKey))
+						&& same(got, expected), "batch scan of " + loKey + " to "
+						+ hiKey + " by " + size);
+			}
+			try {
+				file.new_batch_scan(new StringKey("a"), null);
+				ok &= check(false, "a string bound is refused");
+			} catch (KeyNotMatchException e) {
+			}
+			file.destroyFile();
+		}
+		return ok;
+	}
+
+	/* user-044: PAX leaves */
+	protected boolean testPax() throws Exception {
+		boolean ok = OK;
+		Random random = new Random(13);
+		BTreeFile file = new BTreeFile("pax", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE, LeafFormat.PAX);
+		List<int[]> live = new ArrayList<int[]>();
+		int page = 0;
+		for (int round = 0; round < 10; round++) {
+			for (int m = 0; m < 500; m++)
+				if (!live.isEmpty() && random.nextInt(4) == 0) {
+					int[] e = live.remove(random.nextInt(live.size()));
+					ok &= check(file.Delete(new IntegerKey(e[0]), new RID(
+							new PageId(e[1]), e[2])), "delete of " + e[0]);
+				} else {
+					int k = random.nextInt(2500);
+					file.insert(new IntegerKey(k), new RID(new PageId(page),
+							3));
+					live.add(new int[] { k, page++, 3 });
+				}
+			ok &= check(!file.Delete(new IntegerKey(-1), new RID(
+					new PageId(0), 3)), "delete of a missing entry");
+			for (int q = 0; q < 5; q++) {
+				int lo = random.nextInt(2600) - 50;
+				int hi = lo + random.nextInt(500);
+				ok &= check(same(scan(file, new IntegerKey(lo),
+						new IntegerKey(hi)), model(live, lo, hi)), "scan of "
+						+ lo + " to " + hi);
+			}
+		}
+		List<String> all = model(live, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		ok &= check(same(scan(file, null, null), all), "full scan");
+
+		file.close();
+		file = new BTreeFile("pax");
+		ok &= check(file.getLeafFormat() == LeafFormat.PAX, "format kept");
+		ok &= check(same(scan(file, null, null), all),
+				"full scan after reopen");
+		file.destroyFile();
+		return ok;
+	}
+
+	/* user-045: the memory index */
+	protected boolean testMemory() throws Exception {
+		boolean ok = OK;
+		Random random = new Random(17);
+		BTMemoryFile memory = new BTMemoryFile();
+		List<int[]> live = new ArrayList<int[]>();
+		int page = 0;
+		for (int round = 0; round < 10; round++) {
+			for (int m = 0; m < 1000; m++)
+				if (!live.isEmpty() && random.nextInt(3) == 0) {
+					int[] e = live.remove(random.nextInt(live.size()));
+					ok &= check(memory.Delete(new IntegerKey(e[0]), new RID(
+							new PageId(e[1]), e[2])), "delete of " + e[0]);
+				} else {
+					int k = random.nextInt(4000) - 1000;
+					memory.insert(new IntegerKey(k), new RID(new PageId(page),
+							page % 5));
+					live.add(new int[] { k, page, page++ % 5 });
+				}
+			ok &= check(memory.size() == live.size(), "size");
+			for (int q = 0; q < 5; q++) {
+				int lo = random.nextInt(4200) - 1100;
+				int hi = lo + random.nextInt(800);
+				ok &= check(same(entries(memory.new_scan(new IntegerKey(lo),
+						new IntegerKey(hi))), model(live, lo, hi)), "scan of "
+						+ lo + " to " + hi);
+				int k = lo + 100;
+				List<String> rids = new ArrayList<String>();
+				for (RID rid : memory.lookup(new IntegerKey(k)))
+					rids.add(k + ":" + rid.pageNo.pid + ":" + rid.slotNo);
+				ok &= check(same(rids, model(live, k, k)), "lookup of " + k);
+			}
+		}
+		List<String> all = model(live, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		ok &= check(same(entries(memory.new_scan(null, null)), all),
+				"full scan");
+
+		BTreeFile file = memory.checkpoint("memory", LeafFormat.COMPRESSED);
+		ok &= check(same(scan(file, null, null), all), "checkpoint");
+		BTMemoryFile loaded = BTMemoryFile.load(file);
+		ok &= check(loaded.size() == live.size()
+				&& same(entries(loaded.new_scan(null, null)), all), "load");
+		file.destroyFile();
+		return ok;
+	}
+
+	/* user-046: the write-optimized mode */
+	protected boolean testWriteOptimized() throws Exception {
+		boolean ok = OK;
+		Random random = new Random(19);
+		BTreeFile file = new BTreeFile("buffered", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE);
+		file.setWriteOptimized(true);
+		List<int[]> live = new ArrayList<int[]>();
+		int page = 0;
+		for (int round = 0; round < 10; round++) {
+			for (int m = 0; m < 1500; m++)
+				if (!live.isEmpty() && random.nextInt(4) == 0) {
+					int[] e = live.remove(random.nextInt(live.size()));
+					ok &= check(file.Delete(new IntegerKey(e[0]), new RID(
+							new PageId(e[1]), 0)), "delete of " + e[0]);
+				} else {
+					int k = random.nextInt(5000);
+					file.insert(new IntegerKey(k), new RID(new PageId(page),
+							0));
+					live.add(new int[] { k, page++, 0 });
+				}
+			ok &= check(!file.Delete(new IntegerKey(7), new RID(new PageId(-1),
+					0)), "delete of a missing entry");
+			KeyClass[] keys = new KeyClass[20];
+			for (int i = 0; i < keys.length; i++)
+				keys[i] = new IntegerKey(random.nextInt(5000));
+			RID[][] rids = file.multiGet(keys);
+			for (int i = 0; i < keys.length; i++) {
+				int k = ((IntegerKey) keys[i]).getKey();
+				List<String> got = new ArrayList<String>();
+				for (RID rid : rids[i])
+					got.add(k + ":" + rid.pageNo.pid + ":" + rid.slotNo);
+				ok &= check(same(got, model(live, k, k)), "multiGet of " + k);
+			}
+			int lo = random.nextInt(5000), hi = lo + random.nextInt(500);
+			ok &= check(same(scan(file, new IntegerKey(lo), new IntegerKey(hi)),
+					model(live, lo, hi)), "scan of " + lo + " to " + hi);
+		}
+		try {
+			file.insert(new StringKey("x"), new RID(new PageId(0), 0));
+			ok &= check(false, "a string key is refused");
+		} catch (KeyNotMatchException e) {
+		}
+
+		List<String> all = model(live, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		file.close();
+		file = new BTreeFile("buffered");
+		ok &= check(same(scan(file, null, null), all),
+				"full scan after reopen");
+		file.setWriteOptimized(false);
+		ok &= check(same(scan(file, null, null), all), "full scan unbuffered");
+		file.destroyFile();
+		return ok;
+	}
+
+	/* user-047: the write buffer */
+	protected boolean testWriteBuffer() throws Exception {
+		boolean ok = OK;
+		Random random = new Random(23);
+		BTreeFile file = new BTreeFile("writebuffer", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE);
+		List<int[]> live = new ArrayList<int[]>();
+		int page = 0;
+		for (; page < 2000; page++) {
+			int k = random.nextInt(3000);
+			file.insert(new IntegerKey(k), new RID(new PageId(page), 1));
+			live.add(new int[] { k, page, 1 });
+		}
+		BTWriteBuffer buffer = new BTWriteBuffer(file, 300);
+
+		for (int round = 0; round < 10; round++) {
+			for (int m = 0; m < 400; m++)
+				if (random.nextInt(3) == 0) {
+					int[] e = live.remove(random.nextInt(live.size()));
+					ok &= check(buffer.Delete(new IntegerKey(e[0]), new RID(
+							new PageId(e[1]), 1)), "delete of " + e[0]);
+				} else {
+					int k = random.nextInt(3000);
+					buffer.insert(new IntegerKey(k), new RID(new PageId(page),
+							1));
+					live.add(new int[] { k, page++, 1 });
+				}
+			ok &= check(!buffer.Delete(new IntegerKey(5), new RID(
+					new PageId(-1), 1)), "delete of a missing entry");
+			for (int q = 0; q < 5; q++) {
+				int lo = random.nextInt(3100) - 50;
+				int hi = lo + random.nextInt(600) - 100;
+				BTWriteBufferScan scan = buffer.new_scan(new IntegerKey(lo),
+						new IntegerKey(hi));
+				ok &= check(same(entries(scan), model(live, lo, hi)), "scan of "
+						+ lo + " to " + hi);
+				scan.DestroyBTreeFileScan();
+			}
+		}
+		BTWriteBufferScan scan = buffer.new_scan(new IntegerKey(2000),
+				new IntegerKey(1000));
+		ok &= check(entries(scan).isEmpty(), "scan of 2000 to 1000");
+		scan.DestroyBTreeFileScan();
+
+		List<String> all = model(live, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		buffer.merge();
+		ok &= check(buffer.size() == 0, "merge empties the delta");
+		ok &= check(same(scan(file, null, null), all), "full scan after merge");
+		file.destroyFile();
+		return ok;
+	}
+
+	/* user-048: the Bw-tree */
+	protected boolean testBwTree() throws Exception {
+		boolean ok = OK;
+		Random random = new Random(29);
+		final BTBwTree tree = new BTBwTree(AttrType.attrInteger, 4, 1 << 12);
+		List<int[]> live = new ArrayList<int[]>();
+		int page = 0;
+		for (int round = 0; round < 10; round++) {
+			for (int m = 0; m < 1000; m++)
+				if (!live.isEmpty() && random.nextInt(4) == 0) {
+					int[] e = live.remove(random.nextInt(live.size()));
+					ok &= check(tree.Delete(new IntegerKey(e[0]), new RID(
+							new PageId(e[1]), 2)), "delete of " + e[0]);
+				} else {
+					int k = random.nextInt(3000);
+					tree.insert(new IntegerKey(k), new RID(new PageId(page),
+							2));
+					live.add(new int[] { k, page++, 2 });
+				}
+			ok &= check(!tree.Delete(new IntegerKey(3), new RID(new PageId(-1),
+					2)), "delete of a missing entry");
+			ok &= check(tree.size() == live.size(), "size");
+			int lo = random.nextInt(3100) - 50, hi = lo + random.nextInt(500);
+			ok &= check(same(entries(tree.new_scan(new IntegerKey(lo),
+					new IntegerKey(hi))), model(live, lo, hi)), "scan of " + lo
+					+ " to " + hi);
+		}
+
+		// four threads insert and delete entries of their own pages
+		final List<List<int[]>> added = new ArrayList<List<int[]>>();
+		final Exception[] failure = new Exception[1];
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final int first = 100000 * (t + 1);
+			final List<int[]> mine = new ArrayList<int[]>();
+			added.add(mine);
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						Random random = new Random(first);
+						for (int i = 0; i < 3000; i++) {
+							int k = random.nextInt(3000);
+							tree.insert(new IntegerKey(k), new RID(new PageId(
+									first + i), 2));
+							if (i % 5 == 0)
+								tree.Delete(new IntegerKey(k), new RID(
+										new PageId(first + i), 2));
+							else
+								mine.add(new int[] { k, first + i, 2 });
+						}
+					} catch (Exception e) {
+						failure[0] = e;
+					}
+				}
+			});
+		}
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+		for (List<int[]> mine : added)
+			live.addAll(mine);
+		ok &= check(failure[0] == null, "the concurrent inserts");
+		ok &= check(tree.size() == live.size()
+				&& same(entries(tree.new_scan(null, null)), model(live,
+						Integer.MIN_VALUE, Integer.MAX_VALUE)),
+				"the entries after the concurrent inserts");
+		return ok;
+	}
+
+	/* user-049: sharded files */
+	protected boolean testSharded() throws Exception {
+		boolean ok = OK;
+		Random random = new Random(31);
+		ShardedBTreeFile index = new ShardedBTreeFile("sharded",
+				AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE,
+				LeafFormat.PLAIN, new KeyClass[] { new IntegerKey(1000),
+						new IntegerKey(2000) });
+		List<int[]> live = new ArrayList<int[]>();
+		KeyClass[] keys = new KeyClass[3000];
+		RID[] rids = new RID[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			int k = random.nextInt(3000);
+			keys[i] = new IntegerKey(k);
+			rids[i] = new RID(new PageId(i), 4);
+			live.add(new int[] { k, i, 4 });
+		}
+		index.insertAll(keys, rids);
+
+		// a file left over by a failed split, under the name of the next shard
+		BTreeFile leftover = new BTreeFile("sharded.3", AttrType.attrInteger,
+				4, DeleteFashion.NAIVE_DELETE);
+		leftover.insert(new IntegerKey(2500), new RID(new PageId(99999), 4));
+		leftover.close();
+
+		// most of the operations go to the last shard
+		int page = keys.length;
+		for (int m = 0; m < 1500; m++)
+			if (random.nextInt(3) == 0) {
+				int[] e = live.remove(random.nextInt(live.size()));
+				ok &= check(index.Delete(new IntegerKey(e[0]), new RID(
+						new PageId(e[1]), 4)), "delete of " + e[0]);
+			} else {
+				int k = 2000 + random.nextInt(1000);
+				index.insert(new IntegerKey(k), new RID(new PageId(page), 4));
+				live.add(new int[] { k, page++, 4 });
+			}
+		ok &= check(index.splitHottest() && index.getShardCount() == 4
+				&& ((IntegerKey) index.getShardLow(3)).getKey() > 2000,
+				"the last shard is split");
+
+		for (int q = 0; q < 10; q++) {
+			int lo = random.nextInt(3200) - 100, hi = lo + random.nextInt(1500);
+			ShardedBTreeFileScan scan = index.new_scan(new IntegerKey(lo),
+					new IntegerKey(hi));
+			ok &= check(same(entries(scan), model(live, lo, hi)), "scan of "
+					+ lo + " to " + hi);
+			scan.DestroyBTreeFileScan();
+		}
+		KeyClass[] probes = new KeyClass[50];
+		for (int i = 0; i < probes.length; i++)
+			probes[i] = new IntegerKey(random.nextInt(3000));
+		RID[][] found = index.multiGet(probes);
+		for (int i = 0; i < probes.length; i++) {
+			int k = ((IntegerKey) probes[i]).getKey();
+			List<String> got = new ArrayList<String>();
+			for (RID rid : found[i])
+				got.add(k + ":" + rid.pageNo.pid + ":" + rid.slotNo);
+			ok &= check(same(got, model(live, k, k)), "multiGet of " + k);
+		}
+
+		// delete the entries of 500 to 2500 through a scan, across shards
+		ShardedBTreeFileScan scan = index.new_scan(new IntegerKey(500),
+				new IntegerKey(2500));
+		while (scan.get_next() != null)
+			scan.delete_current();
+		scan.DestroyBTreeFileScan();
+		live.removeIf(e -> e[0] >= 500 && e[0] <= 2500);
+
+		List<String> all = model(live, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		index.close();
+		index = new ShardedBTreeFile("sharded");
+		ok &= check(index.getShardCount() == 4, "the shards after reopen");
+		scan = index.new_scan(null, null);
+		ok &= check(same(entries(scan), all), "full scan after reopen");
+		scan.DestroyBTreeFileScan();
+		index.destroyFile();
+		return ok;
+	}
+
+	/* user-050: the asynchronous file */
+	protected boolean testAsync() throws Exception {
+		boolean ok = OK;
+		Random random = new Random(37);
+		BTreeFile file = new BTreeFile("async", AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE);
+		AsyncBTreeFile async = new AsyncBTreeFile(file, 3);
+		List<int[]> live = new ArrayList<int[]>();
+		List<CompletableFuture<?>> futures;
+		futures = new ArrayList<CompletableFuture<?>>();
+		for (int i = 0; i < 3000; i++) {
+			int k = random.nextInt(2000);
+			futures.add(async.insertAsync(new IntegerKey(k), new RID(
+					new PageId(i), 5)));
+			live.add(new int[] { k, i, 5 });
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+				.join();
+		for (int i = 0; i < 500; i++) {
+			int[] e = live.remove(random.nextInt(live.size()));
+			ok &= check(async.deleteAsync(new IntegerKey(e[0]),
+					new RID(new PageId(e[1]), 5)).get(), "delete of " + e[0]);
+		}
+		ok &= check(!async.deleteAsync(new IntegerKey(1),
+				new RID(new PageId(-1), 5)).get(), "delete of a missing entry");
+		KeyClass[] probes = new KeyClass[20];
+		for (int i = 0; i < probes.length; i++)
+			probes[i] = new IntegerKey(random.nextInt(2000));
+		RID[][] found = async.multiGetAsync(probes).get();
+		for (int i = 0; i < probes.length; i++) {
+			int k = ((IntegerKey) probes[i]).getKey();
+			ok &= check(same(rids(k, found[i]), model(live, k, k))
+					&& same(rids(k, async.lookupAsync(probes[i]).get()),
+							model(live, k, k)), "lookup of " + k);
+		}
+		try {
+			async.lookupAsync(new StringKey("x")).get();
+			ok &= check(false, "a string key fails the future");
+		} catch (ExecutionException e) {
+			ok &= check(e.getCause() instanceof KeyNotMatchException,
+					"a string key fails the future");
+		}
+
+		// a scan requested 7 entries at a time holds no page in between
+		int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+		List<String> got = new ArrayList<String>();
+		ok &= check(publish(async.new_scan(new IntegerKey(300),
+				new IntegerKey(1500)), 7, got, () -> {
+			synchronized (SystemDefs.JavabaseBM) {
+				return check(unpinned == SystemDefs.JavabaseBM
+						.getNumUnpinnedBuffers(),
+						"no page is pinned between requests");
+			}
+		}), "the scan completes");
+		ok &= check(same(got, model(live, 300, 1500)), "scan of 300 to 1500");
+
+		// entries inserted during a scan come at most once, in key order
+		List<int[]> before = new ArrayList<int[]>(live);
+		final int[] page = { 10000 };
+		got.clear();
+		ok &= check(publish(async.new_scan(null, null), 50, got, () -> {
+			for (int i = 0; i < 5; i++) {
+				int k = random.nextInt(2000);
+				async.insertAsync(new IntegerKey(k), new RID(new PageId(
+						page[0]), 5)).join();
+				live.add(new int[] { k, page[0]++, 5 });
+			}
+			return true;
+		}), "the scan during inserts completes");
+		List<String> sorted = new ArrayList<String>(got);
+		sorted.sort(Comparator.comparingInt(e -> Integer.parseInt(e
+				.split(":")[0])));
+		ok &= check(got.equals(sorted)
+				&& new HashSet<String>(got).size() == got.size(),
+				"the entries are sorted and unique");
+		ok &= check(got.containsAll(model(before, Integer.MIN_VALUE,
+				Integer.MAX_VALUE)) && model(live, Integer.MIN_VALUE,
+				Integer.MAX_VALUE).containsAll(got),
+				"the entries are those of the file");
+
+		// a long run of one key, requested one entry at a time, resumes
+		// past BATCH entries at a time without losing or repeating any
+		futures.clear();
+		for (int i = 0; i < 1000; i++) {
+			futures.add(async.insertAsync(new IntegerKey(5000), new RID(
+					new PageId(20000 + i), 5)));
+			live.add(new int[] { 5000, 20000 + i, 5 });
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+				.join();
+		got.clear();
+		ok &= check(publish(async.new_scan(new IntegerKey(5000),
+				new IntegerKey(5000)), 1, got, () -> true),
+				"the scan of the run completes");
+		ok &= check(got.size() == 1000
+				&& new HashSet<String>(got).equals(new HashSet<String>(model(
+						live, 5000, 5000))), "the run is sent once");
+
+		async.close();
+		file.destroyFile();
+		return ok;
+	}
+
+	/* the rids of a key as entries "key:page:slot" */
+	static List<String> rids(int key, RID[] rids) {
+		List<String> list = new ArrayList<String>();
+		for (RID rid : rids)
+			list.add(key + ":" + rid.pageNo.pid + ":" + rid.slotNo);
+		return list;
+	}
+
+	/*
+	 * Subscribe to a publisher and request step entries at a time, adding
+	 * them to got; between requests run a check, without the buffer
+	 * manager. Whether the checks passed and the subscription completed.
+	 */
+	static boolean publish(Flow.Publisher<KeyDataEntry> publisher, int step,
+			List<String> got, Callable<Boolean> between) throws Exception {
+		final Object done = new Object();
+		final BlockingQueue<Object> signals;
+		signals = new LinkedBlockingQueue<Object>();
+		final Flow.Subscription[] subscription = new Flow.Subscription[1];
+		publisher.subscribe(new Flow.Subscriber<KeyDataEntry>() {
+			public void onSubscribe(Flow.Subscription s) {
+				subscription[0] = s;
+			}
+
+			public void onNext(KeyDataEntry e) {
+				signals.add(entry(e));
+			}
+
+			public void onError(Throwable e) {
+				signals.add(e);
+			}
+
+			public void onComplete() {
+				signals.add(done);
+			}
+		});
+		boolean ok = OK;
+		while (true) {
+			subscription[0].request(step);
+			for (int n = 0; n < step; n++) {
+				Object signal = signals.poll(10, TimeUnit.SECONDS);
+				if (!(signal instanceof String))
+					return ok && signal == done;
+				got.add((String) signal);
+			}
+			ok &= between.call();
+		}
+	}
+}
+
 public class BTTest implements GlobalConst {
 
 	public static void main(String[] argvs) {
 
+		if (argvs.length > 0) {
+			boolean ok;
+			try {
+				ok = BTRegression.run(argvs);
+			} catch (Exception e) {
+				e.printStackTrace();
+				ok = false;
+			}
+			Runtime.getRuntime().exit(ok ? 0 : 1);
+		}
+
 		try {
 			BTDriver bttest = new BTDriver();
 			bttest.runTests();